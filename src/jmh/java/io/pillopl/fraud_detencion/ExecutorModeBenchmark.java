@@ -0,0 +1,62 @@
+package io.pillopl.fraud_detencion;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+//Platform (stala pula 60 watkow) vs Virtual przy tym samym bulkheadzie na ClickHouse (ConcurrencyLimits, 40 naraz)
+//8 regul po 20ms blokujacego zapytania, 400 klientow naraz (watki JMH) - kazdy request przez RuleScheduler jak w aplikacji
+//clickhouseRules=8: wszystkie reguly w ClickHouse - obie wersje koncza na limicie bulkheadu (40 / 20ms)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Threads(400)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExecutorModeBenchmark {
+
+    private static final int RULES = 8;
+    private static final int PLATFORM_THREADS = 60;
+    private static final int CLICKHOUSE_MAX_CONCURRENT = 40;
+    private static final Duration QUERY_LATENCY = Duration.ofMillis(20);
+    private static final Duration DEADLINE = Duration.ofSeconds(30);
+
+    //parametry JMH musza byc publicznego typu - enum po nazwie
+    @Param({"Platform", "Virtual"})
+    public String mode;
+
+    @Param({"2", "8"})
+    public int clickhouseRules;
+
+    private ExecutorService executor;
+    private RuleScheduler scheduler;
+    private ExecutionPlan plan;
+
+    @Setup
+    public void setUp() {
+        ConcurrencyLimits limits = new ConcurrencyLimits(Map.of("clickhouse", CLICKHOUSE_MAX_CONCURRENT));
+        plan = new ExecutionPlan(IntStream.range(0, RULES)
+                .<Rule>mapToObj(i -> new QueriedRule<>("rule-" + i, (Long value) -> value > 0,
+                        limits.limited(new StubQuery(new RuleSource(i < clickhouseRules ? "clickhouse" : "redis", "view_" + i),
+                                LatencyDistribution.Fixed, QUERY_LATENCY, 1)),
+                        Score.of(1)))
+                .toList());
+        executor = ExecutorMode.valueOf(mode).executor(PLATFORM_THREADS);
+        scheduler = new RuleScheduler(executor, RULES);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public ExecutionResult runRules() {
+        return scheduler.run(plan, Map.of("user_id", "user_" + Thread.currentThread().threadId()), DEADLINE, DecisionThresholds.NONE);
+    }
+}
@@ -0,0 +1,24 @@
+package io.pillopl.fraud_detencion;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+//czas odpowiedzi zaslepki zrodla danych wokol zadanej mediany:
+// None - od razu (sam narzut silnika regul), Fixed - zawsze mediana, Uniform - rownomiernie od 0 do 2x mediana,
+// LongTail - log-normalny (sigma 1): p99 ok. 10x mediana, jak ClickHouse pod obciazeniem
+enum LatencyDistribution {
+    None, Fixed, Uniform, LongTail;
+
+    private static final double LONG_TAIL_SIGMA = 1.0;
+
+    long sampleNanos(Duration median) {
+        long nanos = median.toNanos();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return switch (this) {
+            case None -> 0;
+            case Fixed -> nanos;
+            case Uniform -> random.nextLong(2 * nanos + 1);
+            case LongTail -> (long) (nanos * Math.exp(LONG_TAIL_SIGMA * random.nextGaussian()));
+        };
+    }
+}
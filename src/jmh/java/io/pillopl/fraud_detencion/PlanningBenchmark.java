@@ -0,0 +1,104 @@
+package io.pillopl.fraud_detencion;
+
+import io.pillopl.fraud_detencion.RuleDependency.Type;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+//planowanie bez I/O: budowa regul z requestu, plan per algorytm i symulacja, od 10 do 10k regul
+//co dziesiata regula zalezy od poprzedniej (DependentRule), reszta rozlozona na 20 widokow w 3 zrodlach
+//statystyki losowe, ale stale (ziarno) - wyniki miedzy przebiegami sa porownywalne
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PlanningBenchmark {
+
+    private static final ExecutionStrategy STRATEGY = new ExecutionStrategy(1, 1, 1);
+    private static final ExecutionBudget BUDGET = new ExecutionBudget(Duration.ofMillis(200), 8, 500);
+    private static final Map<String, String> PARAMS = Map.of("user_id", "user_1", "user_agent", "Firefox");
+    private static final String[] DATASOURCES = {"clickhouse", "redis", "postgres"};
+    private static final int VIEWS = 20;
+
+    @Param({"10", "100", "1000", "10000"})
+    public int rules;
+
+    private RulesRequest request;
+    private RulesConfig config;
+    private RulesStats stats;
+
+    @Setup
+    public void setUp() {
+        Set<RequestedRule<?>> requested = new HashSet<>();
+        for (int i = 0; i < rules; i++) {
+            String view = "view_" + i % VIEWS;
+            RuleSource source = new RuleSource(DATASOURCES[i % DATASOURCES.length], view);
+            RuleDependency<Long> dependsOn = i % 10 == 9
+                    ? new RuleDependency<>("rule-" + (i - 1), Type.NeedsData, value -> value > 0, value -> Map.of("view", view))
+                    : null;
+            requested.add(new RequestedRule<>("rule-" + i, Optional.of(new StubQuery(source, LatencyDistribution.None, Duration.ZERO, i)),
+                    ScoreCheck.when((Long value) -> value > 0, Score.of(i % 50)), dependsOn, source));
+        }
+        request = new RulesRequest(requested);
+        config = request.createConfig();
+
+        Random random = new Random(42);
+        Map<String, RuleStats> byRule = new HashMap<>();
+        for (Rule rule : config.rules()) {
+            byRule.put(rule.id(), new RuleStats(rule.id()).update(new RuleExecution(rule.id(),
+                    Duration.ofMillis(1 + random.nextInt(50)), Score.of(random.nextInt(100)), random.nextInt(20))));
+        }
+        stats = new RulesStats(byRule);
+    }
+
+    @Benchmark
+    public RulesConfig createConfig() {
+        return request.createConfig();
+    }
+
+    //nowy ExecutionConfig jak w requestach; Knapsack trafia we wspolne memo planera (te same statystyki)
+    @Benchmark
+    public ExecutionPlan calculatePlan(Algorithm algorithm) {
+        return new ExecutionConfig(STRATEGY, config, stats, algorithm.sorting, BUDGET).calculatePlan(PARAMS);
+    }
+
+    //samo DP bez memo - swiezy planner za kazdym razem
+    @Benchmark
+    public List<Rule> solveKnapsack() {
+        return new KnapsackPlanner().plan(config.rules(), stats, BUDGET);
+    }
+
+    @Benchmark
+    public SimulationResult simulation() {
+        return Simulation.of(config.rules())
+                .and(STRATEGY)
+                .after(BUDGET.deadline())
+                .andParallelizationOf(BUDGET.parallelism())
+                .runWith(stats);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Algorithm {
+
+        //parametry JMH musza byc publicznego typu - enum po nazwie
+        @Param({"Greedy", "Knapsack", "ML"})
+        public String algorithm;
+
+        private ExecutionConfig.SortingAlgorithm sorting;
+
+        @Setup
+        public void setUp() {
+            sorting = ExecutionConfig.SortingAlgorithm.valueOf(algorithm);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package io.pillopl.fraud_detencion;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+//caly request jak runRules w aplikacji: RuleScheduler nad zaslepkami zapytan z zadanym rozkladem czasu odpowiedzi
+//SampleTime - rozklad czasu requestu (p50/p99), nie tylko srednia; None mierzy sam narzut harmonogramu
+//rownolegle requesty: -Djmh.args="RunRulesBenchmark -t 16"
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RunRulesBenchmark {
+
+    private static final Map<String, String> PARAMS = Map.of("user_id", "user_1", "device_id", "device_1");
+    private static final Duration DEADLINE = Duration.ofSeconds(1);
+    private static final int PARALLELISM = 8;
+
+    @Param({"8", "64"})
+    public int rules;
+
+    //parametry JMH musza byc publicznego typu - enumy po nazwie
+    @Param({"None", "Fixed", "LongTail"})
+    public String latency;
+
+    @Param({"500"})
+    public int medianMicros;
+
+    @Param({"Platform", "Virtual"})
+    public String mode;
+
+    private ExecutorService executor;
+    private RuleScheduler scheduler;
+    private ExecutionPlan plan;
+
+    @Setup
+    public void setUp() {
+        LatencyDistribution distribution = LatencyDistribution.valueOf(latency);
+        Duration median = Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(medianMicros));
+        plan = new ExecutionPlan(IntStream.range(0, rules)
+                .<Rule>mapToObj(i -> new QueriedRule<>("rule-" + i, (Long value) -> value > 0,
+                        new StubQuery(new RuleSource(i % 3 == 0 ? "clickhouse" : "redis", "view_" + i), distribution, median, 1),
+                        Score.of(1)))
+                .toList());
+        executor = ExecutorMode.valueOf(mode).executor(64);
+        scheduler = new RuleScheduler(executor, PARALLELISM);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public ExecutionResult runRules() {
+        return scheduler.run(plan, PARAMS, DEADLINE, DecisionThresholds.NONE);
+    }
+}
@@ -0,0 +1,52 @@
+package io.pillopl.fraud_detencion;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//sumowanie wynikow regul: Score jest niemutowalny, kazde add to nowy obiekt - -prof gc pokazuje ile to kosztuje
+//ints - ta sama suma na prymitywach, dolna granica
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScoreBenchmark {
+
+    @Param({"5", "50", "1000"})
+    public int rules;
+
+    private Score[] scores;
+    private int[] ints;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        scores = new Score[rules];
+        ints = new int[rules];
+        for (int i = 0; i < rules; i++) {
+            ints[i] = random.nextInt(100);
+            scores[i] = Score.of(ints[i]);
+        }
+    }
+
+    @Benchmark
+    public Score accumulate() {
+        Score total = Score.zero();
+        for (Score score : scores) {
+            total = total.add(score);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public int ints() {
+        int total = 0;
+        for (int score : ints) {
+            total += score;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,24 @@
+package io.pillopl.fraud_detencion;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+//zapytanie bez I/O: czeka (parkNanos - jak watek blokowany na sockecie) i zwraca stala wartosc
+//kazdy widok osobno - QueryScope nie skleja zaslepek roznych regul w jedno wykonanie
+record StubQuery(RuleSource ruleSource, LatencyDistribution latency, Duration median, long value) implements Query<Long> {
+
+    @Override
+    public Long execute(Map<String, String> params) {
+        long nanos = latency.sampleNanos(median);
+        if (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+        }
+        return value;
+    }
+
+    @Override
+    public Map<String, String> boundParams(Map<String, String> params) {
+        return Map.of("view", ruleSource.view(), "user_id", params.getOrDefault("user_id", ""));
+    }
+}
@@ -0,0 +1,54 @@
+package io.pillopl.fraud_detencion;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+//backfill / re-scoring: wiele transakcji naraz, kazda regula dostaje caly batch (jedno IN (...) zamiast N zapytan)
+class BatchEvaluator {
+
+    private final Executor executor;
+    private final int batchSize;
+
+    BatchEvaluator(Executor executor, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive, was " + batchSize);
+        }
+        this.executor = executor;
+        this.batchSize = batchSize;
+    }
+
+    List<Score> evaluate(List<Rule> rules, List<Map<String, String>> params) {
+        List<Score> scores = new ArrayList<>(params.size());
+        for (int from = 0; from < params.size(); from += batchSize) {
+            scores.addAll(evaluateBatch(rules, params.subList(from, Math.min(from + batchSize, params.size()))));
+        }
+        return scores;
+    }
+
+    private List<Score> evaluateBatch(List<Rule> rules, List<Map<String, String>> batch) {
+        return evaluateAsync(rules, batch).join();
+    }
+
+    //jedna paczka (bez dzielenia na batchSize), reguly rownolegle na executorze, bez blokowania watku wolajacego
+    CompletableFuture<List<Score>> evaluateAsync(List<Rule> rules, List<Map<String, String>> batch) {
+        List<CompletableFuture<List<Score>>> perRule = rules.stream()
+                .map(rule -> CompletableFuture.supplyAsync(() -> rule.calculateAll(batch), executor))
+                .toList();
+        return CompletableFuture.allOf(perRule.toArray(CompletableFuture[]::new)).thenApply(done -> {
+            List<Score> scores = new ArrayList<>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                scores.add(Score.zero());
+            }
+            for (CompletableFuture<List<Score>> ruleScores : perRule) {
+                List<Score> calculated = ruleScores.join();
+                for (int i = 0; i < batch.size(); i++) {
+                    scores.set(i, scores.get(i).add(calculated.get(i)));
+                }
+            }
+            return scores;
+        });
+    }
+}
@@ -0,0 +1,118 @@
+package io.pillopl.fraud_detencion;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+//interfejs HTTP ClickHouse (port 8123) przez HttpClient.sendAsync - czekanie na wynik nie trzyma zadnego watku
+//szablon ClickHouseStatement idzie do serwera bez zmian ({user_id:String}), wartosci jako param_<nazwa> w URL
+//- wiaze je serwer, tak jak przy PreparedStatement nie trafiaja do tekstu SQL; wynik w TabSeparatedWithNames
+class ClickHouseHttp {
+
+    private final HttpClient client;
+    private final URI endpoint;
+    private final String user;
+    private final String password;
+    private final Duration timeout;
+
+    ClickHouseHttp(HttpClient client, URI endpoint, String user, String password, Duration timeout) {
+        this.client = client;
+        this.endpoint = endpoint;
+        this.user = user;
+        this.password = password;
+        this.timeout = timeout;
+    }
+
+    static ClickHouseHttp create(URI endpoint, String user, String password, Duration timeout) {
+        return new ClickHouseHttp(HttpClient.newBuilder().connectTimeout(timeout).build(), endpoint, user, password, timeout);
+    }
+
+    //wiersze jako kolumna -> wartosc tekstowa, w kolejnosci z odpowiedzi
+    CompletableFuture<List<Map<String, String>>> query(ClickHouseStatement statement, Map<String, String> params) {
+        StringBuilder uri = new StringBuilder(endpoint.toString()).append("?default_format=TabSeparatedWithNames");
+        for (String name : statement.names()) {
+            uri.append("&param_").append(name).append('=').append(URLEncoder.encode(escape(params.get(name)), StandardCharsets.UTF_8));
+        }
+        HttpRequest request = HttpRequest.newBuilder(URI.create(uri.toString()))
+                .timeout(timeout)
+                .header("X-ClickHouse-User", user)
+                .header("X-ClickHouse-Key", password)
+                .POST(HttpRequest.BodyPublishers.ofString(statement.template()))
+                .build();
+        //anulowanie wyniku (deadline, przegrany hedge) zamyka tez samo zadanie HTTP
+        CompletableFuture<HttpResponse<String>> sent = client.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+        return Query.cancelling(sent.thenApply(response -> {
+            if (response.statusCode() != 200) {
+                throw new IllegalStateException("ClickHouse HTTP " + response.statusCode() + ": " + response.body().strip());
+            }
+            return rows(response.body());
+        }), sent);
+    }
+
+    static List<Map<String, String>> rows(String body) {
+        List<String> lines = body.lines().toList();
+        if (lines.isEmpty()) {
+            return List.of();
+        }
+        List<String> columns = fields(lines.getFirst());
+        List<Map<String, String>> rows = new ArrayList<>();
+        for (String line : lines.subList(1, lines.size())) {
+            List<String> values = fields(line);
+            Map<String, String> row = new LinkedHashMap<>();
+            for (int i = 0; i < columns.size(); i++) {
+                row.put(columns.get(i), values.get(i));
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    //TSV ClickHouse: nan / inf zamiast NaN / Infinity
+    static double number(String value) {
+        return switch (value) {
+            case "nan", "-nan" -> Double.NaN;
+            case "inf", "+inf" -> Double.POSITIVE_INFINITY;
+            case "-inf" -> Double.NEGATIVE_INFINITY;
+            default -> Double.parseDouble(value);
+        };
+    }
+
+    //wartosci parametrow serwer czyta jak pole TSV - escapujemy backslash, tab i nowa linie; null -> \N
+    private static String escape(String value) {
+        if (value == null) {
+            return "\\N";
+        }
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private static List<String> fields(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\t') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\\' && i + 1 < line.length()) {
+                char escaped = line.charAt(++i);
+                field.append(switch (escaped) {
+                    case 't' -> '\t';
+                    case 'n' -> '\n';
+                    case 'r' -> '\r';
+                    case '0' -> '\0';
+                    default -> escaped;
+                });
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
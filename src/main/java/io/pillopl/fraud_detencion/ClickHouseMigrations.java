@@ -0,0 +1,216 @@
+package io.pillopl.fraud_detencion;
+
+import org.springframework.core.io.Resource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.core.io.support.ResourcePatternResolver;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+//schemat ClickHouse zarzadzany z aplikacji: pliki <location>/V<n>__<opis>.sql wykonywane raz, rosnaco po n
+//wykonane wersje w schema_migrations, wykonane instrukcje w schema_migration_steps - ClickHouse nie ma transakcji,
+//wiec migracja ktora padla w polowie po restarcie rusza od pierwszej niezapisanej instrukcji
+//instrukcja moze pasc po wykonaniu a przed zapisem, wiec DDL musi byc idempotentny (IF NOT EXISTS)
+//`INSERT INTO <tabela> SELECT` to backfill: laduje najpierw <tabela>_backfill (czyszczona przed kazda proba),
+//a dopiero zapisany jako `staged` przenosimy do <tabela> przez MOVE PARTITION - czesci przechodza atomowo,
+//ponowienie przenosi tylko to co zostalo, wiec agregaty nigdy nie trafiaja do tabeli dwa razy
+//dwie instancje naraz: migruje ta ktora zalozyla schema_migrations_lock (CREATE TABLE bez IF NOT EXISTS),
+//druga czeka az lock zniknie; lock starszy niz LOCK_STALE zostawila instancja ktora padla - zdejmujemy go
+class ClickHouseMigrations {
+
+    static final String DEFAULT_LOCATION = "classpath:db/clickhouse";
+
+    static final Duration LOCK_STALE = Duration.ofMinutes(30);
+    //dluzej niz LOCK_STALE - lock instancji ktora padla zdazy sie przeterminowac, zanim czekajacy sie podda
+    static final Duration LOCK_WAIT = LOCK_STALE.plusMinutes(1);
+    private static final Duration LOCK_POLL = Duration.ofSeconds(1);
+
+    private static final Pattern FILE = Pattern.compile("V(\\d+)__(\\w+)\\.sql");
+    private static final Pattern BACKFILL = Pattern.compile("INSERT INTO (\\w+)(\\s+SELECT\\b.*)", Pattern.DOTALL);
+
+    private static final String LOCK = "schema_migrations_lock";
+
+    private static final ClickHouseStatement RECORD = ClickHouseStatement.of(
+            "INSERT INTO schema_migrations (version, description) VALUES ({version:UInt32}, {description:String})");
+
+    private static final ClickHouseStatement RECORD_STEP = ClickHouseStatement.of(
+            "INSERT INTO schema_migration_steps (version, step, state) VALUES ({version:UInt32}, {step:UInt32}, {state:String})");
+
+    private static final ClickHouseStatement STEPS = ClickHouseStatement.of(
+            "SELECT concat(toString(step), ':', state) FROM schema_migration_steps WHERE version = {version:UInt32}");
+
+    private static final ClickHouseStatement PARTITIONS = ClickHouseStatement.of(
+            "SELECT DISTINCT partition_id FROM system.parts " +
+            "WHERE database = currentDatabase() AND table = {table:String} AND active");
+
+    private static final ClickHouseStatement LOCK_AGE = ClickHouseStatement.of(
+            "SELECT toUInt64(dateDiff('second', metadata_modification_time, now())) FROM system.tables " +
+            "WHERE database = currentDatabase() AND name = {table:String}");
+
+    private final JdbcTemplate jdbcTemplate;
+    private final List<Migration> migrations;
+
+    ClickHouseMigrations(JdbcTemplate jdbcTemplate, List<Migration> migrations) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.migrations = migrations.stream().sorted(Comparator.comparingInt(Migration::version)).toList();
+    }
+
+    static ClickHouseMigrations fromClasspath(JdbcTemplate jdbcTemplate, String location) {
+        return new ClickHouseMigrations(jdbcTemplate, load(new PathMatchingResourcePatternResolver(), location));
+    }
+
+    //zwraca zastosowane teraz wersje
+    List<Integer> migrate() {
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS schema_migrations " +
+                "(version UInt32, description String, applied_at DateTime DEFAULT now()) " +
+                "ENGINE = MergeTree ORDER BY version");
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS schema_migration_steps " +
+                "(version UInt32, step UInt32, state String, applied_at DateTime DEFAULT now()) " +
+                "ENGINE = MergeTree ORDER BY (version, step)");
+        lock();
+        try {
+            //po locku - w miedzyczasie migracje mogla zrobic inna instancja
+            List<Integer> applied = jdbcTemplate.queryForList("SELECT version FROM schema_migrations", Integer.class);
+            List<Integer> done = new ArrayList<>();
+            for (Migration migration : pending(applied)) {
+                apply(migration);
+                ClickHouseStatement.Bound bound = RECORD.bind(Map.of(
+                        "version", String.valueOf(migration.version()), "description", migration.description()));
+                jdbcTemplate.update(bound.sql(), bound.args(), bound.types());
+                done.add(migration.version());
+            }
+            return done;
+        } finally {
+            jdbcTemplate.execute("DROP TABLE IF EXISTS " + LOCK);
+        }
+    }
+
+    private void apply(Migration migration) {
+        ClickHouseStatement.Bound stepsQuery = STEPS.bind(Map.of("version", String.valueOf(migration.version())));
+        Set<String> steps = new HashSet<>(jdbcTemplate.queryForList(stepsQuery.sql(), stepsQuery.args(), stepsQuery.types(), String.class));
+        for (int step = 0; step < migration.statements().size(); step++) {
+            if (steps.contains(step + ":done")) {
+                continue;
+            }
+            String statement = migration.statements().get(step);
+            Matcher backfill = BACKFILL.matcher(statement);
+            if (backfill.matches()) {
+                backfill(migration.version(), step, backfill.group(1), backfill.group(2), steps.contains(step + ":staged"));
+            } else {
+                jdbcTemplate.execute(statement);
+            }
+            recordStep(migration.version(), step, "done");
+        }
+    }
+
+    private void backfill(int version, int step, String table, String select, boolean staged) {
+        String staging = table + "_backfill";
+        if (!staged) {
+            jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS " + staging + " AS " + table);
+            jdbcTemplate.execute("TRUNCATE TABLE " + staging);
+            jdbcTemplate.execute("INSERT INTO " + staging + select);
+            recordStep(version, step, "staged");
+        }
+        ClickHouseStatement.Bound partitions = PARTITIONS.bind(Map.of("table", staging));
+        for (String partition : jdbcTemplate.queryForList(partitions.sql(), partitions.args(), partitions.types(), String.class)) {
+            jdbcTemplate.execute("ALTER TABLE " + staging + " MOVE PARTITION ID '" + partition + "' TO TABLE " + table);
+        }
+        jdbcTemplate.execute("DROP TABLE " + staging);
+    }
+
+    private void recordStep(int version, int step, String state) {
+        ClickHouseStatement.Bound bound = RECORD_STEP.bind(Map.of(
+                "version", String.valueOf(version), "step", String.valueOf(step), "state", state));
+        jdbcTemplate.update(bound.sql(), bound.args(), bound.types());
+    }
+
+    private void lock() {
+        long deadline = System.nanoTime() + LOCK_WAIT.toNanos();
+        while (true) {
+            try {
+                jdbcTemplate.execute("CREATE TABLE " + LOCK + " (owner String) ENGINE = Memory");
+                return;
+            } catch (DataAccessException held) {
+                if (lockAge().compareTo(LOCK_STALE) > 0) {
+                    jdbcTemplate.execute("DROP TABLE IF EXISTS " + LOCK);
+                    continue;
+                }
+                if (System.nanoTime() > deadline) {
+                    throw new IllegalStateException("ClickHouse migrations locked by another instance for over " + LOCK_WAIT, held);
+                }
+                try {
+                    Thread.sleep(LOCK_POLL);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for ClickHouse migrations lock", e);
+                }
+            }
+        }
+    }
+
+    private Duration lockAge() {
+        ClickHouseStatement.Bound bound = LOCK_AGE.bind(Map.of("table", LOCK));
+        List<Long> age = jdbcTemplate.queryForList(bound.sql(), bound.args(), bound.types(), Long.class);
+        return age.isEmpty() ? Duration.ZERO : Duration.ofSeconds(age.getFirst());
+    }
+
+    List<Migration> pending(Collection<Integer> applied) {
+        Set<Integer> done = new HashSet<>(applied);
+        return migrations.stream().filter(migration -> !done.contains(migration.version())).toList();
+    }
+
+    static List<Migration> load(ResourcePatternResolver resolver, String location) {
+        try {
+            List<Migration> migrations = new ArrayList<>();
+            for (Resource resource : resolver.getResources(location + "/V*__*.sql")) {
+                Matcher matcher = FILE.matcher(Objects.requireNonNull(resource.getFilename()));
+                if (!matcher.matches()) {
+                    throw new IllegalStateException("Migration file name must be V<version>__<description>.sql, was " + resource.getFilename());
+                }
+                migrations.add(new Migration(Integer.parseInt(matcher.group(1)), matcher.group(2),
+                        statements(resource.getContentAsString(StandardCharsets.UTF_8))));
+            }
+            Set<Integer> versions = new HashSet<>();
+            migrations.forEach(migration -> {
+                if (!versions.add(migration.version())) {
+                    throw new IllegalStateException("Duplicate migration version " + migration.version());
+                }
+            });
+            return migrations;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //komentarze `--` do konca linii wycinamy, instrukcje konczy `;` na koncu linii
+    static List<String> statements(String script) {
+        List<String> statements = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        for (String line : script.split("\\R")) {
+            String code = line.replaceFirst("\\s*--.*$", "");
+            if (code.isBlank()) {
+                continue;
+            }
+            boolean ends = code.stripTrailing().endsWith(";");
+            current.append(ends ? code.stripTrailing().substring(0, code.stripTrailing().length() - 1) : code).append('\n');
+            if (ends) {
+                statements.add(current.toString().strip());
+                current.setLength(0);
+            }
+        }
+        if (!current.isEmpty()) {
+            statements.add(current.toString().strip());
+        }
+        return List.copyOf(statements);
+    }
+
+    record Migration(int version, String description, List<String> statements) {
+    }
+}
@@ -0,0 +1,158 @@
+package io.pillopl.fraud_detencion;
+
+import java.sql.Types;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+//definicja zapytania z typowanymi parametrami w skladni ClickHouse: {user_id:String}, {ids:Array(String)}
+//SQL kompilowany raz (przy ladowaniu klasy zapytania) do `?` + kolejnosc i typy parametrow
+//wartosci z requestu nigdy nie trafiaja do tekstu SQL - tylko jako parametry PreparedStatement
+//Array(T) w `IN {ids:Array(T)}` rozwijamy do (?, ?, ...) - dlugosc zaokraglona w gore do potegi dwojki
+//(dopelniona ostatnia wartoscia), zeby roznych tekstow zapytania bylo log2(n), a nie n; kazdy kompilujemy raz
+final class ClickHouseStatement {
+
+    private static final Pattern PARAM = Pattern.compile("\\{(\\w+):([^}]+)}");
+    private static final Pattern ARRAY = Pattern.compile("Array\\((.+)\\)");
+    private static final Pattern NULLABLE = Pattern.compile("(?:Nullable|LowCardinality)\\((.+)\\)");
+
+    private final String template;
+    private final List<Param> params;
+    private final Param array;
+    private final Map<Integer, String> expanded = new ConcurrentHashMap<>();
+    private final String sql;
+
+    private ClickHouseStatement(String template) {
+        this.template = template;
+        this.params = parse(template);
+        List<Param> arrays = params.stream().filter(Param::isArray).distinct().toList();
+        if (arrays.size() > 1) {
+            throw new IllegalArgumentException("At most one Array parameter per statement, was " + arrays);
+        }
+        this.array = arrays.isEmpty() ? null : arrays.getFirst();
+        this.sql = array == null ? render(0) : null;
+    }
+
+    static ClickHouseStatement of(String template) {
+        return new ClickHouseStatement(template);
+    }
+
+    String template() {
+        return template;
+    }
+
+    //tekst zapytania bez parametrow tablicowych
+    String sql() {
+        if (sql == null) {
+            throw new IllegalStateException("Statement expands " + array.name() + " - bind values first");
+        }
+        return sql;
+    }
+
+    //wartosc parametru Array(T): Collection<String>, reszta: String (null -> NULL)
+    Bound bind(Map<String, ?> values) {
+        int size = array == null ? 0 : bucket(((Collection<?>) values.get(array.name())).size());
+        String text = array == null ? sql : expanded.computeIfAbsent(size, this::render);
+        List<Object> args = new ArrayList<>();
+        List<Integer> types = new ArrayList<>();
+        for (Param param : params) {
+            Object value = values.get(param.name());
+            if (param.isArray()) {
+                List<?> elements = List.copyOf((Collection<?>) value);
+                for (int i = 0; i < size; i++) {
+                    args.add(param.convert(elements.get(Math.min(i, elements.size() - 1))));
+                    types.add(param.sqlType());
+                }
+            } else {
+                args.add(param.convert(value));
+                types.add(param.sqlType());
+            }
+        }
+        return new Bound(text, args.toArray(), types.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    //dla ClickHouseHttp: szablon idzie bez zmian, wartosci osobno jako param_<nazwa> - tylko zapytania bez Array
+    Set<String> names() {
+        if (array != null) {
+            throw new IllegalStateException("Statement expands " + array.name() + " - not supported over HTTP");
+        }
+        Set<String> names = new LinkedHashSet<>();
+        params.forEach(param -> names.add(param.name()));
+        return names;
+    }
+
+    //liczba roznych tekstow zapytania skompilowanych do tej pory
+    int compiledStatements() {
+        return array == null ? 1 : expanded.size();
+    }
+
+    private String render(int arraySize) {
+        Matcher matcher = PARAM.matcher(template);
+        StringBuilder sql = new StringBuilder();
+        while (matcher.find()) {
+            String placeholder = ARRAY.matcher(matcher.group(2)).matches()
+                    ? "(" + String.join(", ", Collections.nCopies(arraySize, "?")) + ")"
+                    : "?";
+            matcher.appendReplacement(sql, placeholder);
+        }
+        matcher.appendTail(sql);
+        return sql.toString();
+    }
+
+    private static int bucket(int size) {
+        if (size == 0) {
+            throw new IllegalArgumentException("Array parameter needs at least one value");
+        }
+        return Integer.highestOneBit(size) == size ? size : Integer.highestOneBit(size) << 1;
+    }
+
+    private static List<Param> parse(String template) {
+        List<Param> params = new ArrayList<>();
+        Matcher matcher = PARAM.matcher(template);
+        while (matcher.find()) {
+            params.add(Param.of(matcher.group(1), matcher.group(2)));
+        }
+        return List.copyOf(params);
+    }
+
+    //to co idzie do JdbcTemplate: tekst z `?`, wartosci i typy JDBC
+    record Bound(String sql, Object[] args, int[] types) {
+    }
+
+    record Param(String name, String type, boolean isArray, int sqlType) {
+
+        static Param of(String name, String type) {
+            Matcher array = ARRAY.matcher(type);
+            boolean isArray = array.matches();
+            return new Param(name, type, isArray, sqlType(isArray ? array.group(1) : type));
+        }
+
+        Object convert(Object value) {
+            if (value == null) {
+                return null;
+            }
+            String text = value.toString();
+            return switch (sqlType) {
+                case Types.BIGINT -> Long.valueOf(text);
+                case Types.DOUBLE -> Double.valueOf(text);
+                default -> text;
+            };
+        }
+
+        private static int sqlType(String type) {
+            Matcher wrapped = NULLABLE.matcher(type);
+            String base = wrapped.matches() ? wrapped.group(1) : type;
+            if (base.equals("String") || base.startsWith("FixedString")) {
+                return Types.VARCHAR;
+            }
+            if (base.matches("U?Int(8|16|32|64)")) {
+                return Types.BIGINT;
+            }
+            if (base.matches("Float(32|64)")) {
+                return Types.DOUBLE;
+            }
+            throw new IllegalArgumentException("Unsupported parameter type " + type);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package io.pillopl.fraud_detencion;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.util.stream.Collectors.groupingBy;
+
+//ruch online: pojedyncze evaluate(params) zbierane przez kilka ms w paczki - osobno dla kazdego RuleSource
+//(datasource, view), bo jedno zapytanie batchowe czyta jeden widok; maxWait wspolny dla widokow jednego datasource
+//reguly paczki licza sie rownolegle na `executor` (BatchEvaluator.evaluateAsync) - flush nie blokuje zadnego watku,
+//wiec zagniezdzone zadania w tej samej puli jej nie zakleszcza
+//reguly bez zrodla (bez I/O) nie czekaja na paczke, ale tez ida na `executor`, nie na watek wolajacy
+class CoalescingRuleEngine {
+
+    private final List<MicroBatcher<Map<String, String>, Score>> batchers = new ArrayList<>();
+    private final List<Rule> localRules;
+    private final Executor executor;
+
+    CoalescingRuleEngine(List<Rule> rules, CoalescingPolicy policy, ScheduledExecutorService timer, Executor executor) {
+        Map<Optional<RuleSource>, List<Rule>> bySource = rules.stream()
+                .collect(groupingBy(Rule::ruleSource));
+        this.localRules = bySource.getOrDefault(Optional.empty(), List.of());
+        this.executor = executor;
+        BatchEvaluator evaluator = new BatchEvaluator(executor, policy.maxBatchSize());
+        bySource.forEach((source, sourceRules) -> source.ifPresent(ruleSource ->
+                batchers.add(new MicroBatcher<Map<String, String>, Score>(policy.maxWait(ruleSource.datasource()), policy.maxBatchSize(),
+                        batch -> evaluator.evaluateAsync(sourceRules, batch), timer))));
+    }
+
+    CompletableFuture<Score> evaluate(Map<String, String> params) {
+        CompletableFuture<Score> total = localRules.isEmpty()
+                ? CompletableFuture.completedFuture(Score.zero())
+                : CompletableFuture.supplyAsync(() -> calculateLocal(params), executor);
+        for (MicroBatcher<Map<String, String>, Score> batcher : batchers) {
+            total = total.thenCombine(batcher.submit(params), Score::add);
+        }
+        return total;
+    }
+
+    private Score calculateLocal(Map<String, String> params) {
+        Score local = Score.zero();
+        for (Rule rule : localRules) {
+            local = local.add(rule.calculate(params));
+        }
+        return local;
+    }
+}
+
+record CoalescingPolicy(Duration defaultMaxWait, Map<String, Duration> maxWaitPerDatasource, int maxBatchSize) {
+
+    CoalescingPolicy(Duration defaultMaxWait, int maxBatchSize) {
+        this(defaultMaxWait, Map.of(), maxBatchSize);
+    }
+
+    Duration maxWait(String datasource) {
+        return maxWaitPerDatasource.getOrDefault(datasource, defaultMaxWait);
+    }
+}
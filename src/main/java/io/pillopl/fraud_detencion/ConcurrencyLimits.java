@@ -0,0 +1,395 @@
+package io.pillopl.fraud_detencion;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+//na czym ida reguly:
+// Platform - stala pula watkow, kazde blokujace zapytanie trzyma watek (limit = rozmiar puli)
+// Virtual - watek wirtualny na kazde wywolanie reguly, czekanie na JDBC/Redis nie trzyma watku systemowego
+enum ExecutorMode {
+    Platform, Virtual;
+
+    ExecutorService executor(int platformThreads) {
+        return switch (this) {
+            case Platform -> Executors.newFixedThreadPool(platformThreads);
+            case Virtual -> Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("rule-", 0).factory());
+        };
+    }
+}
+
+//bulkhead per datasource - wolny ClickHouse nie zajmie wszystkich watkow i nie zaglodzi reguly redisowej
+//przy watkach wirtualnych to tez jedyne co trzyma tysiace watkow z dala od puli polaczen Hikari
+//datasource bez bulkheadu - zapytanie bez zmian
+class ConcurrencyLimits {
+
+    private final Map<String, AdaptiveLimit> limits = new HashMap<>();
+
+    ConcurrencyLimits(List<BulkheadSettings> bulkheads) {
+        bulkheads.forEach(settings -> limits.put(settings.datasource(), new AdaptiveLimit(settings)));
+    }
+
+    //stale limity bez limitu czekania - testy i benchmarki
+    ConcurrencyLimits(Map<String, Integer> maxConcurrent) {
+        this(maxConcurrent.entrySet().stream().map(entry -> BulkheadSettings.fixed(entry.getKey(), entry.getValue())).toList());
+    }
+
+    static ConcurrencyLimits none() {
+        return new ConcurrencyLimits(Map.of());
+    }
+
+    <T> Query<T> limited(Query<T> query) {
+        AdaptiveLimit limit = limits.get(query.ruleSource().datasource());
+        return limit == null ? query : new LimitedQuery<>(query, limit);
+    }
+
+    int available(String datasource) {
+        AdaptiveLimit limit = limits.get(datasource);
+        return limit == null ? Integer.MAX_VALUE : limit.available();
+    }
+
+    int limit(String datasource) {
+        AdaptiveLimit limit = limits.get(datasource);
+        return limit == null ? Integer.MAX_VALUE : limit.limit();
+    }
+
+    Set<String> datasources() {
+        return limits.keySet();
+    }
+}
+
+//limit wspolbieznosci jednego datasource dopasowywany do latencji (AIMD, jak okno TCP):
+// - baseline: najkrotszy czas z ostatnich WINDOW wywolan - latencja bez kolejki po stronie serwera; rosnie najwyzej
+//   o BASELINE_DRIFT na okno, wiec trwale spowolnienie staje sie nowa norma dopiero po kilkudziesieciu oknach
+// - wywolanie wolniejsze niz TOLERANCE * baseline albo blad: limit * BACKOFF, najwyzej raz na pelne okno (limit wywolan)
+// - szybkie wywolanie przy wykorzystanym limicie: limit + 1/limit, czyli ok. +1 na kazde pelne okno
+//czekanie na pozwolenie najwyzej maxWait; gdy czeka juz tyle wywolan ile wynosi limit - odrzucamy od razu
+//min == max: staly limit (bez adaptacji), maxWait == null: czekamy bez limitu i nie odrzucamy
+final class AdaptiveLimit {
+
+    static final int WINDOW = 100;
+    static final double TOLERANCE = 2.0;
+    static final double BACKOFF = 0.9;
+    static final double BASELINE_DRIFT = 1.1;
+
+    private final String datasource;
+    private final int minLimit;
+    private final int maxLimit;
+    private final Duration maxWait;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private double limit;
+    private int inFlight;
+    private int waiting;
+    private long baseline = Long.MAX_VALUE;
+    private long windowMin = Long.MAX_VALUE;
+    private int samples;
+    private int sinceBackoff;
+
+    AdaptiveLimit(BulkheadSettings settings) {
+        this.datasource = settings.datasource();
+        this.minLimit = settings.minConcurrent();
+        this.maxLimit = settings.maxConcurrent();
+        this.maxWait = settings.maxWait();
+        this.limit = settings.initialConcurrent();
+    }
+
+    void acquire() {
+        try {
+            lock.lockInterruptibly();
+            try {
+                if (inFlight < limit()) {
+                    inFlight++;
+                    return;
+                }
+                if (maxWait != null && waiting >= limit()) {
+                    throw new BulkheadRejectedException(datasource, "queue full");
+                }
+                long remaining = maxWait == null ? Long.MAX_VALUE : maxWait.toNanos();
+                waiting++;
+                try {
+                    while (inFlight >= limit()) {
+                        if (remaining <= 0) {
+                            throw new BulkheadRejectedException(datasource, "no permit within " + maxWait);
+                        }
+                        if (maxWait == null) {
+                            released.await();
+                        } else {
+                            remaining = released.awaitNanos(remaining);
+                        }
+                    }
+                    inFlight++;
+                } finally {
+                    waiting--;
+                }
+            } finally {
+                lock.unlock();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for " + datasource + " permit");
+        }
+    }
+
+    boolean tryAcquire() {
+        lock.lock();
+        try {
+            if (inFlight < limit() && waiting == 0) {
+                inFlight++;
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //czas wywolania bez czekania na pozwolenie; failed - wyjatek albo przerwanie (deadline)
+    void release(long durationNanos, boolean failed) {
+        lock.lock();
+        try {
+            int before = limit();
+            adjust(durationNanos, failed, inFlight);
+            inFlight--;
+            if (limit() > before) {
+                released.signalAll();
+            } else {
+                released.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //pozwolenie niewykorzystane (wywolanie anulowane zanim ruszylo) - bez probki dla AIMD
+    void abandon() {
+        lock.lock();
+        try {
+            inFlight--;
+            released.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void adjust(long durationNanos, boolean failed, int used) {
+        if (minLimit == maxLimit) {
+            return;
+        }
+        windowMin = Math.min(windowMin, durationNanos);
+        if (baseline == Long.MAX_VALUE) {
+            baseline = durationNanos;
+        } else if (++samples >= WINDOW) {
+            baseline = Math.min(windowMin, (long) (baseline * BASELINE_DRIFT));
+            windowMin = Long.MAX_VALUE;
+            samples = 0;
+        }
+        sinceBackoff++;
+        if (failed || durationNanos > baseline * TOLERANCE) {
+            if (sinceBackoff >= limit()) {
+                limit = Math.max(minLimit, limit * BACKOFF);
+                sinceBackoff = 0;
+            }
+        } else if (used >= limit()) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    int limit() {
+        return (int) limit;
+    }
+
+    int available() {
+        lock.lock();
+        try {
+            return Math.max(0, limit() - inFlight);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
+
+//regula odrzucona przez bulkhead: Score.zero() i osobny znacznik w ExecutionResult.rejected - nie timeout ani blad
+class BulkheadRejectedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    BulkheadRejectedException(String datasource, String reason) {
+        super("Bulkhead " + datasource + " rejected call: " + reason);
+    }
+
+    static boolean causedBy(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof BulkheadRejectedException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
+
+//pozwolenie na czas wykonania delegata; czekanie przerywalne - anulowana regula nie wisi w kolejce
+//czas wywolania (bez czekania w kolejce) i bledy ida do AdaptiveLimit
+class LimitedQuery<T> implements DelegatingQuery<T>, BatchQuery<T> {
+
+    private final Query<T> delegate;
+    private final AdaptiveLimit limit;
+
+    LimitedQuery(Query<T> delegate, AdaptiveLimit limit) {
+        this.delegate = delegate;
+        this.limit = limit;
+    }
+
+    @Override
+    public T execute(Map<String, String> params) {
+        limit.acquire();
+        return measured(() -> delegate.execute(params));
+    }
+
+    //wolne pozwolenie - od razu do delegata; brak - czekamy w kolejce na `blocking`, nie na watku I/O
+    //pozwolenie oddajemy gdy przyjdzie wynik, a nie gdy wroci executeAsync
+    //anulowanie wyniku przerywa czekanie w kolejce albo anuluje delegata; pozwolenie zdobyte po anulowaniu wraca od razu
+    @Override
+    public CompletionStage<T> executeAsync(Map<String, String> params, Executor blocking) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        CompletableFuture<Void> permit = permit(blocking);
+        permit.whenComplete((acquired, rejected) -> {
+            if (rejected != null) {
+                result.completeExceptionally(rejected);
+                return;
+            }
+            if (result.isDone()) {
+                limit.abandon();
+                return;
+            }
+            long start = System.nanoTime();
+            CompletableFuture<T> call;
+            try {
+                call = delegate.executeAsync(params, blocking).toCompletableFuture();
+            } catch (RuntimeException e) {
+                call = CompletableFuture.failedFuture(e);
+            }
+            call.whenComplete((value, error) -> {
+                limit.release(System.nanoTime() - start, error != null);
+                if (error == null) {
+                    result.complete(value);
+                } else {
+                    result.completeExceptionally(error);
+                }
+            });
+            Query.cancelling(result, call);
+        });
+        return Query.cancelling(result, permit);
+    }
+
+    private CompletableFuture<Void> permit(Executor blocking) {
+        CompletableFuture<Void> permit = new CompletableFuture<>();
+        if (limit.tryAcquire()) {
+            permit.complete(null);
+            return permit;
+        }
+        FutureTask<Void> waiting = new FutureTask<>(() -> {
+            try {
+                limit.acquire();
+            } catch (RuntimeException e) {
+                permit.completeExceptionally(e);
+                return null;
+            }
+            if (!permit.complete(null)) {
+                limit.abandon();
+            }
+            return null;
+        });
+        Query.cancelling(permit, waiting);
+        blocking.execute(waiting);
+        return permit;
+    }
+
+    @Override
+    public List<T> executeAll(List<Map<String, String>> params) {
+        limit.acquire();
+        return measured(() -> BatchQuery.executeAll(delegate, params));
+    }
+
+    private <R> R measured(Supplier<R> call) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            R result = call.get();
+            failed = false;
+            return result;
+        } finally {
+            limit.release(System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public Query<T> delegate() {
+        return delegate;
+    }
+}
+
+//limit startuje od initialConcurrent i plywa miedzy min a max; maxWait - najdluzsze czekanie w kolejce
+record BulkheadSettings(String datasource, Integer minConcurrent, Integer initialConcurrent, Integer maxConcurrent,
+                        Duration maxWait) {
+
+    BulkheadSettings {
+        if (maxConcurrent == null || maxConcurrent < 1) {
+            throw new IllegalArgumentException("Bulkhead " + datasource + " needs positive max-concurrent");
+        }
+        minConcurrent = minConcurrent == null ? 1 : minConcurrent;
+        initialConcurrent = initialConcurrent == null ? maxConcurrent : initialConcurrent;
+        if (minConcurrent < 1 || minConcurrent > initialConcurrent || initialConcurrent > maxConcurrent) {
+            throw new IllegalArgumentException("Bulkhead " + datasource + " needs 1 <= min <= initial <= max concurrent");
+        }
+    }
+
+    static BulkheadSettings fixed(String datasource, int maxConcurrent) {
+        return new BulkheadSettings(datasource, maxConcurrent, maxConcurrent, maxConcurrent, null);
+    }
+}
+
+@ConfigurationProperties("fraud.bulkheads")
+record BulkheadProperties(List<BulkheadSettings> datasources) {
+
+    BulkheadProperties {
+        datasources = datasources == null ? List.of() : datasources;
+    }
+}
+
+@Configuration
+@EnableConfigurationProperties(BulkheadProperties.class)
+class ConcurrencyLimitsConfig {
+
+    @Bean
+    ConcurrencyLimits concurrencyLimits(BulkheadProperties properties) {
+        return new ConcurrencyLimits(properties.datasources());
+    }
+
+    @Bean
+    MeterBinder bulkheadMetrics(ConcurrencyLimits limits) {
+        return registry -> limits.datasources().forEach(datasource -> {
+            Gauge.builder("fraud.bulkhead.limit", limits, l -> l.limit(datasource)).tag("datasource", datasource).register(registry);
+            Gauge.builder("fraud.bulkhead.available", limits, l -> l.available(datasource)).tag("datasource", datasource).register(registry);
+        });
+    }
+}
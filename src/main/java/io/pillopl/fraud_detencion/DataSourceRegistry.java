@@ -1,7 +1,11 @@
 package io.pillopl.fraud_detencion;
 
 import com.zaxxer.hikari.HikariDataSource;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.StatefulRedisConnection;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
@@ -12,9 +16,14 @@ import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Component;
 
 import javax.sql.DataSource;
-import java.sql.SQLException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.function.BiFunction;
+import java.util.stream.IntStream;
 
 
 @Component
@@ -47,14 +56,76 @@ class DataSourceDriver<T> {
     }
 }
 
+//JdbcTemplate i klient HTTP na kazda replike ClickHouse, glowna pierwsza - to samo zapytanie budujemy na kazdej (Hedging)
+//http == null: zapytania do ClickHouse blokujace, przez JDBC
+//pule pozostalych replik zamykamy sami - nie sa beanami
+class ClickHouseReplicas implements AutoCloseable {
+
+    private final List<JdbcTemplate> templates;
+    private final List<ClickHouseHttp> http;
+    private final List<HikariDataSource> owned;
+
+    ClickHouseReplicas(List<JdbcTemplate> templates, List<ClickHouseHttp> http, List<HikariDataSource> owned) {
+        if (http != null && http.size() != templates.size()) {
+            throw new IllegalArgumentException("ClickHouse needs one HTTP endpoint per replica: "
+                    + templates.size() + " replicas, " + http.size() + " endpoints");
+        }
+        this.templates = List.copyOf(templates);
+        this.http = http == null ? null : List.copyOf(http);
+        this.owned = owned;
+    }
+
+    static ClickHouseReplicas of(JdbcTemplate primary, List<HikariDataSource> others, List<ClickHouseHttp> http) {
+        List<JdbcTemplate> templates = new ArrayList<>();
+        templates.add(primary);
+        others.forEach(other -> templates.add(new JdbcTemplate(other)));
+        return new ClickHouseReplicas(templates, http, others);
+    }
+
+    <T> List<Query<T>> each(BiFunction<JdbcTemplate, ClickHouseHttp, Query<T>> query) {
+        return IntStream.range(0, templates.size())
+                .mapToObj(i -> query.apply(templates.get(i), http == null ? null : http.get(i)))
+                .toList();
+    }
+
+    @Override
+    public void close() {
+        owned.forEach(HikariDataSource::close);
+    }
+}
 
 @Configuration
 class ClickHouseJdbcConfig {
 
+    //pierwsza replika - glowna, przez nia ida wszystkie zapytania; pozostale tylko dla hedgingu (ClickHouseReplicas)
+    @Bean
+    DataSource clickHouseDataSource(@Value("${fraud.clickhouse.replicas:jdbc:clickhouse://localhost:8123/default}") List<String> replicas) {
+        return dataSource(replicas.getFirst());
+    }
+
+    @Bean
+    DataSourceDriver<JdbcTemplate> clickhouse(DataSource clickHouseDataSource) {
+        return new DataSourceDriver<>(new JdbcTemplate(clickHouseDataSource));
+    }
+
+    //fraud.clickhouse.http.replicas - te same serwery po HTTP, w tej samej kolejnosci co fraud.clickhouse.replicas
     @Bean
-    DataSource clickHouseDataSource() throws SQLException {
+    ClickHouseReplicas clickHouseReplicas(DataSourceDriver<JdbcTemplate> clickhouse,
+                                          @Value("${fraud.clickhouse.replicas:jdbc:clickhouse://localhost:8123/default}") List<String> replicas,
+                                          @Value("${fraud.clickhouse.http.enabled:false}") boolean httpEnabled,
+                                          @Value("${fraud.clickhouse.http.replicas:http://localhost:8123/}") List<URI> httpReplicas,
+                                          @Value("${fraud.clickhouse.http.timeout:2s}") Duration timeout) {
+        List<ClickHouseHttp> http = httpEnabled
+                ? httpReplicas.stream().map(url -> clickHouseHttp(url, timeout)).toList()
+                : null;
+        return ClickHouseReplicas.of(clickhouse.driver, replicas.subList(1, replicas.size()).stream()
+                .map(ClickHouseJdbcConfig::dataSource)
+                .toList(), http);
+    }
+
+    static HikariDataSource dataSource(String url) {
         HikariDataSource ds = new HikariDataSource();
-        ds.setJdbcUrl("jdbc:clickhouse://localhost:8123/default");
+        ds.setJdbcUrl(url);
         ds.setUsername("default");
         ds.setPassword("");
         ds.setDriverClassName("com.clickhouse.jdbc.ClickHouseDriver");
@@ -63,9 +134,20 @@ class ClickHouseJdbcConfig {
         return ds;
     }
 
+    //ten sam serwer po HTTP, dla nieblokujacych zapytan (Query.executeAsync) - bez puli polaczen JDBC
+    static ClickHouseHttp clickHouseHttp(URI url, Duration timeout) {
+        return ClickHouseHttp.create(url, "default", "", timeout);
+    }
+
+    //przed pierwszym zapytaniem - zapytania czytaja tabele agregatow zakladane przez migracje
     @Bean
-    DataSourceDriver<JdbcTemplate> clickhouse(DataSource clickHouseDataSource) {
-        return new DataSourceDriver<>(new JdbcTemplate(clickHouseDataSource));
+    ClickHouseMigrations clickHouseMigrations(DataSourceDriver<JdbcTemplate> clickhouse,
+                                              @Value("${fraud.clickhouse.migrations.enabled:true}") boolean enabled) {
+        ClickHouseMigrations migrations = ClickHouseMigrations.fromClasspath(clickhouse.driver, ClickHouseMigrations.DEFAULT_LOCATION);
+        if (enabled) {
+            migrations.migrate();
+        }
+        return migrations;
     }
 }
 
@@ -86,5 +168,33 @@ class RedisConfig {
         template.setValueSerializer(new StringRedisSerializer());
         return new DataSourceDriver<>(template);
     }
+
+    //osobne polaczenie Lettuce do natywnego async API - RedisTemplate ma tylko operacje blokujace
+    @Bean(destroyMethod = "shutdown")
+    RedisClient lettuceClient() {
+        return RedisClient.create(RedisURI.create("localhost", 6379));
+    }
+
+    @Bean(destroyMethod = "close")
+    StatefulRedisConnection<String, String> lettuceConnection(RedisClient lettuceClient) {
+        return lettuceClient.connect();
+    }
+
+    @Bean
+    RedisPipeline redisPipeline(DataSourceDriver<RedisTemplate<String, String>> redis,
+                                StatefulRedisConnection<String, String> lettuceConnection,
+                                @Value("${fraud.redis.pipeline.max-wait:1ms}") Duration maxWait,
+                                @Value("${fraud.redis.pipeline.max-batch-size:128}") int maxBatchSize) {
+        return new RedisPipeline(redis.driver, lettuceConnection.async(), maxWait, maxBatchSize);
+    }
+
+    @Bean
+    RedisSetMirror emailBlacklistMirror(DataSourceDriver<RedisTemplate<String, String>> redis,
+                                        @Value("${fraud.redis.mirror.emails.false-positive-rate:0.001}") double falsePositiveRate,
+                                        @Value("${fraud.redis.mirror.emails.refresh-interval:1s}") Duration refreshInterval) {
+        RedisSetMirror mirror = new RedisSetMirror(redis.driver, EmailOnBlacklist.KEY, falsePositiveRate);
+        mirror.start(refreshInterval);
+        return mirror;
+    }
 }
 
@@ -0,0 +1,50 @@
+package io.pillopl.fraud_detencion;
+
+import java.util.Optional;
+import java.util.OptionalLong;
+
+enum Verdict {
+    ALLOW, REVIEW, BLOCK
+}
+
+//pasma decyzji: score < allowBelow -> ALLOW, score >= blockAt -> BLOCK, pomiedzy -> REVIEW
+//zakladamy ze reguly nie daja ujemnego score - suma juz policzonych jest dolnym ograniczeniem wyniku
+record DecisionThresholds(int allowBelow, int blockAt) {
+
+    //bez progow - nic nie jest pewne przed policzeniem wszystkich regul
+    static final DecisionThresholds NONE = new DecisionThresholds(Integer.MIN_VALUE, Integer.MAX_VALUE);
+
+    DecisionThresholds {
+        if (allowBelow > blockAt) {
+            throw new IllegalArgumentException("Allow band must end before block band, was " + allowBelow + " > " + blockAt);
+        }
+    }
+
+    Verdict verdictFor(Score score) {
+        return verdictFor(score.score());
+    }
+
+    //werdykt jest pewny gdy najmniejszy i najwiekszy mozliwy wynik wpadaja w to samo pasmo
+    //maxRemaining empty = ktoras z pozostalych regul nie zna swojego maxScore
+    Optional<Verdict> certainVerdict(Score accumulated, OptionalLong maxRemaining) {
+        if (this.equals(NONE)) {
+            return Optional.empty();
+        }
+        Verdict lower = verdictFor(accumulated.score());
+        if (lower == Verdict.BLOCK) {
+            return Optional.of(Verdict.BLOCK);
+        }
+        if (maxRemaining.isEmpty()) {
+            return Optional.empty();
+        }
+        Verdict upper = verdictFor(accumulated.score() + maxRemaining.getAsLong());
+        return lower == upper ? Optional.of(lower) : Optional.empty();
+    }
+
+    private Verdict verdictFor(long score) {
+        if (score >= blockAt) {
+            return Verdict.BLOCK;
+        }
+        return score < allowBelow ? Verdict.ALLOW : Verdict.REVIEW;
+    }
+}
@@ -0,0 +1,211 @@
+package io.pillopl.fraud_detencion;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+//lancuchy i drzewa zaleznosci (A -> B -> C, A -> {B, C}) - DependentRule obsluguje tylko pare
+//kazdy wezel startuje jak tylko skonczy sie jego rodzic (i przejdzie warunek), niezalezne galezie ida rownolegle na `blocking`
+//- puli RuleScheduler, w jej limicie; zaden watek nie czeka na galaz, wiec graf nie zakleszczy ograniczonej puli
+//bez executora (calculate) galezie ida po kolei w watku wywolujacym
+//sciezka krytyczna = lancuch wezlow ktory skonczyl sie najpozniej - to ona wyznacza czas calej reguly
+//kazde wywolanie zapisuje ja w RuleMetrics scope'u (fraud.rule.critical-path) - widac ktory lancuch trzeba przyspieszyc
+class DependencyGraphRule implements Rule {
+
+    private final String id;
+    private final List<Node> roots;
+    private final List<Node> nodes;
+
+    DependencyGraphRule(String id, List<Node> roots) {
+        this.id = id;
+        this.roots = List.copyOf(roots);
+        this.nodes = flatten(roots);
+    }
+
+    @Override
+    public Score calculate(Map<String, String> params) {
+        return calculate(params, QueryScope.none());
+    }
+
+    @Override
+    public Score calculate(Map<String, String> params, QueryScope scope) {
+        return Query.await(calculateAsync(params, scope, Runnable::run));
+    }
+
+    @Override
+    public boolean nonBlocking() {
+        return true;
+    }
+
+    @Override
+    public CompletionStage<Score> calculateAsync(Map<String, String> params, QueryScope scope, Executor blocking) {
+        CompletableFuture<GraphExecution> execution = execute(params, scope, blocking);
+        return Query.cancelling(execution.thenApply(done -> {
+            scope.metrics().recordCriticalPath(id, done.criticalPath(), done.criticalNodes());
+            return done.score();
+        }), execution);
+    }
+
+    //pierwszy blad albo anulowanie konczy wynik od razu - wezly w toku dostaja przerwanie, kolejne juz nie startuja
+    CompletableFuture<GraphExecution> execute(Map<String, String> params, QueryScope scope, Executor blocking) {
+        long start = System.nanoTime();
+        Evaluation evaluation = new Evaluation(scope, blocking);
+        List<CompletableFuture<List<NodeOutcome>>> branches = roots.stream()
+                .map(root -> run(root, params, List.of(), evaluation))
+                .toList();
+        CompletableFuture<GraphExecution> result = new CompletableFuture<>();
+        branches.forEach(branch -> branch.whenComplete((outcomes, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+            }
+        }));
+        CompletableFuture.allOf(branches.toArray(CompletableFuture[]::new)).thenRun(() -> {
+            List<NodeOutcome> outcomes = new ArrayList<>();
+            branches.forEach(branch -> outcomes.addAll(branch.join()));
+            result.complete(GraphExecution.of(outcomes, start));
+        });
+        result.whenComplete((execution, error) -> {
+            if (error != null) {
+                evaluation.cancel();
+            }
+        });
+        return result;
+    }
+
+    private CompletableFuture<List<NodeOutcome>> run(Node node, Map<String, String> params, List<String> path, Evaluation evaluation) {
+        return evaluation.evaluate(node, params, path)
+                .thenCompose(outcome -> {
+                    List<CompletableFuture<List<NodeOutcome>>> children = new ArrayList<>();
+                    for (Node child : node.children()) {
+                        if (child.condition().test(outcome.result())) {
+                            Map<String, String> childParams = new HashMap<>(params);
+                            childParams.putAll(child.transmiter().apply(outcome.result()));
+                            children.add(run(child, childParams, outcome.path(), evaluation));
+                        }
+                    }
+                    return CompletableFuture.allOf(children.toArray(CompletableFuture[]::new)).thenApply(done -> {
+                        List<NodeOutcome> outcomes = new ArrayList<>();
+                        outcomes.add(outcome);
+                        children.forEach(child -> outcomes.addAll(child.join()));
+                        return outcomes;
+                    });
+                });
+    }
+
+    @Override
+    public List<Score> calculateAll(List<Map<String, String>> params) {
+        return params.stream().map(this::calculate).toList();
+    }
+
+    @Override
+    public String id() {
+        return id;
+    }
+
+    //jedno zrodlo danych tylko gdy caly graf z niego czyta - inaczej regula nie nalezy do zadnego
+    @Override
+    public Optional<RuleSource> ruleSource() {
+        Set<RuleSource> sources = new HashSet<>();
+        for (Node node : nodes) {
+            Optional<RuleSource> source = node.rule().ruleSource();
+            if (source.isEmpty()) {
+                return Optional.empty();
+            }
+            sources.add(source.get());
+        }
+        return sources.size() == 1 ? sources.stream().findFirst() : Optional.empty();
+    }
+
+    @Override
+    public Optional<Score> maxScore() {
+        return ScoreCheck.sumOfMax(nodes.stream().map(node -> node.rule().check).toList());
+    }
+
+    List<String> nodeIds() {
+        return nodes.stream().map(node -> node.rule().id()).toList();
+    }
+
+    private static List<Node> flatten(List<Node> roots) {
+        List<Node> all = new ArrayList<>();
+        Deque<Node> toVisit = new ArrayDeque<>(roots);
+        while (!toVisit.isEmpty()) {
+            Node node = toVisit.poll();
+            all.add(node);
+            toVisit.addAll(node.children());
+        }
+        return List.copyOf(all);
+    }
+
+    //condition / transmiter dotycza krawedzi od rodzica - dla korzenia nieuzywane
+    record Node(QueriedRule<Object> rule, Predicate<Object> condition, Function<Object, Map<String, String>> transmiter,
+                List<Node> children) {
+
+        Node {
+            condition = condition == null ? result -> true : condition;
+            transmiter = transmiter == null ? result -> Map.of() : transmiter;
+            children = List.copyOf(children);
+        }
+    }
+
+    //jedno wywolanie grafu: zapytania uruchomionych wezlow (do anulowania) i znacznik, ze kolejnych nie startujemy
+    private static final class Evaluation {
+        private final QueryScope scope;
+        private final Executor blocking;
+        private final List<Future<?>> started = new CopyOnWriteArrayList<>();
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+
+        Evaluation(QueryScope scope, Executor blocking) {
+            this.scope = scope;
+            this.blocking = blocking;
+        }
+
+        CompletableFuture<NodeOutcome> evaluate(Node node, Map<String, String> params, List<String> path) {
+            if (cancelled.get()) {
+                return CompletableFuture.failedFuture(new CancellationException("Graph evaluation cancelled before " + node.rule().id()));
+            }
+            CompletableFuture<Object> query = scope.executeAsync(node.rule().query, params, blocking).toCompletableFuture();
+            started.add(query);
+            if (cancelled.get()) {
+                query.cancel(true);
+            }
+            return query.thenApply(result -> {
+                List<String> nodePath = new ArrayList<>(path);
+                nodePath.add(node.rule().id());
+                return new NodeOutcome(node.rule().id(), result, node.rule().check.scoreOver(result), System.nanoTime(), nodePath);
+            });
+        }
+
+        void cancel() {
+            cancelled.set(true);
+            started.forEach(future -> future.cancel(true));
+        }
+    }
+
+    private record NodeOutcome(String id, Object result, Score score, long finishedAt, List<String> path) {
+    }
+
+    record GraphExecution(Score score, Duration criticalPath, List<String> criticalNodes) {
+
+        private static GraphExecution of(List<NodeOutcome> outcomes, long start) {
+            Score score = Score.zero();
+            NodeOutcome last = null;
+            for (NodeOutcome outcome : outcomes) {
+                score = score.add(outcome.score());
+                if (last == null || outcome.finishedAt() > last.finishedAt()) {
+                    last = outcome;
+                }
+            }
+            return last == null
+                    ? new GraphExecution(score, Duration.ZERO, List.of())
+                    : new GraphExecution(score, Duration.ofNanos(last.finishedAt() - start), List.copyOf(last.path()));
+        }
+    }
+}
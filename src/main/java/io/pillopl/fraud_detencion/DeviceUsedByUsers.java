@@ -2,23 +2,48 @@ package io.pillopl.fraud_detencion;
 
 import org.springframework.jdbc.core.JdbcTemplate;
 
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
 
-class DeviceUsedByUsers implements Query<Integer> {
+class DeviceUsedByUsers implements BatchQuery<Integer>, FusibleQuery<Integer> {
+
+    //czytamy dzienne stany uniqExact z login_device_daily (migracja V2) zamiast roku surowych login_events
+    private static final ClickHouseStatement SINGLE = ClickHouseStatement.of(
+            "SELECT " +
+            "  uniqExactMerge(users) AS user_count " +
+            "FROM login_device_daily " +
+            "WHERE device_id = {device_id:String} " +
+            "  AND day >= today() - INTERVAL 1 YEAR;");
+
+    private static final ClickHouseStatement BATCH = ClickHouseStatement.of(
+            "SELECT " +
+            "  device_id, " +
+            "  uniqExactMerge(users) AS user_count " +
+            "FROM login_device_daily " +
+            "WHERE device_id IN {device_id:Array(String)} " +
+            "  AND day >= today() - INTERVAL 1 YEAR " +
+            "GROUP BY device_id;");
 
     private final JdbcTemplate jdbcTemplate;
+    private final ClickHouseHttp http;
 
     DeviceUsedByUsers(JdbcTemplate jdbcTemplate) {
+        this(jdbcTemplate, null);
+    }
+
+    //z `http` pojedyncze zapytania ida nieblokujaco po HTTP, batche i sklejanie dalej przez JDBC
+    DeviceUsedByUsers(JdbcTemplate jdbcTemplate, ClickHouseHttp http) {
         this.jdbcTemplate = jdbcTemplate;
+        this.http = http;
     }
 
     @Override
     public Integer execute(Map<String, String> params) {
-        String sql = build(params.get("device_id"));
-        System.out.println(sql);
-        return jdbcTemplate.query(sql, rs -> {
+        ClickHouseStatement.Bound bound = SINGLE.bind(params);
+        return jdbcTemplate.query(bound.sql(), bound.args(), bound.types(), rs -> {
             if (rs.next()) {
-                System.out.println("🟢 Device uzyty: " + rs.getString("user_count"));
                 return rs.getInt("user_count");
             } else {
                 return 0;
@@ -26,18 +51,57 @@ class DeviceUsedByUsers implements Query<Integer> {
         });
     }
 
+    @Override
+    public boolean nonBlocking() {
+        return http != null;
+    }
+
+    @Override
+    public CompletionStage<Integer> executeAsync(Map<String, String> params, Executor blocking) {
+        if (http == null) {
+            return BatchQuery.super.executeAsync(params, blocking);
+        }
+        return http.query(SINGLE, params).thenApply(rows -> rows.isEmpty() ? 0 : Integer.parseInt(rows.getFirst().get("user_count")));
+    }
+
+    @Override
+    public List<Integer> executeAll(List<Map<String, String>> params) {
+        List<String> deviceIds = params.stream().map(p -> p.get("device_id")).distinct().toList();
+        Map<String, Integer> userCounts = new HashMap<>();
+        ClickHouseStatement.Bound bound = BATCH.bind(Map.of("device_id", deviceIds));
+        jdbcTemplate.query(bound.sql(), bound.args(), bound.types(), rs -> {
+            userCounts.put(rs.getString("device_id"), rs.getInt("user_count"));
+        });
+        return params.stream().map(p -> userCounts.getOrDefault(p.get("device_id"), 0)).toList();
+    }
+
+    @Override
+    public Map<String, String> boundParams(Map<String, String> params) {
+        return Query.select(params, "device_id");
+    }
+
     @Override
     public RuleSource ruleSource() {
-        return null;
+        return new RuleSource("clickhouse", "login_events");
     }
 
-    private String build(String deviceId) {
-        return  "SELECT " +
-                "  count(DISTINCT user_id) AS user_count " +
-                "FROM login_events " +
-                "WHERE device_id = '" + deviceId + "' " +
-                "  AND event_time >= now() - INTERVAL 1 YEAR;";
+    @Override
+    public Fusion fusion() {
+        return new Fusion(jdbcTemplate, "login_device_daily", "day >= today() - INTERVAL 1 YEAR");
     }
-}
 
+    @Override
+    public List<Aggregate> aggregates() {
+        return List.of(new Aggregate("user_count", "uniqExactMergeIf(users, device_id = {device_id:String})"));
+    }
 
+    @Override
+    public String rowFilter() {
+        return "device_id = {device_id:String}";
+    }
+
+    @Override
+    public Integer read(Function<String, Object> column) {
+        return ((Number) column.apply("user_count")).intValue();
+    }
+}
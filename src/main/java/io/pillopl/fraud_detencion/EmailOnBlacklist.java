@@ -1,31 +1,16 @@
 package io.pillopl.fraud_detencion;
 
-import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.jdbc.core.JdbcTemplate;
+class EmailOnBlacklist extends RedisSetMembershipQuery {
 
-import java.util.Map;
+    static final String KEY = "blacklist:emails";
 
-class EmailOnBlacklist implements Query<Boolean> {
-
-    private final RedisTemplate redisTemplate;
-
-    EmailOnBlacklist(RedisTemplate redisTemplate) {
-        this.redisTemplate = redisTemplate;
-    }
-
-    @Override
-    public Boolean execute(Map<String, String> params) {
-        Boolean email = redisTemplate.opsForSet().isMember("blacklist:emails", params.get("email"));
-        System.out.println(email);
-        return email;
+    EmailOnBlacklist(RedisPipeline pipeline) {
+        super(pipeline, KEY, "email", new RuleSource("redis", "emails"));
     }
 
-    @Override
-    public RuleSource ruleSource() {
-        return new RuleSource("redis", "emails");
+    EmailOnBlacklist(RedisPipeline pipeline, RedisSetMirror mirror) {
+        super(pipeline, KEY, "email", new RuleSource("redis", "emails"), mirror);
     }
 
-
 }
 
-
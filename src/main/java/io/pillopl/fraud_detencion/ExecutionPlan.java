@@ -15,6 +15,26 @@ record ExecutionStrategy(int costFactor,
                          int scoreFactor) {
 }
 
+//ile pracy zmiesci sie w jednym requescie: deadline * parallelism i opcjonalny limit kosztu
+record ExecutionBudget(Duration deadline, int parallelism, int maxCost) {
+
+    ExecutionBudget(Duration deadline, int parallelism) {
+        this(deadline, parallelism, Integer.MAX_VALUE);
+    }
+
+    static ExecutionBudget unlimited() {
+        return new ExecutionBudget(Duration.ofMillis(Integer.MAX_VALUE), 1);
+    }
+
+    long timeCapacityMillis() {
+        return deadline.toMillis() * parallelism;
+    }
+
+    boolean hasCostLimit() {
+        return maxCost != Integer.MAX_VALUE;
+    }
+}
+
 
 class ExecutionConfig {
 
@@ -22,10 +42,15 @@ class ExecutionConfig {
         Knapsack, ML, Greedy
     }
 
+    //wspolny dla wszystkich configow - config powstaje per request, a memo planera ma sens tylko miedzy requestami
+    private static final KnapsackPlanner KNAPSACK = new KnapsackPlanner();
+
     private ExecutionStrategy executionStrategy;
     private RulesConfig config;
     private RulesStats rulesStats = RulesStats.empty();
     private SortingAlgorithm sortingAlgorithm = Greedy;
+    private ExecutionBudget budget = ExecutionBudget.unlimited();
+    private MlPlanner mlPlanner = MlPlanner.untrained();
 
 
     ExecutionConfig(ExecutionStrategy executionStrategy, RulesConfig config, RulesStats rulesStats) {
@@ -34,16 +59,32 @@ class ExecutionConfig {
         this.rulesStats = rulesStats;
     }
 
+    ExecutionConfig(ExecutionStrategy executionStrategy, RulesConfig config, RulesStats rulesStats,
+                    SortingAlgorithm sortingAlgorithm, ExecutionBudget budget) {
+        this(executionStrategy, config, rulesStats);
+        this.sortingAlgorithm = sortingAlgorithm;
+        this.budget = budget;
+    }
+
+    ExecutionConfig(ExecutionStrategy executionStrategy, RulesConfig config, RulesStats rulesStats,
+                    SortingAlgorithm sortingAlgorithm, ExecutionBudget budget, MlPlanner mlPlanner) {
+        this(executionStrategy, config, rulesStats, sortingAlgorithm, budget);
+        this.mlPlanner = mlPlanner;
+    }
+
     void handle(RulesExecuted event) {
-        event.ruleExecutions().forEach(ruleExecution -> {
-            rulesStats.update(ruleExecution);
-        });
+        rulesStats.handle(event);
     }
 
     ExecutionPlan calculatePlan() {
+        return calculatePlan(Map.of());
+    }
+
+    //params sa potrzebne tylko ML - Greedy i Knapsack licza plan ze statystyk, wspolny dla wszystkich requestow
+    ExecutionPlan calculatePlan(Map<String, String> params) {
         List<Rule> independentRules = switch (sortingAlgorithm) {
-            case Knapsack -> null;
-            case ML -> null;
+            case Knapsack -> KNAPSACK.plan(config.rules(), rulesStats, budget);
+            case ML -> mlPlanner.plan(config.rules(), params, rulesStats);
             case Greedy -> applyGreedyHeuristic();
         };
         return new ExecutionPlan(independentRules);
@@ -51,13 +92,15 @@ class ExecutionConfig {
 
     private List<Rule> applyGreedyHeuristic() {
         List<Rule> rules = config.rules().stream().toList();
+        Map<String, Double> weights = new HashMap<>();
+        for (Rule rule : rules) {
+            RuleStatsSnapshot stat = rulesStats.get(rule.id()).orElse(new RuleStats(rule.id())).snapshot();
+            weights.put(rule.id(), executionStrategy.costFactor() * stat.avgCost()
+                    + executionStrategy.timeFactor() * stat.avgDurationMillis()
+                    - executionStrategy.scoreFactor() * stat.avgScore());
+        }
         return rules.stream()
-                .sorted(Comparator.comparingDouble(rule -> {
-                    RuleStats stat = rulesStats.get(rule.id()).orElse(new RuleStats(rule.id()));
-                    return executionStrategy.costFactor() * stat.avgCost()
-                            + executionStrategy.timeFactor() * stat.avgDurationMillis()
-                            - executionStrategy.scoreFactor() * stat.avgScore();
-                }))
+                .sorted(Comparator.comparingDouble(rule -> weights.get(rule.id())))
                 .toList();
     }
 
@@ -70,6 +113,8 @@ class Simulation {
     private ExecutionStrategy strategy;
     private Duration deadline;
     private int parallelism;
+    private int maxCost = Integer.MAX_VALUE;
+    private ExecutionConfig.SortingAlgorithm sortingAlgorithm = Greedy;
 
     private Simulation(List<Rule> rules) {
         this.rules = new RulesConfig(rules);
@@ -94,8 +139,19 @@ class Simulation {
         return this;
     }
 
+    public Simulation andCostLimitOf(int maxCost) {
+        this.maxCost = maxCost;
+        return this;
+    }
+
+    public Simulation using(ExecutionConfig.SortingAlgorithm sortingAlgorithm) {
+        this.sortingAlgorithm = sortingAlgorithm;
+        return this;
+    }
+
     public SimulationResult runWith(RulesStats stats) {
-        ExecutionConfig executionConfig = new ExecutionConfig(strategy, rules, stats);
+        ExecutionConfig executionConfig = new ExecutionConfig(strategy, rules, stats, sortingAlgorithm,
+                new ExecutionBudget(deadline, parallelism, maxCost));
         ExecutionPlan executionPlan = executionConfig.calculatePlan();
         PriorityQueue<Double> threads = new PriorityQueue<>(parallelism); // holds finish times
         int totalScore = 0;
@@ -0,0 +1,88 @@
+package io.pillopl.fraud_detencion;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.function.Consumer;
+
+//zdarzenia z ktorych FeatureStore liczy cechy - te same co trafiaja do login_events / transactions
+sealed interface FeatureEvent permits LoginEvent, TransactionEvent {
+
+    Instant at();
+}
+
+record LoginEvent(Instant at, String userId, String deviceId, String userAgent) implements FeatureEvent {
+}
+
+record TransactionEvent(Instant at, String userId, double amount) implements FeatureEvent {
+}
+
+//odtwarzanie zdarzen z pliku (testy, rozgrzanie sklepu bez ClickHouse) - jedna linia = jedno zdarzenie, pola po tabulatorze:
+//  login       <epoch millis>  <user_id>  <device_id>  <user_agent>
+//  transaction <epoch millis>  <user_id>  <amount>
+//plik mapowany do pamieci kawalkami (FileChannel.map) - bez kopiowania przez bufor strumienia
+final class FeatureEventReplay {
+
+    private static final int CHUNK = 64 * 1024 * 1024;
+
+    private FeatureEventReplay() {
+    }
+
+    //zwraca liczbe odtworzonych zdarzen
+    static long replay(Path file, Consumer<FeatureEvent> consumer) {
+        return replay(file, consumer, CHUNK);
+    }
+
+    static long replay(Path file, Consumer<FeatureEvent> consumer, int chunk) {
+        long events = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                long length = Math.min(chunk, size - position);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int end = (int) length;
+                //ostatnia niepelna linia kawalka idzie do nastepnego
+                if (position + length < size) {
+                    while (end > 0 && buffer.get(end - 1) != '\n') {
+                        end--;
+                    }
+                    if (end == 0) {
+                        throw new IllegalStateException("Line longer than " + chunk + " bytes at offset " + position + " in " + file);
+                    }
+                }
+                int start = 0;
+                for (int i = 0; i <= end; i++) {
+                    if (i == end || buffer.get(i) == '\n') {
+                        if (i > start) {
+                            byte[] line = new byte[i - start];
+                            buffer.get(start, line);
+                            consumer.accept(parse(new String(line, StandardCharsets.UTF_8)));
+                            events++;
+                        }
+                        start = i + 1;
+                    }
+                }
+                position += end;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return events;
+    }
+
+    static FeatureEvent parse(String line) {
+        String[] fields = line.stripTrailing().split("\t");
+        Instant at = Instant.ofEpochMilli(Long.parseLong(fields[1]));
+        return switch (fields[0]) {
+            case "login" -> new LoginEvent(at, fields[2], fields[3], fields[4]);
+            case "transaction" -> new TransactionEvent(at, fields[2], Double.parseDouble(fields[3]));
+            default -> throw new IllegalArgumentException("Unknown event type: " + fields[0]);
+        };
+    }
+}
@@ -0,0 +1,285 @@
+package io.pillopl.fraud_detencion;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+//cechy z login_events i transactions trzymane w procesie, aktualizowane zdarzenie po zdarzeniu
+//te same okna co zapytania do ClickHouse: logowania 1 rok (kubelki tygodniowe), transakcje 30 dni (dzienne)
+//pamiec ograniczona z gory (Settings) - klucz ktory sie nie zmiescil nie jest sledzony, a zapytania o niego
+//ida do ClickHouse (FeatureStoreQuery); sloty nie sa zwalniane gdy klucz wypadnie z okna
+//klucza ktorego sklep nie zna nie traktujemy jak zera - mogl pojawic sie po bootstrapie, odpowiada ClickHouse
+//sklep odpowiada tylko gdy jest swiezy: ostatni bootstrap albo najnowsze zdarzenie z accept() mlodsze niz maxStaleness
+//jeden pisarz (accept / bootstrap / reset), czytelnicy bez blokowania - StampedLock z optymistycznym odczytem
+class FeatureStore {
+
+    static final int LOGIN_WINDOW_DAYS = 365;
+    static final int LOGIN_BUCKET_DAYS = 7;
+    static final int TRANSACTION_WINDOW_DAYS = 30;
+    static final Duration DEFAULT_MAX_STALENESS = Duration.ofMinutes(15);
+
+    private final Clock clock;
+    private final Duration maxStaleness;
+    private final StampedLock lock = new StampedLock();
+    private final Slots users;
+    private final Slots userAgents;
+    private final Slots devices;
+    private final Slots deviceUsers;
+    private final RollingCounters loginsByUser;
+    private final RollingCounters loginsByUserAgent;
+    private final RollingCounters usersByDevice;
+    private final RollingCounters transactionsByUser;
+    private final long[] lastSeenOnDevice;
+    //klucz ktoremu zabraklo slotu na pare (user, user_agent) / (urzadzenie, user) - jego cechy sa niepelne
+    private final boolean[] userAgentsIncomplete;
+    private final boolean[] deviceIncomplete;
+    private volatile boolean ready;
+    private volatile Instant freshAsOf = Instant.MIN;
+
+    FeatureStore(Settings settings, Clock clock) {
+        this(settings, DEFAULT_MAX_STALENESS, clock);
+    }
+
+    FeatureStore(Settings settings, Duration maxStaleness, Clock clock) {
+        this.clock = clock;
+        this.maxStaleness = maxStaleness;
+        this.users = new Slots(settings.maxUsers());
+        this.userAgents = new Slots(settings.maxUserAgents());
+        this.devices = new Slots(settings.maxDevices());
+        this.deviceUsers = new Slots(settings.maxDeviceUsers());
+        this.loginsByUser = new RollingCounters(settings.maxUsers(), LOGIN_WINDOW_DAYS, LOGIN_BUCKET_DAYS);
+        this.loginsByUserAgent = new RollingCounters(settings.maxUserAgents(), LOGIN_WINDOW_DAYS, LOGIN_BUCKET_DAYS);
+        this.usersByDevice = new RollingCounters(settings.maxDevices(), LOGIN_WINDOW_DAYS, LOGIN_BUCKET_DAYS);
+        this.transactionsByUser = new RollingCounters(settings.maxUsers(), TRANSACTION_WINDOW_DAYS, 1);
+        this.lastSeenOnDevice = new long[settings.maxDeviceUsers()];
+        Arrays.fill(lastSeenOnDevice, Long.MIN_VALUE);
+        this.userAgentsIncomplete = new boolean[settings.maxUsers()];
+        this.deviceIncomplete = new boolean[settings.maxDevices()];
+    }
+
+    void accept(FeatureEvent event) {
+        switch (event) {
+            case LoginEvent login -> {
+                long day = day(login.at());
+                logins(login.userId(), login.userAgent(), day, 1);
+                seenOnDevice(login.deviceId(), login.userId(), day);
+            }
+            case TransactionEvent transaction -> transactions(transaction.userId(), day(transaction.at()), 1, transaction.amount());
+        }
+        if (event.at().isAfter(freshAsOf)) {
+            freshAsOf = event.at();
+        }
+    }
+
+    //do bootstrapu: od razu zagregowane liczniki z dnia
+    void logins(String userId, String userAgent, long day, long count) {
+        long stamp = lock.writeLock();
+        try {
+            int user = users.assign(userId);
+            if (user >= 0) {
+                loginsByUser.add(user, day, count, 0);
+            }
+            int pair = userAgents.assign(pairKey(userId, userAgent));
+            if (pair >= 0) {
+                loginsByUserAgent.add(pair, day, count, 0);
+            } else if (user >= 0) {
+                userAgentsIncomplete[user] = true;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    //rozni uzytkownicy urzadzenia: licznik trzymamy w kubelku ostatniego logowania pary (urzadzenie, user)
+    //kolejne logowanie w pozniejszym kubelku przenosi ja - suma kubelkow w oknie = liczba roznych userow
+    void seenOnDevice(String deviceId, String userId, long day) {
+        long stamp = lock.writeLock();
+        try {
+            int device = devices.assign(deviceId);
+            int pair = deviceUsers.assign(pairKey(deviceId, userId));
+            if (device < 0) {
+                return;
+            }
+            if (pair < 0) {
+                deviceIncomplete[device] = true;
+                return;
+            }
+            long previous = lastSeenOnDevice[pair];
+            if (previous != Long.MIN_VALUE && Math.floorDiv(previous, LOGIN_BUCKET_DAYS) >= Math.floorDiv(day, LOGIN_BUCKET_DAYS)) {
+                return;
+            }
+            if (previous != Long.MIN_VALUE) {
+                usersByDevice.add(device, previous, -1, 0);
+            }
+            usersByDevice.add(device, day, 1, 0);
+            lastSeenOnDevice[pair] = day;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    void transactions(String userId, long day, long count, double amount) {
+        long stamp = lock.writeLock();
+        try {
+            int user = users.assign(userId);
+            if (user >= 0) {
+                transactionsByUser.add(user, day, count, amount);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    //do czasu zaladowania historii wszystkie odczyty ida do ClickHouse; stan z bootstrapu jest aktualny na teraz
+    void markReady() {
+        Instant now = clock.instant();
+        if (now.isAfter(freshAsOf)) {
+            freshAsOf = now;
+        }
+        ready = true;
+    }
+
+    //przed ponownym bootstrapem - do markReady() odczyty znow ida do ClickHouse
+    void reset() {
+        long stamp = lock.writeLock();
+        try {
+            ready = false;
+            freshAsOf = Instant.MIN;
+            users.clear();
+            userAgents.clear();
+            devices.clear();
+            deviceUsers.clear();
+            loginsByUser.clear();
+            loginsByUserAgent.clear();
+            usersByDevice.clear();
+            transactionsByUser.clear();
+            Arrays.fill(lastSeenOnDevice, Long.MIN_VALUE);
+            Arrays.fill(userAgentsIncomplete, false);
+            Arrays.fill(deviceIncomplete, false);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    boolean fresh() {
+        return ready && !clock.instant().isAfter(freshAsOf.plus(maxStaleness));
+    }
+
+    Optional<Double> userAgentPercentage(String userId, String userAgent) {
+        long today = today();
+        return read(() -> {
+            int user = users.slot(userId);
+            if (user < 0) {
+                return null;
+            }
+            int pair = userAgents.slot(pairKey(userId, userAgent));
+            if (userAgentsIncomplete[user]) {
+                return null;
+            }
+            long matching = pair < 0 ? 0 : loginsByUserAgent.count(pair, today);
+            return UserAgentPercentageUsageQuery.percent(matching, loginsByUser.count(user, today));
+        });
+    }
+
+    Optional<Integer> deviceUsers(String deviceId) {
+        long today = today();
+        return read(() -> {
+            int device = devices.slot(deviceId);
+            if (device < 0) {
+                return null;
+            }
+            return deviceIncomplete[device] ? null : (int) usersByDevice.count(device, today);
+        });
+    }
+
+    Optional<TransactionsView> transactions(String userId) {
+        long today = today();
+        return read(() -> {
+            int user = users.slot(userId);
+            if (user < 0) {
+                return null;
+            }
+            long count = transactionsByUser.count(user, today);
+            double total = transactionsByUser.sum(user, today);
+            return new TransactionsView(total, count == 0 ? 0 : total / count);
+        });
+    }
+
+    //null z odczytu = sklep nie zna odpowiedzi
+    private <T> Optional<T> read(Supplier<T> reader) {
+        if (!fresh()) {
+            return Optional.empty();
+        }
+        long stamp = lock.tryOptimisticRead();
+        T value = reader.get();
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                value = reader.get();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return Optional.ofNullable(value);
+    }
+
+    private long today() {
+        return LocalDate.now(clock.withZone(ZoneOffset.UTC)).toEpochDay();
+    }
+
+    private static long day(Instant at) {
+        return LocalDate.ofInstant(at, ZoneOffset.UTC).toEpochDay();
+    }
+
+    private static String pairKey(String first, String second) {
+        return first + '\u0000' + second;
+    }
+
+    record Settings(int maxUsers, int maxUserAgents, int maxDevices, int maxDeviceUsers) {
+
+        //na klucz: ~1.3KB w widokach logowan (53 kubelki * 24B), ~0.75KB transakcji (31 kubelkow)
+        static Settings forKeys(int maxKeys) {
+            return new Settings(maxKeys, maxKeys, maxKeys, maxKeys);
+        }
+    }
+
+    //klucz -> numer slotu w tablicach; przydzial tylko przez pisarza, odczyt z dowolnego watku
+    private static final class Slots {
+        private final Map<String, Integer> slots = new ConcurrentHashMap<>();
+        private final int capacity;
+
+        Slots(int capacity) {
+            this.capacity = capacity;
+        }
+
+        int slot(String key) {
+            Integer slot = slots.get(key);
+            return slot == null ? -1 : slot;
+        }
+
+        int assign(String key) {
+            Integer slot = slots.get(key);
+            if (slot != null) {
+                return slot;
+            }
+            if (slots.size() >= capacity) {
+                return -1;
+            }
+            int assigned = slots.size();
+            slots.put(key, assigned);
+            return assigned;
+        }
+
+        void clear() {
+            slots.clear();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package io.pillopl.fraud_detencion;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+//stan FeatureStore z ClickHouse - przy starcie i (bez strumienia zdarzen) co `refreshInterval` od nowa,
+//zeby sklep nie przekroczyl swojego maxStaleness; czytane strumieniowo (RowCallbackHandler)
+//logowania z rollupu login_user_agent_daily; pary (urzadzenie, user) i transakcje z surowych tabel,
+//bo rollupy trzymaja tylko stany agregatow (uniqExact nie powie ktorzy userzy, avg nie powie ile transakcji)
+class FeatureStoreBootstrap implements AutoCloseable {
+
+    private static final String LOGINS =
+            "SELECT user_id, user_agent, day, countMerge(logins) AS logins " +
+            "FROM login_user_agent_daily " +
+            "WHERE day >= today() - INTERVAL 1 YEAR " +
+            "GROUP BY user_id, user_agent, day";
+
+    private static final String DEVICE_USERS =
+            "SELECT device_id, user_id, max(toDate(event_time)) AS last_seen " +
+            "FROM login_events " +
+            "WHERE event_time >= now() - INTERVAL 1 YEAR " +
+            "GROUP BY device_id, user_id";
+
+    private static final String TRANSACTIONS =
+            "SELECT user_id, toDate(transaction_time) AS day, count() AS transactions, sum(amount) AS total " +
+            "FROM transactions " +
+            "WHERE transaction_time >= now() - INTERVAL 30 DAY " +
+            "GROUP BY user_id, day";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ScheduledExecutorService reloader = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("feature-store-reload").daemon().factory());
+
+    FeatureStoreBootstrap(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    //zdarzenia ze strumienia puszczamy do sklepu dopiero po load() - inaczej policzylibysmy je dwa razy
+    void load(FeatureStore store) {
+        jdbcTemplate.query(LOGINS, rs -> {
+            store.logins(rs.getString("user_id"), rs.getString("user_agent"), day(rs.getObject("day", LocalDate.class)), rs.getLong("logins"));
+        });
+        jdbcTemplate.query(DEVICE_USERS, rs -> {
+            store.seenOnDevice(rs.getString("device_id"), rs.getString("user_id"), day(rs.getObject("last_seen", LocalDate.class)));
+        });
+        jdbcTemplate.query(TRANSACTIONS, rs -> {
+            store.transactions(rs.getString("user_id"), day(rs.getObject("day", LocalDate.class)), rs.getLong("transactions"), rs.getDouble("total"));
+        });
+        store.markReady();
+    }
+
+    //w trakcie przeladowania sklep nie odpowiada - odczyty ida do ClickHouse
+    void reload(FeatureStore store) {
+        store.reset();
+        load(store);
+    }
+
+    void start(FeatureStore store, Duration refreshInterval) {
+        reloader.scheduleWithFixedDelay(() -> reloadQuietly(store), refreshInterval.toMillis(), refreshInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void reloadQuietly(FeatureStore store) {
+        try {
+            reload(store);
+        } catch (RuntimeException e) {
+            //sklep zostaje pusty (nie ready) - odczyty ida do ClickHouse, nastepna proba za refreshInterval
+        }
+    }
+
+    @Override
+    public void close() {
+        reloader.shutdownNow();
+    }
+
+    private static long day(LocalDate date) {
+        return date.toEpochDay();
+    }
+}
@@ -0,0 +1,86 @@
+package io.pillopl.fraud_detencion;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+
+//odczyt cechy z FeatureStore (mikrosekundy) zamiast zapytania do ClickHouse
+//gdy sklep nie zna odpowiedzi (jeszcze nie zaladowany, klucz sie nie zmiescil) - zapytanie `fallback`
+abstract class FeatureStoreQuery<T> implements Query<T> {
+
+    protected final FeatureStore store;
+    private final Query<T> fallback;
+
+    FeatureStoreQuery(FeatureStore store, Query<T> fallback) {
+        this.store = store;
+        this.fallback = fallback;
+    }
+
+    abstract Optional<T> read(Map<String, String> params);
+
+    @Override
+    public T execute(Map<String, String> params) {
+        return read(params).orElseGet(() -> fallback.execute(params));
+    }
+
+    //odczyt ze sklepu nie blokuje - o tym czy zapytanie jest nieblokujace decyduje fallback
+    @Override
+    public boolean nonBlocking() {
+        return fallback.nonBlocking();
+    }
+
+    @Override
+    public CompletionStage<T> executeAsync(Map<String, String> params, Executor blocking) {
+        return read(params).<CompletionStage<T>>map(CompletableFuture::completedFuture)
+                .orElseGet(() -> fallback.executeAsync(params, blocking));
+    }
+
+    @Override
+    public Map<String, String> boundParams(Map<String, String> params) {
+        return fallback.boundParams(params);
+    }
+
+    //ten sam widok, inne zrodlo - bez polityki cache i z osobnymi metrykami
+    @Override
+    public RuleSource ruleSource() {
+        return new RuleSource("feature-store", fallback.ruleSource().view());
+    }
+}
+
+class StoredUserAgentPercentage extends FeatureStoreQuery<Double> {
+
+    StoredUserAgentPercentage(FeatureStore store, Query<Double> fallback) {
+        super(store, fallback);
+    }
+
+    @Override
+    Optional<Double> read(Map<String, String> params) {
+        return store.userAgentPercentage(params.get("user_id"), params.get("user_agent"));
+    }
+}
+
+class StoredDeviceUsers extends FeatureStoreQuery<Integer> {
+
+    StoredDeviceUsers(FeatureStore store, Query<Integer> fallback) {
+        super(store, fallback);
+    }
+
+    @Override
+    Optional<Integer> read(Map<String, String> params) {
+        return store.deviceUsers(params.get("device_id"));
+    }
+}
+
+class StoredTransactions extends FeatureStoreQuery<TransactionsView> {
+
+    StoredTransactions(FeatureStore store, Query<TransactionsView> fallback) {
+        super(store, fallback);
+    }
+
+    @Override
+    Optional<TransactionsView> read(Map<String, String> params) {
+        return store.transactions(params.get("user_id"));
+    }
+}
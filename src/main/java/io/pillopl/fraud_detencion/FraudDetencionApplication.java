@@ -1,25 +1,91 @@
 package io.pillopl.fraud_detencion;
 
 import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
-import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.context.annotation.DependsOn;
 import org.springframework.jdbc.core.JdbcTemplate;
 
+import java.time.Clock;
 import java.time.Duration;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
-
-import static java.util.concurrent.CompletableFuture.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @SpringBootApplication
+@DependsOn("clickHouseMigrations")
 public class FraudDetencionApplication {
 
-    FraudDetencionApplication(JdbcTemplate jdbcTemplate, RedisTemplate redisTemplate) {
+    FraudDetencionApplication(JdbcTemplate jdbcTemplate, RedisPipeline redisPipeline, RedisSetMirror emailBlacklistMirror,
+                              QueryResultCache queryCache, RuleMetrics metrics, ConcurrencyLimits limits,
+                              ClickHouseReplicas replicas, Hedging hedging,
+                              @Value("${fraud.rules.parallelism:20}") int parallelism,
+                              @Value("${fraud.rules.executor:Platform}") ExecutorMode executorMode,
+                              @Value("${fraud.rules.platform-threads:60}") int platformThreads,
+                              @Value("${fraud.planning.drift-threshold:0.2}") double driftThreshold,
+                              @Value("${fraud.planning.refresh-interval:1s}") Duration replanInterval,
+                              @Value("${fraud.planning.algorithm:Greedy}") ExecutionConfig.SortingAlgorithm algorithm,
+                              @Value("${fraud.planning.deadline:200ms}") Duration planningDeadline,
+                              @Value("${fraud.planning.max-cost:#{null}}") Integer planningMaxCost,
+                              @Value("${fraud.decision.allow-below:30}") int allowBelow,
+                              @Value("${fraud.decision.block-at:100}") int blockAt,
+                              @Value("${fraud.feature-store.enabled:false}") boolean featureStoreEnabled,
+                              @Value("${fraud.feature-store.max-keys:100000}") int featureStoreMaxKeys,
+                              @Value("${fraud.feature-store.max-staleness:15m}") Duration featureStoreMaxStaleness,
+                              @Value("${fraud.feature-store.refresh-interval:10m}") Duration featureStoreRefreshInterval,
+                              @Value("${fraud.coalescing.enabled:false}") boolean coalescingEnabled,
+                              @Value("${fraud.coalescing.max-wait:2ms}") Duration coalescingMaxWait,
+                              @Value("${fraud.coalescing.max-batch-size:64}") int coalescingMaxBatchSize) {
         this.jdbcTemplate = jdbcTemplate;
-        this.redisTemplate = redisTemplate;
+        this.redisPipeline = redisPipeline;
+        this.emailBlacklistMirror = emailBlacklistMirror;
+        this.queryCache = queryCache;
+        this.limits = limits;
+        this.replicas = replicas;
+        this.hedging = hedging;
+        this.executors = executorMode.executor(platformThreads);
+        this.algorithm = algorithm;
+        this.thresholds = new DecisionThresholds(allowBelow, blockAt);
+        this.mlPlanner = MlPlanner.untrained(thresholds);
+        this.scheduler = new RuleScheduler(executors, parallelism, metrics, event -> {
+            rulesStats.handle(event);
+            if (algorithm == ExecutionConfig.SortingAlgorithm.ML) {
+                mlPlanner.handle(event);
+            }
+        });
+        //bez strumienia zdarzen sklep jest przeladowywany w calosci co refresh-interval (krocej niz max-staleness)
+        this.featureStore = featureStoreEnabled
+                ? new FeatureStore(FeatureStore.Settings.forKeys(featureStoreMaxKeys), featureStoreMaxStaleness, Clock.systemUTC())
+                : null;
+        this.featureStoreBootstrap = featureStoreEnabled ? new FeatureStoreBootstrap(jdbcTemplate) : null;
+        if (featureStore != null) {
+            featureStoreBootstrap.load(featureStore);
+            featureStoreBootstrap.start(featureStore, featureStoreRefreshInterval);
+        }
+        this.rulesConfig = new RulesConfig(loadRules());
+        //zamiast planu i RuleScheduler per request - requesty sklejane w zapytania batchowe (kosztem kilku ms czekania)
+        this.coalescingTimer = coalescingEnabled ? Executors.newSingleThreadScheduledExecutor() : null;
+        this.coalescing = coalescingEnabled
+                ? new CoalescingRuleEngine(rulesConfig.rules(), new CoalescingPolicy(coalescingMaxWait, coalescingMaxBatchSize),
+                        coalescingTimer, executors)
+                : null;
+        //ile pracy miesci sie w requescie: deadline * parallelism schedulera, opcjonalnie limit zapytan (kosztu)
+        this.budget = new ExecutionBudget(planningDeadline, parallelism,
+                planningMaxCost == null ? Integer.MAX_VALUE : planningMaxCost);
+        this.plans = new PlanCache(rulesStats, algorithm, budget, driftThreshold);
+        if (algorithm == ExecutionConfig.SortingAlgorithm.ML) {
+            this.mlPlanner.start();
+        } else {
+            this.plans.start(replanInterval);
+        }
     }
 
     public static void main(String[] args) {
@@ -27,18 +93,43 @@ public class FraudDetencionApplication {
     }
 
     private final JdbcTemplate jdbcTemplate;
-    private final RedisTemplate redisTemplate;
-    private final ExecutorService executors = Executors.newFixedThreadPool(60);
+    private final RedisPipeline redisPipeline;
+    private final RedisSetMirror emailBlacklistMirror;
+    private final QueryResultCache queryCache;
+    private final ConcurrencyLimits limits;
+    private final ClickHouseReplicas replicas;
+    private final Hedging hedging;
+    private final ExecutorService executors;
+    private final RulesStats rulesStats = RulesStats.empty();
+    private final MlPlanner mlPlanner;
+    private final ExecutionConfig.SortingAlgorithm algorithm;
+    private final DecisionThresholds thresholds;
+    private final ExecutionBudget budget;
+    private final RuleScheduler scheduler;
+    private final FeatureStore featureStore; //null = cechy zawsze z ClickHouse
+    private final FeatureStoreBootstrap featureStoreBootstrap;
+    private final RulesConfig rulesConfig;
+    private final ScheduledExecutorService coalescingTimer;
+    private final CoalescingRuleEngine coalescing; //null = kazdy request osobno, przez RuleScheduler
+    private final PlanCache plans;
+    private final ExecutionStrategy strategy = new ExecutionStrategy(1, 1, 1);
 
     @PostConstruct
     public void run() {
         try {
-            testRules(1, 200000, "user_1231", "Firefox", "device_56648", "email"); //warmup
-            System.out.println("-----");
-            testRules(2, 200, "user_1234", "Firefox2", "device_56641", "email");
-            testRules(3, 209, "user_1234", "Firefox2", "device_56641", "email");
-            testRules(4, 200, "user_1234", "Firefox2", "device_56641", "bad@mail.com");
+            //czasy sciezek bez I/O mierzy JMH (mvn -Pjmh test-compile exec:exec), tu tylko przejazdy przez prawdziwe zrodla
+            testRules(1, 200, "user_1234", "Firefox2", "device_56641", "email");
+            testRules(2, 209, "user_1234", "Firefox2", "device_56641", "email");
+            testRules(3, 200, "user_1234", "Firefox2", "device_56641", "bad@mail.com");
         } finally {
+            plans.close();
+            mlPlanner.close();
+            if (featureStoreBootstrap != null) {
+                featureStoreBootstrap.close();
+            }
+            if (coalescingTimer != null) {
+                coalescingTimer.shutdownNow();
+            }
             executors.shutdown();
         }
     }
@@ -51,10 +142,8 @@ public class FraudDetencionApplication {
                 "user_agent", userAgent
         );
 
-        List<Rule> rules = loadRules();
-
         Long start = System.nanoTime();
-        int score = runRules(number, timeout, rules, params);
+        int score = runRules(number, timeout, params);
         Long end = System.nanoTime();
         System.out.println("Przejazd: " + number + " Elapsed time: " + Duration.ofNanos(end - start).toMillis());
         System.out.println("Score: " + score);
@@ -62,22 +151,34 @@ public class FraudDetencionApplication {
     }
 
     private List<Rule> loadRules() {
-        Transactions transactions = new Transactions(jdbcTemplate);
+        //limit pod cache - trafienie w cache nie zajmuje pozwolenia; duplikat z hedgingu miesci sie w pozwoleniu oryginalu
+        Query<TransactionsView> transactions = queryCache.cached(limits.limited(
+                hedging.hedged(replicas.each(Transactions::new))));
+        Query<Double> userAgents = queryCache.cached(limits.limited(
+                hedging.hedged(replicas.each(UserAgentPercentageUsageQuery::new))));
+        Query<Integer> deviceUsers = queryCache.cached(limits.limited(
+                hedging.hedged(replicas.each(DeviceUsedByUsers::new))));
+        if (featureStore != null) {
+            transactions = new StoredTransactions(featureStore, transactions);
+            userAgents = new StoredUserAgentPercentage(featureStore, userAgents);
+            deviceUsers = new StoredDeviceUsers(featureStore, deviceUsers);
+        }
         QueriedRule<Boolean> emailOnBlacklist = new QueriedRule<>("emailOnBlacklist",
-                result -> result != null && result, new EmailOnBlacklist(redisTemplate),
+                result -> result != null && result, limits.limited(new EmailOnBlacklist(redisPipeline, emailBlacklistMirror)),
                 Score.of(100));
+        //kazde czyta swoja tabele agregatow (po kilkaset wierszy) - sklejanie w jeden SELECT nic tu nie daje
         QueriedRule<Double> userAgentAnomaly = new QueriedRule<>("userAgentAnomaly",
                 data -> data <= 0.3d,
-                new UserAgentPercentageUsageQuery(jdbcTemplate),
+                userAgents,
                 Score.of(40));
         QueriedRule<Integer> deviceUsedByLogins = new QueriedRule<>("deviceUsedByLogins",
                 data -> data >= 30,
-                new DeviceUsedByUsers(jdbcTemplate),
+                deviceUsers,
                 Score.of(20));
         SingleSourceQueriedRule<TransactionsView> transactionsChecks = new SingleSourceQueriedRule<>("transactionsChecks",
                 List.of(
-                        data -> data.average() >= 300d ? Score.of(10) : Score.zero(),
-                        data -> data.total() >= 300000d ? Score.of(30) : Score.zero()),
+                        ScoreCheck.when(data -> data.average() >= 300d, Score.of(10)),
+                        ScoreCheck.when(data -> data.total() >= 300000d, Score.of(30))),
                 transactions);
         DependentRule<Double, Integer> loginThenTransactionRule = new DependentRule<>("loginThenTransactionRule",
                 userAgentAnomaly,
@@ -89,35 +190,52 @@ public class FraudDetencionApplication {
         return List.of(emailOnBlacklist, userAgentAnomaly, deviceUsedByLogins, transactionsChecks, loginThenTransactionRule);
     }
 
-    private int runRules(int number, int timeout, List<Rule> rules, Map<String, String> params) {
-        AtomicInteger totalScore = new AtomicInteger(0);
+    private int runRules(int number, int timeout, Map<String, String> params) {
+        if (coalescing != null) {
+            return runCoalesced(number, timeout, params);
+        }
+        //plan ML zalezy od parametrow requestu - liczony za kazdym razem (ponizej milisekundy), reszta z PlanCache
+        ExecutionPlan plan = algorithm == ExecutionConfig.SortingAlgorithm.ML
+                ? new ExecutionConfig(strategy, rulesConfig, rulesStats, algorithm, budget, mlPlanner).calculatePlan(params)
+                : plans.plan(rulesConfig, strategy);
 
-        CompletableFuture<Void> combined = allOf(
-                rules.stream() //zapewnic kolejnosc przekazywabnia zadan do kolejki - np za pomoca zwyklego for
-                        .map(r -> supplyAsync(() -> {
-                            Score calculate = r.calculateAndMeasure(params);
-                            totalScore.addAndGet(calculate.score());
-                            return calculate;
-                        }, executors))
-                        .toArray(CompletableFuture[]::new));
+        Long start = System.nanoTime();
+        ExecutionResult result = scheduler.run(plan, params, Duration.ofMillis(timeout), thresholds);
+        Long end = System.nanoTime();
+        System.out.println("Iteration: " + number + ". Elapsed time: " + Duration.ofNanos(end - start).toMillis());
+        if (!result.timedOut().isEmpty()) {
+            System.err.println("❌ timeout after " + timeout + "ms, not finished: " + result.timedOut());
+        }
+        if (!result.rejected().isEmpty()) {
+            System.err.println("rejected by bulkhead: " + result.rejected());
+        }
+        System.out.println("Score: " + result.score().score() + " Verdict: " + result.verdict()
+                + (result.shortCircuited() ? " (skipped: " + result.skipped() + ")" : ""));
+        return result.score().score();
+    }
 
+    private int runCoalesced(int number, int timeout, Map<String, String> params) {
+        Long start = System.nanoTime();
+        CompletableFuture<Score> result = coalescing.evaluate(params);
         try {
-            Long start = System.nanoTime();
-            combined.get(timeout, TimeUnit.MILLISECONDS);
-            Long end = System.nanoTime();
-            System.out.println("Iteration: " + number + ". Elapsed time: " + Duration.ofNanos(end - start).toMillis());
-            System.out.println("Score: " + totalScore.get());
-
+            Score score = result.get(timeout, TimeUnit.MILLISECONDS);
+            System.out.println("Iteration: " + number + ". Elapsed time: " + Duration.ofNanos(System.nanoTime() - start).toMillis());
+            System.out.println("Score: " + score.score() + " Verdict: " + thresholds.verdictFor(score) + " (coalesced)");
+            return score.score();
         } catch (TimeoutException e) {
-            System.err.println("❌ timeout after 200ms");
-        } catch (ExecutionException e) {
-            throw new RuntimeException(e);
+            result.cancel(true);
+            System.err.println("❌ timeout after " + timeout + "ms, coalesced batch not finished");
+            return 0;
         } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for coalesced rules");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new IllegalStateException(e.getCause());
         }
-        return totalScore.get();
     }
 
 }
-
-
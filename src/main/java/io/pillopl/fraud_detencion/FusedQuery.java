@@ -0,0 +1,156 @@
+package io.pillopl.fraud_detencion;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.*;
+import java.util.function.Function;
+
+//zapytanie agregujace ktore da sie skleic z innymi czytajacymi ta sama tabele (ten sam Fusion)
+//kazdy agregat musi byc liczony tylko po swoich wierszach (countIf, uniqExactIf, sumIf...) - WHERE jest wspolny
+interface FusibleQuery<T> extends Query<T> {
+
+    Fusion fusion();
+
+    List<Aggregate> aggregates();
+
+    //wiersze ktorych potrzebuja agregaty tego zapytania - w sklejonym zapytaniu laczone przez OR
+    String rowFilter();
+
+    //column: alias agregatu -> wartosc
+    T read(Function<String, Object> column);
+}
+
+//to samo polaczenie, tabela i warunek wspolny dla wszystkich (np. okno czasowe)
+record Fusion(JdbcTemplate jdbcTemplate, String table, String where) {
+}
+
+//expression: szablon ClickHouseStatement, np. countIf(user_id = {user_id:String})
+record Aggregate(String alias, String expression) {
+}
+
+//jeden SELECT z agregatami wszystkich zapytan zamiast osobnego skanu tabeli dla kazdego z nich
+//wynik: lista wynikow zapytan w kolejnosci `members` - reguly czytaja swoj przez part(...)
+class FusedQuery implements Query<List<Object>> {
+
+    private final List<FusibleQuery<?>> members;
+    private final Fusion fusion;
+    private final ClickHouseStatement statement;
+
+    FusedQuery(List<? extends FusibleQuery<?>> members) {
+        if (members.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to fuse");
+        }
+        this.members = List.copyOf(members);
+        this.fusion = this.members.getFirst().fusion();
+        for (FusibleQuery<?> member : this.members) {
+            if (!member.fusion().equals(fusion)) {
+                throw new IllegalArgumentException("Cannot fuse " + member.fusion() + " with " + fusion);
+            }
+        }
+        this.statement = ClickHouseStatement.of(build());
+    }
+
+    //wszystkie zapytania tej samej tabeli i z tym samym wspolnym warunkiem
+    static boolean fusible(List<? extends Query<?>> queries) {
+        Set<Fusion> fusions = new HashSet<>();
+        for (Query<?> query : queries) {
+            if (!(query instanceof FusibleQuery<?> fusible)) {
+                return false;
+            }
+            fusions.add(fusible.fusion());
+        }
+        return fusions.size() == 1;
+    }
+
+    @Override
+    public List<Object> execute(Map<String, String> params) {
+        ClickHouseStatement.Bound bound = statement.bind(params);
+        Map<String, Object> row = fusion.jdbcTemplate().queryForMap(bound.sql(), bound.args(), bound.types());
+        List<Object> results = new ArrayList<>(members.size());
+        for (int i = 0; i < members.size(); i++) {
+            String prefix = prefix(i);
+            results.add(members.get(i).read(alias -> row.get(prefix + alias)));
+        }
+        return Collections.unmodifiableList(results);
+    }
+
+    @Override
+    public Map<String, String> boundParams(Map<String, String> params) {
+        Map<String, String> bound = new HashMap<>();
+        members.forEach(member -> bound.putAll(member.boundParams(params)));
+        return bound;
+    }
+
+    @Override
+    public RuleSource ruleSource() {
+        return members.getFirst().ruleSource();
+    }
+
+    String sql() {
+        return statement.sql();
+    }
+
+    private String build() {
+        List<String> columns = new ArrayList<>();
+        List<String> filters = new ArrayList<>();
+        for (int i = 0; i < members.size(); i++) {
+            for (Aggregate aggregate : members.get(i).aggregates()) {
+                columns.add(aggregate.expression() + " AS " + prefix(i) + aggregate.alias());
+            }
+            filters.add("(" + members.get(i).rowFilter() + ")");
+        }
+        return "SELECT " + String.join(", ", columns) + " " +
+                "FROM " + fusion.table() + " " +
+                "WHERE " + fusion.where() + " " +
+                "  AND (" + String.join(" OR ", filters) + ");";
+    }
+
+    private static String prefix(int member) {
+        return "q" + member + "_";
+    }
+
+    static <T> Query<T> part(Query<List<Object>> fused, int index) {
+        return new Part<>(fused, index);
+    }
+
+    //ScoreCheck reguly przepiety na wynik sklejonego zapytania
+    @SuppressWarnings("unchecked")
+    static ScoreCheck<List<Object>> onPart(int index, ScoreCheck<?> check) {
+        ScoreCheck<Object> memberCheck = (ScoreCheck<Object>) check;
+        return new ScoreCheck<>() {
+            @Override
+            public Score scoreOver(List<Object> results) {
+                return memberCheck.scoreOver(results.get(index));
+            }
+
+            @Override
+            public Optional<Score> maxScore() {
+                return memberCheck.maxScore();
+            }
+        };
+    }
+
+    //wynik jednego z zapytan - QueryScope wykonuje `fused` raz i rozdaje wszystkim czesciom
+    record Part<T>(Query<List<Object>> fused, int index) implements Query<T> {
+
+        @Override
+        public T execute(Map<String, String> params) {
+            return of(fused.execute(params));
+        }
+
+        @SuppressWarnings("unchecked")
+        T of(List<Object> results) {
+            return (T) results.get(index);
+        }
+
+        @Override
+        public Map<String, String> boundParams(Map<String, String> params) {
+            return fused.boundParams(params);
+        }
+
+        @Override
+        public RuleSource ruleSource() {
+            return fused.ruleSource();
+        }
+    }
+}
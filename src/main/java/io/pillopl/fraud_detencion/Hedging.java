@@ -0,0 +1,310 @@
+package io.pillopl.fraud_detencion;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+//hedging per RuleSource(datasource, view) - opt-in, tylko zrodla z polityka
+//zapytanie ktore nie odpowiedzialo w swoim p9x idzie drugi raz, na kolejna replike; wygrywa pierwsza odpowiedz
+class Hedging implements AutoCloseable {
+
+    private final Map<RuleSource, HedgingPolicy> policies = new HashMap<>();
+    private final ExecutorService calls = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("hedge-", 0).factory());
+
+    Hedging(List<HedgingPolicy> policies) {
+        policies.forEach(policy -> this.policies.put(policy.ruleSource(), policy));
+    }
+
+    static Hedging none() {
+        return new Hedging(List.of());
+    }
+
+    //to samo zapytanie na kazdej replice, pierwsza - glowna; bez polityki zostaje tylko glowna
+    <T> Query<T> hedged(List<Query<T>> replicas) {
+        Query<T> primary = replicas.getFirst();
+        HedgingPolicy policy = policies.get(primary.ruleSource());
+        return policy == null ? primary : new HedgedQuery<>(replicas, policy, calls);
+    }
+
+    @Override
+    public void close() {
+        calls.shutdownNow();
+    }
+}
+
+//percentile - po ilu p-tym percentylu czasu wywolania wysylamy duplikat (z RuleStats wywolan, okno 1 min)
+//minDelay - nigdy szybciej (tez gdy statystyk jeszcze nie ma - wtedy nie hedgujemy wcale)
+//budget - jaki ulamek wywolan moze dostac duplikat (0.05 = najwyzej 5% dodatkowego ruchu)
+record HedgingPolicy(String datasource, String view, Double percentile, Duration minDelay, Double budget) {
+
+    HedgingPolicy {
+        percentile = percentile == null ? 0.95 : percentile;
+        minDelay = minDelay == null ? Duration.ofMillis(1) : minDelay;
+        budget = budget == null ? 0.05 : budget;
+        if (percentile <= 0 || percentile >= 1 || budget < 0 || budget > 1) {
+            throw new IllegalArgumentException("Hedging policy for " + datasource + "/" + view
+                    + " needs percentile in (0, 1) and budget in [0, 1]");
+        }
+    }
+
+    RuleSource ruleSource() {
+        return new RuleSource(datasource, view);
+    }
+}
+
+//pierwsze wywolanie zawsze na glowna replike, po opoznieniu z polityki duplikat na kolejna z pozostalych (round robin)
+//przy jednej replice duplikat idzie tym samym zrodlem, innym polaczeniem z puli
+//przegrany jest anulowany: wywolanie blokujace - przerwanie watku, nieblokujace - cancel future
+//batche (backfill) ida bez hedgingu do glownej repliki
+class HedgedQuery<T> implements DelegatingQuery<T>, BatchQuery<T> {
+
+    //ponizej tylu pomiarow percentyl nic nie znaczy - nie hedgujemy
+    static final int MIN_SAMPLES = 20;
+
+    private final List<Query<T>> replicas;
+    private final HedgingPolicy policy;
+    private final ExecutorService calls;
+    private final RuleStats latencies;
+    private final HedgeBudget budget;
+    private final AtomicInteger next = new AtomicInteger();
+    private final LongAdder hedges = new LongAdder();
+
+    HedgedQuery(List<Query<T>> replicas, HedgingPolicy policy, ExecutorService calls) {
+        this.replicas = List.copyOf(replicas);
+        this.policy = policy;
+        this.calls = calls;
+        this.latencies = new RuleStats("hedge:" + policy.datasource() + "/" + policy.view(), StatsWindow.DEFAULT);
+        this.budget = new HedgeBudget(policy.budget());
+    }
+
+    @Override
+    public T execute(Map<String, String> params) {
+        CompletableFuture<T> result = race(params);
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for hedged " + policy.view() + " query");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    @Override
+    public CompletionStage<T> executeAsync(Map<String, String> params, Executor blocking) {
+        return race(params);
+    }
+
+    @Override
+    public List<T> executeAll(List<Map<String, String>> params) {
+        return BatchQuery.executeAll(delegate(), params);
+    }
+
+    private CompletableFuture<T> race(Map<String, String> params) {
+        budget.deposit();
+        Race race = new Race();
+        race.start(replicas.getFirst(), params);
+        Optional<Duration> delay = delay();
+        if (delay.isPresent()) {
+            Executor timer = CompletableFuture.delayedExecutor(delay.get().toNanos(), TimeUnit.NANOSECONDS);
+            timer.execute(() -> {
+                if (!race.result.isDone() && budget.tryWithdraw()) {
+                    hedges.increment();
+                    race.start(hedgeReplica(), params);
+                }
+            });
+        }
+        return race.result;
+    }
+
+    private Query<T> hedgeReplica() {
+        if (replicas.size() == 1) {
+            return replicas.getFirst();
+        }
+        return replicas.get(1 + Math.floorMod(next.getAndIncrement(), replicas.size() - 1));
+    }
+
+    Optional<Duration> delay() {
+        RuleStatsSnapshot snapshot = latencies.snapshot();
+        if (snapshot.executions() < MIN_SAMPLES) {
+            return Optional.empty();
+        }
+        Duration observed = policy.percentile() == 0.95 ? snapshot.p95()
+                : policy.percentile() == 0.99 ? snapshot.p99()
+                : latencies.percentile(policy.percentile());
+        return Optional.of(observed.compareTo(policy.minDelay()) > 0 ? observed : policy.minDelay());
+    }
+
+    long hedges() {
+        return hedges.sum();
+    }
+
+    RuleStatsSnapshot latencies() {
+        return latencies.snapshot();
+    }
+
+    @Override
+    public Query<T> delegate() {
+        return replicas.getFirst();
+    }
+
+    //wywolania jednego execute: pierwsza udana odpowiedz konczy wynik i anuluje reszte
+    //blad jednego wywolania czeka na pozostale - wynik pada dopiero gdy padly wszystkie uruchomione
+    //do statystyk idzie czas kazdego wywolania: wygranego pelny, anulowanego ucieta w chwili anulowania
+    //(dolne ograniczenie) - inaczej wolne wywolania wypadaja z percentyla i opoznienie duplikatu maleje
+    private final class Race {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        private final List<Call> started = new ArrayList<>();
+        private int pending;
+        private Throwable firstError;
+
+        Race() {
+            result.whenComplete((value, error) -> cancelAll());
+        }
+
+        void start(Query<T> replica, Map<String, String> params) {
+            long start = System.nanoTime();
+            CompletableFuture<T> call;
+            Future<?> cancellable;
+            if (replica.nonBlocking()) {
+                call = replica.executeAsync(params, calls).toCompletableFuture();
+                cancellable = call;
+            } else {
+                CompletableFuture<T> blocking = new CompletableFuture<>();
+                cancellable = calls.submit(() -> {
+                    try {
+                        blocking.complete(replica.execute(params));
+                    } catch (RuntimeException | Error e) {
+                        blocking.completeExceptionally(e);
+                    }
+                });
+                call = blocking;
+            }
+            Call entry = new Call(cancellable, start);
+            synchronized (this) {
+                if (result.isDone()) {
+                    cancellable.cancel(true);
+                    return;
+                }
+                started.add(entry);
+                pending++;
+            }
+            call.whenComplete((value, error) -> finished(entry, value, error));
+        }
+
+        private void finished(Call call, T value, Throwable error) {
+            if (error == null) {
+                if (call.finish()) {
+                    record(System.nanoTime() - call.start);
+                }
+                result.complete(value);
+                return;
+            }
+            call.finish();
+            Throwable failure;
+            synchronized (this) {
+                firstError = firstError == null ? error : firstError;
+                if (--pending > 0) {
+                    return;
+                }
+                failure = firstError instanceof CompletionException ? firstError.getCause() : firstError;
+            }
+            result.completeExceptionally(failure);
+        }
+
+        private void cancelAll() {
+            long now = System.nanoTime();
+            List<Call> toCancel;
+            synchronized (this) {
+                toCancel = List.copyOf(started);
+            }
+            for (Call call : toCancel) {
+                if (call.finish()) {
+                    record(now - call.start);
+                }
+                call.cancellable.cancel(true);
+            }
+        }
+
+        private void record(long durationNanos) {
+            latencies.update(new RuleExecution(latencies.id(), Duration.ofNanos(durationNanos), Score.zero(), 1));
+        }
+    }
+
+    //jedno wywolanie wyscigu; finish() zwraca true tylko za pierwszym razem - czas liczymy raz
+    private static final class Call {
+        final Future<?> cancellable;
+        final long start;
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        Call(Future<?> cancellable, long start) {
+            this.cancellable = cancellable;
+            this.start = start;
+        }
+
+        boolean finish() {
+            return finished.compareAndSet(false, true);
+        }
+    }
+}
+
+//tokeny na duplikaty: kazde wywolanie doklada `budget` tokenu, duplikat zabiera caly token
+//zapas ograniczony do MAX_TOKENS - po dlugiej ciszy nie wysylamy lawiny duplikatow naraz
+final class HedgeBudget {
+
+    static final long MAX_TOKENS = 10;
+    private static final long UNIT = 1_000;
+
+    private final long perCall;
+    private final AtomicLong tokens = new AtomicLong();
+
+    HedgeBudget(double budget) {
+        this.perCall = Math.round(budget * UNIT);
+    }
+
+    void deposit() {
+        tokens.accumulateAndGet(perCall, (current, add) -> Math.min(MAX_TOKENS * UNIT, current + add));
+    }
+
+    boolean tryWithdraw() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current < UNIT) {
+                return false;
+            }
+        } while (!tokens.compareAndSet(current, current - UNIT));
+        return true;
+    }
+}
+
+@ConfigurationProperties("fraud.hedging")
+record HedgingProperties(List<HedgingPolicy> policies) {
+
+    HedgingProperties {
+        policies = policies == null ? List.of() : policies;
+    }
+}
+
+@Configuration
+@EnableConfigurationProperties(HedgingProperties.class)
+class HedgingConfig {
+
+    @Bean
+    Hedging hedging(HedgingProperties properties) {
+        return new Hedging(properties.policies());
+    }
+}
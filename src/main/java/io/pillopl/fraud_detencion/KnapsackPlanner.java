@@ -0,0 +1,143 @@
+package io.pillopl.fraud_detencion;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+//0/1 knapsack: waga = avgDurationMillis (budzet deadline * parallelism), drugi wymiar = avgCost, wartosc = avgScore
+//czas i koszt dyskretyzujemy do kubelkow, zeby DP mialo staly rozmiar niezaleznie od deadline'u
+//waga w kubelkach = floor z przeniesiona reszta - regula krotsza niz kubelek moze wazyc 0, wiec planer nie konczy sie
+//na ~TIME_BUCKETS regulach; DP moze przez to lekko przeszacowac pojemnosc, wiec plan przycinamy po prawdziwych czasach
+//decyzje (regula wzieta przy pojemnosci t, c) trzymamy bitowo - przy 10k regul z limitem kosztu to ~6 MB, nie ~100 MB
+//jeden planner na aplikacje (ExecutionConfig.KNAPSACK) - memo dziala miedzy requestami
+class KnapsackPlanner {
+
+    private static final int TIME_BUCKETS = 200;
+    private static final int COST_BUCKETS = 25;
+    private static final int MEMO_SIZE = 64;
+
+    private final Map<KnapsackInput, List<String>> memo = new ConcurrentHashMap<>();
+
+    List<Rule> plan(List<Rule> rules, RulesStats stats, ExecutionBudget budget) {
+        Buckets buckets = Buckets.of(budget);
+        List<Item> items = items(rules, stats, budget, buckets);
+        KnapsackInput input = new KnapsackInput(items.stream().map(Item::weight).toList(), budget);
+        List<String> selected = memo.get(input);
+        if (selected == null) {
+            selected = solve(items, buckets, budget);
+            if (memo.size() >= MEMO_SIZE) {
+                memo.clear();
+            }
+            memo.put(input, selected);
+        }
+        Map<String, Rule> byId = new HashMap<>();
+        rules.forEach(rule -> byId.put(rule.id(), rule));
+        return selected.stream().map(byId::get).toList();
+    }
+
+    private List<Item> items(List<Rule> rules, RulesStats stats, ExecutionBudget budget, Buckets buckets) {
+        List<Item> items = new ArrayList<>();
+        double timeCarry = 0;
+        double costCarry = 0;
+        for (Rule rule : rules) {
+            RuleStatsSnapshot stat = stats.get(rule.id()).orElse(new RuleStats(rule.id())).snapshot();
+            if (stat.avgDurationMillis() > budget.deadline().toMillis()) {
+                continue; //nie zdazy nawet na wolnym watku
+            }
+            double exactTime = stat.avgDurationMillis() / buckets.timeBucket() + timeCarry;
+            int time = (int) Math.floor(exactTime);
+            timeCarry = exactTime - time;
+            int cost = 0;
+            if (buckets.costCapacity() > 0) {
+                double exactCost = stat.avgCost() / buckets.costBucket() + costCarry;
+                cost = (int) Math.floor(exactCost);
+                costCarry = exactCost - cost;
+            }
+            items.add(new Item(rule, new RuleWeight(rule.id(), time, cost, stat.avgScore()), stat.avgDurationMillis(), stat.avgCost()));
+        }
+        return items;
+    }
+
+    private List<String> solve(List<Item> items, Buckets buckets, ExecutionBudget budget) {
+        int timeCapacity = buckets.timeCapacity();
+        int costCapacity = buckets.costCapacity();
+        int costs = costCapacity + 1;
+        int n = items.size();
+        double[][] best = new double[timeCapacity + 1][costs];
+        //taken[i] == null - regula nie miesci sie w budzecie, nigdy nie wzieta
+        long[][] taken = new long[n][];
+
+        for (int i = 0; i < n; i++) {
+            RuleWeight weight = items.get(i).weight();
+            if (weight.time() > timeCapacity || weight.cost() > costCapacity) {
+                continue;
+            }
+            long[] decisions = new long[((timeCapacity + 1) * costs + 63) >>> 6];
+            for (int t = timeCapacity; t >= weight.time(); t--) {
+                for (int c = costCapacity; c >= weight.cost(); c--) {
+                    double withItem = best[t - weight.time()][c - weight.cost()] + weight.score();
+                    //>= zeby darmowe reguly (bez statystyk) tez weszly do planu
+                    if (withItem >= best[t][c]) {
+                        best[t][c] = withItem;
+                        int bit = t * costs + c;
+                        decisions[bit >>> 6] |= 1L << bit;
+                    }
+                }
+            }
+            taken[i] = decisions;
+        }
+
+        List<Item> selected = new ArrayList<>();
+        int t = timeCapacity;
+        int c = costCapacity;
+        for (int i = n - 1; i >= 0; i--) {
+            int bit = t * costs + c;
+            if (taken[i] != null && (taken[i][bit >>> 6] & (1L << bit)) != 0) {
+                Item item = items.get(i);
+                selected.add(item);
+                t -= item.weight().time();
+                c -= item.weight().cost();
+            }
+        }
+        //najwiecej score na milisekunde najpierw - jesli scheduler utnie po deadlinie, stracimy najmniej
+        //w tej kolejnosci pomijamy reguly ktore po prawdziwych czasach / kosztach juz sie nie mieszcza
+        selected.sort(Comparator.comparingDouble(Item::density).reversed());
+        List<String> plan = new ArrayList<>();
+        double time = 0;
+        double cost = 0;
+        for (Item item : selected) {
+            if (time + item.durationMillis() > budget.timeCapacityMillis()
+                    || budget.hasCostLimit() && cost + item.cost() > budget.maxCost()) {
+                continue;
+            }
+            time += item.durationMillis();
+            cost += item.cost();
+            plan.add(item.rule().id());
+        }
+        return plan;
+    }
+
+    private record Item(Rule rule, RuleWeight weight, double durationMillis, double cost) {
+        double density() {
+            return durationMillis == 0 ? Double.MAX_VALUE : weight.score() / durationMillis;
+        }
+    }
+
+    //pojemnosc zaokraglamy w dol; budzet i tak pilnuje przyciecie planu po prawdziwych czasach w solve
+    private record Buckets(double timeBucket, int timeCapacity, double costBucket, int costCapacity) {
+        static Buckets of(ExecutionBudget budget) {
+            double timeBucket = Math.max(1d, Math.ceil(budget.timeCapacityMillis() / (double) TIME_BUCKETS));
+            int timeCapacity = (int) Math.floor(budget.timeCapacityMillis() / timeBucket);
+            if (!budget.hasCostLimit()) {
+                return new Buckets(timeBucket, timeCapacity, 0d, 0);
+            }
+            double costBucket = Math.max(1d, Math.ceil(budget.maxCost() / (double) COST_BUCKETS));
+            return new Buckets(timeBucket, timeCapacity, costBucket, (int) Math.floor(budget.maxCost() / costBucket));
+        }
+    }
+
+    private record RuleWeight(String id, int time, int cost, double score) {
+    }
+
+    private record KnapsackInput(List<RuleWeight> weights, ExecutionBudget budget) {
+    }
+}
@@ -0,0 +1,111 @@
+package io.pillopl.fraud_detencion;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+//zbiera pojedyncze zadania przez maxWait (liczone od pierwszego w paczce) albo do maxItems i wysyla je jedna paczka
+//flush dostaje liste wejsc i musi zwrocic liste wynikow w tej samej kolejnosci
+//flush blokujacy idzie na `executor`, nieblokujacy (Lettuce async) wolamy od razu na watku ktory zamknal paczke
+class MicroBatcher<I, O> {
+
+    private final Duration maxWait;
+    private final int maxItems;
+    private final Function<List<I>, CompletionStage<List<O>>> flush;
+    private final ScheduledExecutorService timer;
+
+    private List<Pending<I, O>> pending = new ArrayList<>();
+    private ScheduledFuture<?> scheduledFlush;
+
+    MicroBatcher(Duration maxWait, int maxItems, Function<List<I>, List<O>> flush,
+                 ScheduledExecutorService timer, Executor executor) {
+        this(maxWait, maxItems, items -> CompletableFuture.supplyAsync(() -> flush.apply(items), executor), timer);
+    }
+
+    MicroBatcher(Duration maxWait, int maxItems, Function<List<I>, CompletionStage<List<O>>> flush,
+                 ScheduledExecutorService timer) {
+        if (maxItems < 1) {
+            throw new IllegalArgumentException("Max items must be positive, was " + maxItems);
+        }
+        this.maxWait = maxWait;
+        this.maxItems = maxItems;
+        this.flush = flush;
+        this.timer = timer;
+    }
+
+    CompletableFuture<O> submit(I item) {
+        CompletableFuture<O> result = new CompletableFuture<>();
+        List<Pending<I, O>> full = null;
+        synchronized (this) {
+            pending.add(new Pending<>(item, result));
+            if (pending.size() >= maxItems) {
+                full = takePending();
+            } else if (pending.size() == 1) {
+                scheduledFlush = timer.schedule(this::flushOnTimeout, maxWait.toNanos(), TimeUnit.NANOSECONDS);
+            }
+        }
+        if (full != null) {
+            dispatch(full);
+        }
+        return result;
+    }
+
+    private void flushOnTimeout() {
+        List<Pending<I, O>> batch;
+        synchronized (this) {
+            batch = takePending();
+        }
+        dispatch(batch);
+    }
+
+    private List<Pending<I, O>> takePending() {
+        List<Pending<I, O>> batch = pending;
+        pending = new ArrayList<>();
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        return batch;
+    }
+
+    private void dispatch(List<Pending<I, O>> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        CompletionStage<List<O>> results;
+        try {
+            results = flush.apply(batch.stream().map(Pending::item).toList());
+        } catch (Throwable e) { //tez RejectedExecutionException z executora flushy
+            fail(batch, e);
+            return;
+        }
+        results.whenComplete((values, error) -> {
+            if (error != null) {
+                fail(batch, error instanceof CompletionException ? error.getCause() : error);
+                return;
+            }
+            //flush zwrocil null albo zla liczbe wynikow - zaden future nie moze zostac niezakonczony
+            try {
+                if (values == null || values.size() != batch.size()) {
+                    throw new IllegalStateException("Flush returned " + (values == null ? "null" : values.size() + " results")
+                            + " for batch of " + batch.size());
+                }
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).result().complete(values.get(i));
+                }
+            } catch (Throwable e) {
+                fail(batch, e);
+            }
+        });
+    }
+
+    //juz zakonczone futures zostaja jak byly
+    private static <I, O> void fail(List<Pending<I, O>> batch, Throwable error) {
+        batch.forEach(p -> p.result().completeExceptionally(error));
+    }
+
+    private record Pending<I, O>(I item, CompletableFuture<O> result) {
+    }
+}
@@ -0,0 +1,242 @@
+package io.pillopl.fraud_detencion;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+//per regula dwa modele online na zahashowanych cechach requestu (key=value):
+// - regresja logistyczna: P(score > 0 | params)
+// - regresja liniowa na log(1 + ms): oczekiwany czas
+//plan: malejaco po p * score_gdy_odpala / czas
+//pomijamy tylko regule ktorej oczekiwany score na ms jest ponizej minExpectedScorePerMs i ktora jest wolna
+//(oczekiwany czas >= minSkipLatencyMillis) - nigdy taniej, ani takiej ktorej maxScore sam zmienia werdykt
+//(np. emailOnBlacklist: odpala rzadko, ale 100 to BLOCK, a sprawdzenie kosztuje ulamek ms)
+//uczenie na osobnym watku z kolejki RulesExecuted, request czyta tylko niezmienne snapshoty (volatile)
+class MlPlanner implements AutoCloseable {
+
+    static final int FEATURES = 1 << 10;
+    private static final int QUEUE_SIZE = 10_000;
+    private static final int MAX_BATCH = 256;
+
+    private final Settings settings;
+    private final DecisionThresholds thresholds;
+    private final BlockingQueue<RulesExecuted> events = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Map<String, Learner> learners = new HashMap<>(); //tylko watek trenujacy
+    private volatile Map<String, RuleModel> models = Map.of();
+    private volatile Thread trainer;
+
+    MlPlanner(Settings settings) {
+        this(settings, DecisionThresholds.NONE);
+    }
+
+    MlPlanner(Settings settings, DecisionThresholds thresholds) {
+        this.settings = settings;
+        this.thresholds = thresholds;
+    }
+
+    static MlPlanner untrained() {
+        return new MlPlanner(Settings.DEFAULT);
+    }
+
+    static MlPlanner untrained(DecisionThresholds thresholds) {
+        return new MlPlanner(Settings.DEFAULT, thresholds);
+    }
+
+    void start() {
+        Thread thread = new Thread(this::trainLoop, "ml-planner-trainer");
+        thread.setDaemon(true);
+        trainer = thread;
+        thread.start();
+    }
+
+    //wolane z watku requestu - nie blokuje, przy pelnej kolejce gubimy probke
+    void handle(RulesExecuted event) {
+        events.offer(event);
+    }
+
+    List<Rule> plan(List<Rule> rules, Map<String, String> params, RulesStats stats) {
+        int[] features = features(params);
+        Map<String, RuleModel> current = models;
+        boolean explore = ThreadLocalRandom.current().nextDouble() < settings.explorationRate();
+        List<Scored> ranked = new ArrayList<>(rules.size());
+        List<Rule> skipped = new ArrayList<>();
+        for (Rule rule : rules) {
+            RuleModel model = current.get(rule.id());
+            RuleStats ruleStats = stats.get(rule.id()).orElse(null);
+            double value = expectedValueRate(model, ruleStats, features);
+            if (skippable(rule, model, features, value)) {
+                skipped.add(rule);
+                continue;
+            }
+            ranked.add(new Scored(rule, value));
+        }
+        ranked.sort(Comparator.comparingDouble(Scored::value).reversed());
+        List<Rule> plan = new ArrayList<>(ranked.size() + skipped.size());
+        ranked.forEach(scored -> plan.add(scored.rule()));
+        //z malym prawdopodobienstwem puszczamy tez pominiete (na koncu planu) - inaczej model nigdy nie zobaczy ze sie zmienily
+        if (explore) {
+            plan.addAll(skipped);
+        }
+        return List.copyOf(plan);
+    }
+
+    private boolean skippable(Rule rule, RuleModel model, int[] features, double valueRate) {
+        if (model == null || model.samples() < settings.minSamples()) {
+            return false;
+        }
+        return valueRate < settings.minExpectedScorePerMs()
+                && model.expectedLatencyMillis(features) >= settings.minSkipLatencyMillis()
+                && !canChangeVerdict(rule);
+    }
+
+    //sam maxScore reguly przenosi czysty request do innego pasma; nieznany maxScore - zakladamy ze moze
+    private boolean canChangeVerdict(Rule rule) {
+        if (thresholds.equals(DecisionThresholds.NONE)) {
+            return false;
+        }
+        return rule.maxScore()
+                .map(max -> thresholds.verdictFor(max) != thresholds.verdictFor(Score.zero()))
+                .orElse(true);
+    }
+
+    private double expectedValueRate(RuleModel model, RuleStats stats, int[] features) {
+        RuleStatsSnapshot snapshot = stats == null ? null : stats.snapshot();
+        boolean trained = model != null && model.samples() >= settings.minSamples();
+        double probability = trained ? model.fireProbability(features) : 0.5;
+        double scoreWhenFired = trained ? model.scoreWhenFired()
+                : snapshot == null ? 1 : Math.max(1, snapshot.avgScore() * 2);
+        double latencyMillis = trained ? model.expectedLatencyMillis(features)
+                : snapshot == null ? 1 : snapshot.avgDurationMillis();
+        return probability * scoreWhenFired / Math.max(1, latencyMillis);
+    }
+
+    //wolane tylko z jednego watku naraz - trenujacego albo z testu (bez start())
+    void train(List<RulesExecuted> batch) {
+        Set<String> touched = new HashSet<>();
+        for (RulesExecuted event : batch) {
+            int[] features = features(event.params());
+            for (RuleExecution execution : event.ruleExecutions()) {
+                learners.computeIfAbsent(execution.id(), id -> new Learner()).learn(features, execution, settings.learningRate());
+                touched.add(execution.id());
+            }
+        }
+        if (touched.isEmpty()) {
+            return;
+        }
+        Map<String, RuleModel> published = new HashMap<>(models);
+        touched.forEach(id -> published.put(id, learners.get(id).snapshot()));
+        models = Map.copyOf(published);
+    }
+
+    private void trainLoop() {
+        List<RulesExecuted> batch = new ArrayList<>(MAX_BATCH);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                RulesExecuted first = events.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                events.drainTo(batch, MAX_BATCH - 1);
+                train(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                //zla probka nie zatrzymuje uczenia
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        Thread thread = trainer;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    //indeks 0 = bias, reszta: hash "key=value"
+    static int[] features(Map<String, String> params) {
+        int[] features = new int[params.size() + 1];
+        int i = 1;
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            int hash = (param.getKey() + '=' + param.getValue()).hashCode() * 0x9E3779B9;
+            features[i++] = 1 + Math.floorMod(hash ^ (hash >>> 16), FEATURES - 1);
+        }
+        return features;
+    }
+
+    //minExpectedScorePerMs - ponizej tego p * score / czas regula moze wypasc z planu
+    //minSkipLatencyMillis - reguly szybsze niz to nigdy nie wypadaja, ich pominiecie nic nie oszczedza
+    record Settings(double learningRate, long minSamples, double minExpectedScorePerMs, double explorationRate,
+                    double minSkipLatencyMillis) {
+
+        static final Settings DEFAULT = new Settings(0.05, 200, 0.01, 0.01, 5);
+    }
+
+    private record Scored(Rule rule, double value) {
+    }
+
+    record RuleModel(double[] fireWeights, double[] latencyWeights, long samples, double scoreWhenFired) {
+
+        double fireProbability(int[] features) {
+            return 1 / (1 + Math.exp(-dot(fireWeights, features)));
+        }
+
+        double expectedLatencyMillis(int[] features) {
+            return Math.expm1(Math.max(0, dot(latencyWeights, features)));
+        }
+
+        private static double dot(double[] weights, int[] features) {
+            double sum = 0;
+            for (int feature : features) {
+                sum += weights[feature];
+            }
+            return sum;
+        }
+    }
+
+    private static final class Learner {
+        private final double[] fireWeights = new double[FEATURES];
+        private final double[] latencyWeights = new double[FEATURES];
+        private long samples;
+        private long fired;
+        private double firedScore;
+
+        //przerwana deadlinem (timedOut) uczy tylko latencji - czas do anulowania przesuwa model w gore
+        //do modelu wartosci nie trafia: nie wiemy czy by zadzialala, a zero uczyloby ze wolna regula nigdy nie strzela
+        void learn(int[] features, RuleExecution execution, double learningRate) {
+            double latencyError = Math.log1p(execution.duration().toNanos() / 1_000_000d) - RuleModel.dot(latencyWeights, features);
+            //aktywne cechy maja wartosc 1, wiec gradient = blad
+            double latencyRate = learningRate / features.length;
+            for (int feature : features) {
+                latencyWeights[feature] += latencyRate * latencyError;
+            }
+            if (execution.timedOut()) {
+                return;
+            }
+            int score = execution.score().score();
+            double fireError = (score > 0 ? 1 : 0) - probability(features);
+            for (int feature : features) {
+                fireWeights[feature] += learningRate * fireError;
+            }
+            samples++;
+            if (score > 0) {
+                fired++;
+                firedScore += score;
+            }
+        }
+
+        private double probability(int[] features) {
+            return 1 / (1 + Math.exp(-RuleModel.dot(fireWeights, features)));
+        }
+
+        RuleModel snapshot() {
+            return new RuleModel(fireWeights.clone(), latencyWeights.clone(), samples, fired == 0 ? 0 : firedScore / fired);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package io.pillopl.fraud_detencion;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+//plan liczony raz na (wersja RulesConfig, ExecutionStrategy) - request czyta tylko volatile referencje
+//w tle co `refreshInterval` porownujemy statystyki z tymi z ktorych plan powstal
+//i przeliczamy go dopiero gdy ktoras regula zmienila sie o wiecej niz `driftThreshold` (wzglednie)
+class PlanCache implements AutoCloseable {
+
+    private static final int MAX_PLANS = 64;
+
+    private final RulesStats stats;
+    private final ExecutionConfig.SortingAlgorithm sortingAlgorithm;
+    private final ExecutionBudget budget;
+    private final double driftThreshold;
+    private final Map<PlanKey, CachedPlan> plans = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService replanner = Executors.newSingleThreadScheduledExecutor();
+
+    PlanCache(RulesStats stats, ExecutionConfig.SortingAlgorithm sortingAlgorithm, ExecutionBudget budget, double driftThreshold) {
+        if (driftThreshold < 0) {
+            throw new IllegalArgumentException("Drift threshold must not be negative, was " + driftThreshold);
+        }
+        this.stats = stats;
+        this.sortingAlgorithm = sortingAlgorithm;
+        this.budget = budget;
+        this.driftThreshold = driftThreshold;
+    }
+
+    void start(Duration refreshInterval) {
+        replanner.scheduleWithFixedDelay(this::refreshQuietly, refreshInterval.toMillis(), refreshInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    ExecutionPlan plan(RulesConfig config, ExecutionStrategy strategy) {
+        PlanKey key = new PlanKey(config.version(), strategy);
+        CachedPlan cached = plans.get(key);
+        if (cached == null) {
+            if (plans.size() >= MAX_PLANS) {
+                plans.clear();
+            }
+            cached = plans.computeIfAbsent(key, k -> new CachedPlan(config, strategy));
+        }
+        return cached.plan;
+    }
+
+    void refresh() {
+        plans.values().forEach(CachedPlan::replanIfDrifted);
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        } catch (RuntimeException e) {
+            //zostaja dotychczasowe plany - nastepna proba za refreshInterval
+        }
+    }
+
+    @Override
+    public void close() {
+        replanner.shutdownNow();
+    }
+
+    private record PlanKey(long rulesVersion, ExecutionStrategy strategy) {
+    }
+
+    private final class CachedPlan {
+        private final RulesConfig config;
+        private final ExecutionStrategy strategy;
+        private volatile ExecutionPlan plan;
+        private volatile Map<String, RuleStatsSnapshot> plannedWith;
+
+        CachedPlan(RulesConfig config, ExecutionStrategy strategy) {
+            this.config = config;
+            this.strategy = strategy;
+            replan();
+        }
+
+        void replanIfDrifted() {
+            Map<String, RuleStatsSnapshot> current = stats.snapshot();
+            if (config.rules().stream().anyMatch(rule -> drift(plannedWith.get(rule.id()), current.get(rule.id())) > driftThreshold)) {
+                replan();
+            }
+        }
+
+        //snapshot bierzemy przed liczeniem planu - wykonania ktore wpadna w trakcie zlapie nastepny refresh
+        private void replan() {
+            Map<String, RuleStatsSnapshot> snapshot = stats.snapshot();
+            plan = new ExecutionConfig(strategy, config, stats, sortingAlgorithm, budget).calculatePlan();
+            plannedWith = snapshot;
+        }
+    }
+
+    //najwieksza wzgledna zmiana czasu, kosztu albo score - regula ktora dopiero dostala statystyki zawsze przekracza prog
+    static double drift(RuleStatsSnapshot before, RuleStatsSnapshot after) {
+        if (after == null) {
+            return 0;
+        }
+        if (before == null) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return Math.max(relativeChange(before.avgDurationMillis(), after.avgDurationMillis()),
+                Math.max(relativeChange(before.avgCost(), after.avgCost()),
+                        relativeChange(before.avgScore(), after.avgScore())));
+    }
+
+    //ponizej 1 (ms, punktu score) liczymy zmiane bezwzgledna, zeby zera nie dawaly nieskonczonego dryfu
+    private static double relativeChange(double before, double after) {
+        return Math.abs(after - before) / Math.max(Math.abs(before), 1);
+    }
+}
@@ -0,0 +1,183 @@
+package io.pillopl.fraud_detencion;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.pillopl.fraud_detencion.QueryScope.QueryKey;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+
+//cache wynikow miedzy requestami, osobny dla kazdego RuleSource(datasource, view)
+//eviction: W-TinyLFU z Caffeine, ograniczenie liczba wpisow albo szacowanym rozmiarem w bajtach
+class QueryResultCache {
+
+    private final Map<RuleSource, Cache<QueryKey, Object>> caches = new HashMap<>();
+
+    QueryResultCache(List<CachePolicy> policies) {
+        policies.forEach(policy -> caches.put(policy.ruleSource(), build(policy)));
+    }
+
+    <T> Query<T> cached(Query<T> query) {
+        Cache<QueryKey, Object> cache = caches.get(query.ruleSource());
+        if (cache == null) {
+            return query;
+        }
+        return new CachedQuery<>(query, cache);
+    }
+
+    Optional<CacheStats> stats(RuleSource ruleSource) {
+        return Optional.ofNullable(caches.get(ruleSource)).map(Cache::stats);
+    }
+
+    private static Cache<QueryKey, Object> build(CachePolicy policy) {
+        Caffeine<Object, Object> builder = Caffeine.newBuilder()
+                .expireAfterWrite(policy.ttl())
+                .recordStats();
+        if (policy.maxBytes() != null) {
+            return builder
+                    .maximumWeight(policy.maxBytes().toBytes())
+                    .weigher((QueryKey key, Object value) -> ResultSize.estimate(key) + ResultSize.estimate(value))
+                    .build();
+        }
+        return builder.maximumSize(policy.maxEntries()).build();
+    }
+}
+
+class CachedQuery<T> implements DelegatingQuery<T>, BatchQuery<T> {
+
+    private final Query<T> delegate;
+    private final Cache<QueryKey, Object> cache;
+
+    CachedQuery(Query<T> delegate, Cache<QueryKey, Object> cache) {
+        this.delegate = delegate;
+        this.cache = cache;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T execute(Map<String, String> params) {
+        QueryKey key = QueryKey.of(delegate, params);
+        T cached = (T) cache.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+        //bez cache.get(key, loader) - nie trzymamy locka Caffeine na czas zapytania do ClickHouse
+        T result = delegate.execute(params);
+        if (result != null) {
+            cache.put(key, result);
+        }
+        return result;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public CompletionStage<T> executeAsync(Map<String, String> params, Executor blocking) {
+        QueryKey key = QueryKey.of(delegate, params);
+        T cached = (T) cache.getIfPresent(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        CompletableFuture<T> call = delegate.executeAsync(params, blocking).toCompletableFuture();
+        return Query.cancelling(call.thenApply(result -> {
+            if (result != null) {
+                cache.put(key, result);
+            }
+            return result;
+        }), call);
+    }
+
+    //trafienia z cache, reszta jednym batchem do delegata
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<T> executeAll(List<Map<String, String>> params) {
+        List<T> results = new ArrayList<>(Collections.nCopies(params.size(), null));
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < params.size(); i++) {
+            T cached = (T) cache.getIfPresent(QueryKey.of(delegate, params.get(i)));
+            if (cached == null) {
+                missing.add(i);
+            } else {
+                results.set(i, cached);
+            }
+        }
+        List<T> loaded = BatchQuery.executeAll(delegate, missing.stream().map(params::get).toList());
+        for (int i = 0; i < missing.size(); i++) {
+            T result = loaded.get(i);
+            results.set(missing.get(i), result);
+            if (result != null) {
+                cache.put(QueryKey.of(delegate, params.get(missing.get(i))), result);
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public Query<T> delegate() {
+        return delegate;
+    }
+}
+
+//zgrubny rozmiar na potrzeby max-bytes - wyniki to liczby, flagi i male rekordy
+class ResultSize {
+
+    private static final int OBJECT_OVERHEAD = 16;
+
+    static int estimate(Object value) {
+        return switch (value) {
+            case null -> 0;
+            case String text -> 40 + 2 * text.length();
+            case Number number -> OBJECT_OVERHEAD + 8;
+            case Boolean flag -> OBJECT_OVERHEAD;
+            case QueryKey key -> OBJECT_OVERHEAD * 2 + estimate(key.params());
+            case Map<?, ?> map -> map.entrySet().stream()
+                    .mapToInt(entry -> 32 + estimate(entry.getKey()) + estimate(entry.getValue()))
+                    .sum() + 64;
+            case List<?> list -> list.stream().mapToInt(element -> 8 + estimate(element)).sum() + 40;
+            case Record record -> OBJECT_OVERHEAD + 8 * record.getClass().getRecordComponents().length;
+            default -> 64;
+        };
+    }
+}
+
+record CachePolicy(String datasource, String view, Duration ttl, Long maxEntries, DataSize maxBytes) {
+
+    CachePolicy {
+        if (ttl == null) {
+            throw new IllegalArgumentException("Cache policy for " + datasource + "/" + view + " needs a ttl");
+        }
+        if (maxEntries == null && maxBytes == null) {
+            throw new IllegalArgumentException("Cache policy for " + datasource + "/" + view + " needs max-entries or max-bytes");
+        }
+    }
+
+    RuleSource ruleSource() {
+        return new RuleSource(datasource, view);
+    }
+}
+
+@ConfigurationProperties("fraud.query-cache")
+record QueryCacheProperties(List<CachePolicy> policies) {
+
+    QueryCacheProperties {
+        policies = policies == null ? List.of() : policies;
+    }
+}
+
+@Configuration
+@EnableConfigurationProperties(QueryCacheProperties.class)
+class QueryCacheConfig {
+
+    @Bean
+    QueryResultCache queryResultCache(QueryCacheProperties properties) {
+        return new QueryResultCache(properties.policies());
+    }
+}
@@ -0,0 +1,180 @@
+package io.pillopl.fraud_detencion;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//wyniki zapytan w obrebie jednej ewaluacji - wspolne dla wszystkich regul, czyszczone po zakonczeniu requestu
+//klucz: klasa zapytania + parametry ktorych zapytanie faktycznie uzywa (Query.boundParams)
+class QueryScope implements AutoCloseable {
+
+    private static final QueryScope NONE = new QueryScope(false, RuleMetrics.noop());
+
+    private final Map<QueryKey, CompletableFuture<Object>> results;
+    private final AtomicBoolean closed;
+    private final boolean memoizing;
+    private final RuleMetrics metrics;
+    private final AtomicInteger executedQueries;
+
+    private QueryScope(boolean memoizing, RuleMetrics metrics) {
+        this(new ConcurrentHashMap<>(), new AtomicBoolean(), memoizing, metrics, null);
+    }
+
+    private QueryScope(Map<QueryKey, CompletableFuture<Object>> results, AtomicBoolean closed, boolean memoizing,
+                       RuleMetrics metrics, AtomicInteger executedQueries) {
+        this.results = results;
+        this.closed = closed;
+        this.memoizing = memoizing;
+        this.metrics = metrics;
+        this.executedQueries = executedQueries;
+    }
+
+    static QueryScope open() {
+        return open(RuleMetrics.noop());
+    }
+
+    static QueryScope open(RuleMetrics metrics) {
+        return new QueryScope(true, metrics);
+    }
+
+    static QueryScope none() {
+        return NONE;
+    }
+
+    //reguly z wlasnymi pomiarami (sciezka krytyczna grafu) zapisuja je w metrykach requestu
+    RuleMetrics metrics() {
+        return metrics;
+    }
+
+    //ten sam scope (wspolne wyniki), ale zapytania faktycznie wykonane przez regule doliczamy do `executedQueries`
+    //wynik wziety od innej reguly nic nie kosztuje - to jest koszt reguly w RuleExecution
+    QueryScope countingInto(AtomicInteger executedQueries) {
+        return new QueryScope(results, closed, memoizing, metrics, executedQueries);
+    }
+
+    <T> T execute(Query<T> query, Map<String, String> params) {
+        if (query instanceof FusedQuery.Part<T> part) {
+            return part.of(execute(part.fused(), params));
+        }
+        if (!memoizing || closed.get()) {
+            return measured(query, params);
+        }
+        QueryKey key = QueryKey.of(query, params);
+        CompletableFuture<Object> mine = new CompletableFuture<>();
+        CompletableFuture<Object> running = results.putIfAbsent(key, mine);
+        if (running != null) {
+            return awaitShared(running);
+        }
+        try {
+            T result = measured(query, params);
+            mine.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            results.remove(key, mine);
+            throw e;
+        }
+    }
+
+    //to samo co execute, ale bez czekania - wspolny wynik z innej reguly (tez blokujacej) dostajemy jako stage
+    @SuppressWarnings("unchecked")
+    <T> CompletionStage<T> executeAsync(Query<T> query, Map<String, String> params, Executor blocking) {
+        if (query instanceof FusedQuery.Part<T> part) {
+            CompletableFuture<List<Object>> fused = executeAsync(part.fused(), params, blocking).toCompletableFuture();
+            return Query.cancelling(fused.thenApply(part::of), fused);
+        }
+        if (!memoizing || closed.get()) {
+            return measuredAsync(query, params, blocking);
+        }
+        QueryKey key = QueryKey.of(query, params);
+        CompletableFuture<Object> mine = new CompletableFuture<>();
+        CompletableFuture<Object> running = results.putIfAbsent(key, mine);
+        if (running != null) {
+            return running.thenApply(result -> (T) result);
+        }
+        //anulowanie przez regule ktora uruchomila zapytanie przerywa je tez dla pozostalych regul requestu
+        //- scheduler anuluje wtedy (deadline, pewny werdykt) i tak wszystkie niepoliczone
+        CompletableFuture<T> call = measuredAsync(query, params, blocking).toCompletableFuture();
+        call.whenComplete((result, error) -> {
+            if (error != null) {
+                mine.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+                results.remove(key, mine);
+            } else {
+                mine.complete(result);
+            }
+        });
+        return Query.cancelling(mine.thenApply(result -> (T) result), call);
+    }
+
+    private <T> CompletionStage<T> measuredAsync(Query<T> query, Map<String, String> params, Executor blocking) {
+        if (executedQueries != null) {
+            executedQueries.incrementAndGet();
+        }
+        long start = System.nanoTime();
+        CompletableFuture<T> result;
+        try {
+            result = query.executeAsync(params, blocking).toCompletableFuture();
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+        return Query.cancelling(result.whenComplete((value, error) -> metrics.recordQuery(query, System.nanoTime() - start)), result);
+    }
+
+    private <T> T measured(Query<T> query, Map<String, String> params) {
+        if (executedQueries != null) {
+            executedQueries.incrementAndGet();
+        }
+        long start = System.nanoTime();
+        try {
+            return query.execute(params);
+        } finally {
+            metrics.recordQuery(query, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed.set(true);
+        results.clear();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T awaitShared(CompletableFuture<Object> running) {
+        try {
+            return (T) running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for shared query result");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    record QueryKey(Object query, Map<String, String> params) {
+
+        //anonimowe klasy i lambdy nie mowia nic o tym co odpytuja - dla nich kluczem jest instancja
+        static QueryKey of(Query<?> query, Map<String, String> params) {
+            while (query instanceof DelegatingQuery<?> decorator) {
+                query = decorator.delegate();
+            }
+            //sklejone zapytania rozni zestaw agregatow - kluczem jest ich SQL
+            if (query instanceof FusedQuery fused) {
+                return new QueryKey(fused.sql(), query.boundParams(params));
+            }
+            Class<?> type = query.getClass();
+            Object identity = type.isAnonymousClass() || type.isHidden() ? query : type;
+            return new QueryKey(identity, query.boundParams(params));
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package io.pillopl.fraud_detencion;
+
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.toList;
+
+//wspolny pipeline dla zapytan o czlonkostwo w zbiorach redisowych (emaile, urzadzenia, IP, karty...)
+//rownolegle lookupy zbieramy przez maxWait i wysylamy jednym round tripem - po jednym SMISMEMBER na klucz
+//z natywnym async API Lettuce paczka idzie bez watku flush - SMISMEMBER-y leca jeden za drugim tym samym
+//polaczeniem, odpowiedzi przychodza na event loopie; bez niego executePipelined na puli `flushes`
+class RedisPipeline implements AutoCloseable {
+
+    private final RedisOperations<String, String> redis;
+    private final RedisAsyncCommands<String, String> commands;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService flushes = Executors.newFixedThreadPool(2);
+    private final MicroBatcher<SetMembership, Boolean> batcher;
+
+    RedisPipeline(RedisOperations<String, String> redis, Duration maxWait, int maxBatchSize) {
+        this(redis, null, maxWait, maxBatchSize);
+    }
+
+    RedisPipeline(RedisOperations<String, String> redis, RedisAsyncCommands<String, String> commands,
+                  Duration maxWait, int maxBatchSize) {
+        this.redis = redis;
+        this.commands = commands;
+        this.batcher = commands == null
+                ? new MicroBatcher<>(maxWait, maxBatchSize, this::pipelined, timer, flushes)
+                : new MicroBatcher<>(maxWait, maxBatchSize, this::pipelinedAsync, timer);
+    }
+
+    CompletableFuture<Boolean> isMember(String key, String member) {
+        if (member == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return batcher.submit(new SetMembership(key, member));
+    }
+
+    //batch z jednego miejsca (backfill) - nie czekamy na innych, od razu SMISMEMBER
+    List<Boolean> areMembers(String key, List<String> members) {
+        List<String> present = members.stream().filter(Objects::nonNull).distinct().toList();
+        if (present.isEmpty()) {
+            return members.stream().map(member -> false).toList();
+        }
+        Map<Object, Boolean> found = redis.opsForSet().isMember(key, present.toArray());
+        return members.stream().map(member -> member != null && Boolean.TRUE.equals(found.get(member))).toList();
+    }
+
+    private List<Boolean> pipelined(List<SetMembership> lookups) {
+        Map<String, List<SetMembership>> byKey = byKey(lookups);
+        List<String> keys = new ArrayList<>(byKey.keySet());
+        List<Object> replies = redis.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                smIsMember(connection, key, byKey.get(key));
+            }
+            return null;
+        });
+        Map<String, List<?>> repliesByKey = new HashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            repliesByKey.put(keys.get(i), (List<?>) replies.get(i));
+        }
+        return matched(lookups, byKey, repliesByKey::get);
+    }
+
+    private CompletionStage<List<Boolean>> pipelinedAsync(List<SetMembership> lookups) {
+        Map<String, List<SetMembership>> byKey = byKey(lookups);
+        Map<String, CompletableFuture<List<Boolean>>> replies = new HashMap<>();
+        byKey.forEach((key, members) -> replies.put(key,
+                commands.smismember(key, members.stream().map(SetMembership::member).toArray(String[]::new)).toCompletableFuture()));
+        return CompletableFuture.allOf(replies.values().toArray(CompletableFuture[]::new))
+                .thenApply(done -> matched(lookups, byKey, key -> replies.get(key).join()));
+    }
+
+    private static Map<String, List<SetMembership>> byKey(List<SetMembership> lookups) {
+        return lookups.stream().collect(groupingBy(SetMembership::key, LinkedHashMap::new, toList()));
+    }
+
+    //odpowiedz SMISMEMBER dla klucza ma wyniki w kolejnosci czlonkow z byKey
+    private static List<Boolean> matched(List<SetMembership> lookups, Map<String, List<SetMembership>> byKey,
+                                         Function<String, List<?>> reply) {
+        Map<SetMembership, Boolean> results = new HashMap<>();
+        byKey.forEach((key, members) -> {
+            List<?> found = reply.apply(key);
+            for (int j = 0; j < members.size(); j++) {
+                results.put(members.get(j), Boolean.TRUE.equals(found.get(j)));
+            }
+        });
+        return lookups.stream().map(results::get).toList();
+    }
+
+    private static void smIsMember(RedisConnection connection, String key, List<SetMembership> members) {
+        byte[][] values = members.stream().map(m -> RedisSerializer.string().serialize(m.member())).toArray(byte[][]::new);
+        connection.setCommands().sMIsMember(RedisSerializer.string().serialize(key), values);
+    }
+
+    @Override
+    public void close() {
+        timer.shutdown();
+        flushes.shutdown();
+    }
+
+    private record SetMembership(String key, String member) {
+    }
+}
+
+//zapytanie "czy params[param] jest w zbiorze key" - EmailOnBlacklist i kolejne blacklisty
+abstract class RedisSetMembershipQuery implements BatchQuery<Boolean> {
+
+    private final RedisPipeline pipeline;
+    private final String key;
+    private final String param;
+    private final RuleSource ruleSource;
+    private final RedisSetMirror mirror;
+
+    RedisSetMembershipQuery(RedisPipeline pipeline, String key, String param, RuleSource ruleSource) {
+        this(pipeline, key, param, ruleSource, null);
+    }
+
+    RedisSetMembershipQuery(RedisPipeline pipeline, String key, String param, RuleSource ruleSource, RedisSetMirror mirror) {
+        this.pipeline = pipeline;
+        this.key = key;
+        this.param = param;
+        this.ruleSource = ruleSource;
+        this.mirror = mirror;
+    }
+
+    @Override
+    public Boolean execute(Map<String, String> params) {
+        try {
+            return lookup(params).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for " + key + " lookup");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    //czekamy na paczke pipeline'u, nie na watku reguly
+    @Override
+    public boolean nonBlocking() {
+        return true;
+    }
+
+    @Override
+    public CompletionStage<Boolean> executeAsync(Map<String, String> params, Executor blocking) {
+        return lookup(params);
+    }
+
+    private CompletableFuture<Boolean> lookup(Map<String, String> params) {
+        String member = params.get(param);
+        return definitelyAbsent(member) ? CompletableFuture.completedFuture(false) : pipeline.isMember(key, member);
+    }
+
+    @Override
+    public List<Boolean> executeAll(List<Map<String, String>> params) {
+        List<String> probable = params.stream()
+                .map(p -> p.get(param))
+                .map(member -> definitelyAbsent(member) ? null : member)
+                .toList();
+        return pipeline.areMembers(key, probable);
+    }
+
+    private boolean definitelyAbsent(String member) {
+        return member == null || (mirror != null && !mirror.mightContain(member));
+    }
+
+    @Override
+    public Map<String, String> boundParams(Map<String, String> params) {
+        return Query.select(params, param);
+    }
+
+    @Override
+    public RuleSource ruleSource() {
+        return ruleSource;
+    }
+}
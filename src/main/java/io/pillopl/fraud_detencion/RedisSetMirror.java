@@ -0,0 +1,155 @@
+package io.pillopl.fraud_detencion;
+
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.Limit;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.ScanOptions;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+//lokalna kopia zbioru redisowego w filtrze Blooma - ponad 99.9% sprawdzanych wartosci w zbiorze nie ma,
+//wiec "na pewno nie ma" odpowiadamy lokalnie, a do Redisa idziemy tylko z "moze jest"
+//kontrakt zapisujacych: SADD <key> m + XADD <key>:added MAXLEN ~ N * member m, SREM <key> m + INCR <key>:removals
+//dodane czlonki dokladamy do filtra przyrostowo (XRANGE od ostatnio przeczytanego id), pelna przebudowa (SSCAN)
+//tylko gdy cos usunieto (filtr Blooma nie umie usuwac), strumien przycieto za naszym id albo filtr sie przepelnil
+//SCARD nie wykrywa zmian - SREM + SADD zostawia ten sam rozmiar
+class RedisSetMirror implements AutoCloseable {
+
+    private static final int SCAN_COUNT = 1000;
+    private static final double GROWTH_HEADROOM = 1.2;
+    private static final long MIN_CAPACITY = 1000;
+    private static final String NOTHING_READ = "0-0";
+
+    private final RedisOperations<String, String> redis;
+    private final String key;
+    private final double falsePositiveRate;
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor();
+
+    //filtr zmienia tylko watek odswiezajacy; po dolozeniu czlonkow publikujemy nowy Snapshot (volatile)
+    private volatile Snapshot snapshot;
+
+    RedisSetMirror(RedisOperations<String, String> redis, String key, double falsePositiveRate) {
+        this.redis = redis;
+        this.key = key;
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    void start(Duration refreshInterval) {
+        refresher.scheduleWithFixedDelay(this::refreshQuietly, 0, refreshInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    //dopoki nie zaladowalismy filtra - wszystko "moze byc", czyli pytamy Redisa
+    boolean mightContain(String member) {
+        Snapshot current = snapshot;
+        return current == null || current.filter().mightContain(member);
+    }
+
+    long memoryBytes() {
+        Snapshot current = snapshot;
+        return current == null ? 0 : current.filter().memoryBytes();
+    }
+
+    double falsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    void refresh() {
+        String removals = redis.opsForValue().get(key + ":removals");
+        Snapshot current = snapshot;
+        if (current == null || !Objects.equals(current.removals(), removals) || trimmedPast(current.lastId())) {
+            snapshot = rebuild(removals);
+            return;
+        }
+        Snapshot updated = addNewMembers(current);
+        if (updated.members() > updated.capacity()) {
+            snapshot = rebuild(removals);
+        } else if (updated != current) {
+            snapshot = updated;
+        }
+    }
+
+    //id ostatniego wpisu czytamy przed SSCAN - co dojdzie w trakcie, dolozymy jeszcze raz (Bloom jest idempotentny)
+    //SCARD tylko do rozmiaru filtra
+    private Snapshot rebuild(String removals) {
+        String lastId = lastAddedId();
+        Long size = redis.opsForSet().size(key);
+        long capacity = Math.max(MIN_CAPACITY, (long) ((size == null ? 0 : size) * GROWTH_HEADROOM));
+        BloomFilter filter = BloomFilter.forExpectedInsertions(capacity, falsePositiveRate);
+        long members = 0;
+        try (Cursor<String> cursor = redis.opsForSet().scan(key, ScanOptions.scanOptions().count(SCAN_COUNT).build())) {
+            while (cursor.hasNext()) {
+                filter.put(cursor.next());
+                members++;
+            }
+        }
+        return addNewMembers(new Snapshot(filter, removals, lastId, members, capacity));
+    }
+
+    private Snapshot addNewMembers(Snapshot current) {
+        String lastId = current.lastId();
+        long members = current.members();
+        List<MapRecord<String, Object, Object>> added;
+        do {
+            added = redis.opsForStream().range(key + ":added",
+                    Range.of(Range.Bound.exclusive(lastId), Range.Bound.unbounded()), Limit.limit().count(SCAN_COUNT));
+            for (MapRecord<String, Object, Object> record : added) {
+                Object member = record.getValue().get("member");
+                if (member != null) {
+                    current.filter().put(member.toString());
+                    members++;
+                }
+                lastId = record.getId().getValue();
+            }
+        } while (added.size() == SCAN_COUNT);
+        return lastId.equals(current.lastId()) ? current
+                : new Snapshot(current.filter(), current.removals(), lastId, members, current.capacity());
+    }
+
+    private String lastAddedId() {
+        List<MapRecord<String, Object, Object>> last = redis.opsForStream()
+                .reverseRange(key + ":added", Range.unbounded(), Limit.limit().count(1));
+        return last.isEmpty() ? NOTHING_READ : last.getFirst().getId().getValue();
+    }
+
+    //najstarszy wpis nowszy niz nasz ostatni - wpisy pomiedzy mogly zostac przyciete przez MAXLEN
+    //przy pustym strumieniu w chwili przebudowy (NOTHING_READ) przyciecia nie wykryjemy - MAXLEN musi byc z zapasem
+    private boolean trimmedPast(String lastId) {
+        if (NOTHING_READ.equals(lastId)) {
+            return false;
+        }
+        List<MapRecord<String, Object, Object>> first = redis.opsForStream()
+                .range(key + ":added", Range.unbounded(), Limit.limit().count(1));
+        if (first.isEmpty()) {
+            return false;
+        }
+        RecordId oldest = first.getFirst().getId();
+        RecordId read = RecordId.of(lastId);
+        return oldest.getTimestamp() > read.getTimestamp()
+                || oldest.getTimestamp().equals(read.getTimestamp()) && oldest.getSequence() > read.getSequence();
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        } catch (RuntimeException e) {
+            //zostaje poprzedni filtr - nastepna proba za refreshInterval
+        }
+    }
+
+    @Override
+    public void close() {
+        refresher.shutdownNow();
+    }
+
+    //members - ile wlozylismy do filtra (z powtorzeniami), capacity - na ile byl liczony
+    private record Snapshot(BloomFilter filter, String removals, String lastId, long members, long capacity) {
+    }
+}
@@ -0,0 +1,70 @@
+package io.pillopl.fraud_detencion;
+
+import java.util.Arrays;
+
+//okno przesuwne per slot: `buckets` kubelkow po `bucketDays` dni, plaskie tablice prymitywow [slot * buckets + kubelek]
+//pamiec stala od startu (capacity * buckets * 24B) - bez obiektow per klucz, latwo przeniesc do ByteBuffer poza sterta
+//kubelek pamieta swoj okres (epoch) - pierwszy zapis nowego okresu zeruje to co zostalo z okresu sprzed `buckets`
+//okno liczone w pelnych kubelkach: biezacy + windowDays / bucketDays poprzednich
+//nie jest thread-safe - synchronizacja po stronie FeatureStore (jeden pisarz)
+final class RollingCounters {
+
+    private final int buckets;
+    private final int bucketDays;
+    private final long[] epochs;
+    private final long[] counts;
+    private final double[] sums;
+
+    RollingCounters(int capacity, int windowDays, int bucketDays) {
+        this.bucketDays = bucketDays;
+        this.buckets = windowDays / bucketDays + 1;
+        this.epochs = new long[capacity * buckets];
+        this.counts = new long[capacity * buckets];
+        this.sums = new double[capacity * buckets];
+        Arrays.fill(epochs, Long.MIN_VALUE);
+    }
+
+    //day = LocalDate.toEpochDay(); zdarzenie starsze niz okres ktory juz zajal kubelek wypadlo z okna - pomijamy
+    void add(int slot, long day, long count, double sum) {
+        long epoch = Math.floorDiv(day, bucketDays);
+        int i = slot * buckets + Math.floorMod(epoch, buckets);
+        if (epochs[i] != epoch) {
+            if (epochs[i] > epoch) {
+                return;
+            }
+            epochs[i] = epoch;
+            counts[i] = 0;
+            sums[i] = 0;
+        }
+        counts[i] += count;
+        sums[i] += sum;
+    }
+
+    void clear() {
+        Arrays.fill(epochs, Long.MIN_VALUE);
+        Arrays.fill(counts, 0);
+        Arrays.fill(sums, 0);
+    }
+
+    long count(int slot, long today) {
+        long from = Math.floorDiv(today, bucketDays) - buckets + 1;
+        long count = 0;
+        for (int i = slot * buckets; i < (slot + 1) * buckets; i++) {
+            if (epochs[i] >= from) {
+                count += counts[i];
+            }
+        }
+        return count;
+    }
+
+    double sum(int slot, long today) {
+        long from = Math.floorDiv(today, bucketDays) - buckets + 1;
+        double sum = 0;
+        for (int i = slot * buckets; i < (slot + 1) * buckets; i++) {
+            if (epochs[i] >= from) {
+                sum += sums[i];
+            }
+        }
+        return sum;
+    }
+}
@@ -1,24 +1,58 @@
 package io.pillopl.fraud_detencion;
 
-import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 public interface Rule {
     Score calculate(Map<String, String> params);
 
-    default Score calculateAndMeasure(Map<String, String> params) {
-        Long start = System.nanoTime();
-        Score score = calculate(params);
-        Long end = System.nanoTime();
-        System.out.println("Elapsed time of " + this.getClass() + ": " + Duration.ofNanos(end - start).toMillis());
-        return score;
+    default Score calculate(Map<String, String> params, QueryScope scope) {
+        return calculate(params);
+    }
+
+    //wiele zestawow parametrow naraz (backfill, re-scoring) - wynik i-ty odpowiada params.get(i)
+    default List<Score> calculateAll(List<Map<String, String>> params) {
+        return params.stream().map(this::calculate).toList();
     }
 
     String id();
+
+    //skad regula bierze dane - reguly bez zapytan (albo z nieznanym zrodlem) zwracaja empty
+    default Optional<RuleSource> ruleSource() {
+        return Optional.empty();
+    }
+
+    //najwiekszy score jaki regula moze dac - empty gdy nieznany (np. ScoreCheck z lambdy)
+    default Optional<Score> maxScore() {
+        return Optional.empty();
+    }
+
+    //regula ktorej zapytania nie blokuja watku - RuleScheduler nie daje jej watku z puli na czas I/O
+    default boolean nonBlocking() {
+        return false;
+    }
+
+    //`blocking` - gdzie wykonac to co jednak blokuje (zapytania JDBC w mieszanej regule)
+    default CompletionStage<Score> calculateAsync(Map<String, String> params, QueryScope scope, Executor blocking) {
+        return CompletableFuture.supplyAsync(() -> calculate(params, scope), blocking);
+    }
 }
 
 class QueriedRule<T> implements Rule {
@@ -35,25 +69,51 @@ class QueriedRule<T> implements Rule {
 
     QueriedRule(String id, Predicate<T> check, Query<T> query, Score score) {
         this.id = id;
-        this.check = data -> {
-            if (check.test(data)) {
-                return score;
-            }
-            return Score.zero();
-        };
+        this.check = ScoreCheck.when(check, score);
         this.query = query;
     }
 
     @Override
     public Score calculate(Map<String, String> params) {
-        T result = query.measureAndExecute(params);
+        return calculate(params, QueryScope.none());
+    }
+
+    @Override
+    public Score calculate(Map<String, String> params, QueryScope scope) {
+        T result = scope.execute(query, params);
         return check.scoreOver(result);
     }
 
+    @Override
+    public boolean nonBlocking() {
+        return query.nonBlocking();
+    }
+
+    @Override
+    public CompletionStage<Score> calculateAsync(Map<String, String> params, QueryScope scope, Executor blocking) {
+        CompletableFuture<T> result = scope.executeAsync(query, params, blocking).toCompletableFuture();
+        return Query.cancelling(result.thenApply(check::scoreOver), result);
+    }
+
+    @Override
+    public List<Score> calculateAll(List<Map<String, String>> params) {
+        return BatchQuery.executeAll(query, params).stream().map(check::scoreOver).toList();
+    }
+
     @Override
     public String id() {
         return id;
     }
+
+    @Override
+    public Optional<RuleSource> ruleSource() {
+        return Optional.ofNullable(query.ruleSource());
+    }
+
+    @Override
+    public Optional<Score> maxScore() {
+        return check.maxScore();
+    }
 }
 
 class NonQueriedRule implements Rule {
@@ -75,6 +135,11 @@ class NonQueriedRule implements Rule {
     public String id() {
         return id;
     }
+
+    @Override
+    public Optional<Score> maxScore() {
+        return check.maxScore();
+    }
 }
 
 //a co jak jeden scorecheck potrzebuje dodatkowego zrodla?
@@ -92,7 +157,32 @@ class SingleSourceQueriedRule<T> implements Rule {
 
     @Override
     public Score calculate(Map<String, String> params) {
-        T result = query.measureAndExecute(params);
+        return calculate(params, QueryScope.none());
+    }
+
+    @Override
+    public Score calculate(Map<String, String> params, QueryScope scope) {
+        T result = scope.execute(query, params);
+        return scoreOver(result);
+    }
+
+    @Override
+    public boolean nonBlocking() {
+        return query.nonBlocking();
+    }
+
+    @Override
+    public CompletionStage<Score> calculateAsync(Map<String, String> params, QueryScope scope, Executor blocking) {
+        CompletableFuture<T> result = scope.executeAsync(query, params, blocking).toCompletableFuture();
+        return Query.cancelling(result.thenApply(this::scoreOver), result);
+    }
+
+    @Override
+    public List<Score> calculateAll(List<Map<String, String>> params) {
+        return BatchQuery.executeAll(query, params).stream().map(this::scoreOver).toList();
+    }
+
+    private Score scoreOver(T result) {
         Score score = Score.zero();
         for (ScoreCheck<T> check : checks) {
             Score singleScore = check.scoreOver(result);
@@ -105,6 +195,16 @@ class SingleSourceQueriedRule<T> implements Rule {
     public String id() {
         return id;
     }
+
+    @Override
+    public Optional<RuleSource> ruleSource() {
+        return Optional.ofNullable(query.ruleSource());
+    }
+
+    @Override
+    public Optional<Score> maxScore() {
+        return ScoreCheck.sumOfMax(checks);
+    }
 }
 
 class DependentRule<T, P> implements Rule {
@@ -114,53 +214,338 @@ class DependentRule<T, P> implements Rule {
     private final QueriedRule<P> sink;
     private final Predicate<T> condition; //todo - a co jak to jest kosztowne czasowo?
     private final Function<T, Map<String, String>> transmiter;
+    private final Speculation speculation;
+    private final LongAdder conditionsChecked = new LongAdder();
+    private final LongAdder conditionsPassed = new LongAdder();
 
     DependentRule(String id, QueriedRule<T> source, QueriedRule<P> sink, Predicate<T> condition, Function<T, Map<String, String>> transmiter) {
+        this(id, source, sink, condition, transmiter, null);
+    }
+
+    private DependentRule(String id, QueriedRule<T> source, QueriedRule<P> sink, Predicate<T> condition,
+                          Function<T, Map<String, String>> transmiter, Speculation speculation) {
         this.id = id;
         this.source = source;
         this.sink = sink;
         this.condition = condition;
         this.transmiter = transmiter;
+        this.speculation = speculation;
+    }
+
+    //opt-in: sink startuje rownolegle ze source, zamiast dwoch latencji po kolei
+    DependentRule<T, P> speculating(Speculation speculation) {
+        return new DependentRule<>(id, source, sink, condition, transmiter, speculation);
     }
 
     @Override
     public Score calculate(Map<String, String> params) {
+        return calculate(params, QueryScope.none());
+    }
+
+    @Override
+    public Score calculate(Map<String, String> params, QueryScope scope) {
+        Optional<Map<String, String>> predicted = predictedSinkParams(params);
+        if (predicted.isPresent()) {
+            return calculateSpeculatively(params, predicted.get(), scope);
+        }
         Score score = Score.zero();
-        T sourceResult = source.query.execute(params);
+        T sourceResult = scope.execute(source.query, params);
         score = score.add(source.check.scoreOver(sourceResult));
-        if (condition.test(sourceResult)) {
-            Map<String, String> newParams = new HashMap<>();
-            newParams.putAll(params);
-            newParams.putAll(transmiter.apply(sourceResult));
-            P sinkResult = sink.query.execute(newParams);
+        if (conditionHolds(sourceResult)) {
+            P sinkResult = scope.execute(sink.query, sinkParams(params, sourceResult));
             score = score.add(sink.check.scoreOver(sinkResult));
             return score;
         }
         return score;
     }
 
+    //wynik spekulacji bierzemy tylko gdy warunek przeszedl i sink dostalby te same parametry co przewidziane
+    //w kazdym innym przypadku (tez gdy nas anulowano) spekulacyjne zapytanie jest przerywane
+    private Score calculateSpeculatively(Map<String, String> params, Map<String, String> predictedSinkParams, QueryScope scope) {
+        Future<P> speculative = speculation.executor().submit(() -> scope.execute(sink.query, predictedSinkParams));
+        try {
+            T sourceResult = scope.execute(source.query, params);
+            Score score = source.check.scoreOver(sourceResult);
+            if (!conditionHolds(sourceResult)) {
+                return score;
+            }
+            Map<String, String> actualSinkParams = sinkParams(params, sourceResult);
+            P sinkResult = sink.query.boundParams(actualSinkParams).equals(sink.query.boundParams(predictedSinkParams))
+                    ? awaitSpeculative(speculative)
+                    : scope.execute(sink.query, actualSinkParams);
+            return score.add(sink.check.scoreOver(sinkResult));
+        } finally {
+            speculative.cancel(true);
+        }
+    }
+
+    //wystarczy ze source nie blokuje - blokujacy sink i tak idzie na `blocking`, bez watku czekajacego na source
+    @Override
+    public boolean nonBlocking() {
+        return source.nonBlocking();
+    }
+
+    //spekulacja przy zapytaniach nieblokujacych nic nie kosztuje - sink startuje od razu, bez executora Speculation
+    //anulowanie wyniku (deadline schedulera) anuluje uruchomione zapytania - blokujacy sink dostaje przerwanie
+    @Override
+    public CompletionStage<Score> calculateAsync(Map<String, String> params, QueryScope scope, Executor blocking) {
+        List<Future<?>> started = new CopyOnWriteArrayList<>();
+        Optional<Map<String, String>> predicted = predictedSinkParams(params);
+        CompletableFuture<P> speculative = predicted
+                .map(sinkParams -> started(started, scope.executeAsync(sink.query, sinkParams, blocking)))
+                .orElse(null);
+        CompletableFuture<Score> result = started(started, scope.executeAsync(source.query, params, blocking)).thenCompose(sourceResult -> {
+            Score score = source.check.scoreOver(sourceResult);
+            if (!conditionHolds(sourceResult)) {
+                return CompletableFuture.completedFuture(score);
+            }
+            Map<String, String> actualSinkParams = sinkParams(params, sourceResult);
+            CompletableFuture<P> sinkResult = speculative != null
+                    && sink.query.boundParams(actualSinkParams).equals(sink.query.boundParams(predicted.get()))
+                    ? speculative
+                    : started(started, scope.executeAsync(sink.query, actualSinkParams, blocking));
+            return sinkResult.thenApply(value -> score.add(sink.check.scoreOver(value)));
+        });
+        //po kazdym wyniku: uzyte zapytania sa juz zakonczone, wiec anulujemy tylko niepotrzebna spekulacje
+        //(warunek nie przeszedl, inne parametry sinka, blad source) albo wszystko przy deadline
+        result.whenComplete((score, error) -> started.forEach(future -> future.cancel(true)));
+        return result;
+    }
+
+    private static <V> CompletableFuture<V> started(List<Future<?>> started, CompletionStage<V> stage) {
+        CompletableFuture<V> future = stage.toCompletableFuture();
+        started.add(future);
+        return future;
+    }
+
+    private Optional<Map<String, String>> predictedSinkParams(Map<String, String> params) {
+        if (speculation == null || passRate() < speculation.minPassRate()) {
+            return Optional.empty();
+        }
+        return speculation.predictor().apply(params).map(transmitted -> merged(params, transmitted));
+    }
+
+    private boolean conditionHolds(T sourceResult) {
+        boolean holds = condition.test(sourceResult);
+        conditionsChecked.increment();
+        if (holds) {
+            conditionsPassed.increment();
+        }
+        return holds;
+    }
+
+    double passRate() {
+        long checked = conditionsChecked.sum();
+        return checked == 0 ? 0 : (double) conditionsPassed.sum() / checked;
+    }
+
+    private static <P> P awaitSpeculative(Future<P> speculative) {
+        try {
+            return speculative.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for speculative sink");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    @Override
+    public List<Score> calculateAll(List<Map<String, String>> params) {
+        List<T> sourceResults = BatchQuery.executeAll(source.query, params);
+        List<Score> scores = new ArrayList<>(sourceResults.stream().map(source.check::scoreOver).toList());
+        List<Integer> passed = new ArrayList<>();
+        List<Map<String, String>> sinkParams = new ArrayList<>();
+        for (int i = 0; i < sourceResults.size(); i++) {
+            if (conditionHolds(sourceResults.get(i))) {
+                passed.add(i);
+                sinkParams.add(sinkParams(params.get(i), sourceResults.get(i)));
+            }
+        }
+        List<P> sinkResults = BatchQuery.executeAll(sink.query, sinkParams);
+        for (int i = 0; i < passed.size(); i++) {
+            int index = passed.get(i);
+            scores.set(index, scores.get(index).add(sink.check.scoreOver(sinkResults.get(i))));
+        }
+        return scores;
+    }
+
+    private Map<String, String> sinkParams(Map<String, String> params, T sourceResult) {
+        return merged(params, transmiter.apply(sourceResult));
+    }
+
+    private static Map<String, String> merged(Map<String, String> params, Map<String, String> transmitted) {
+        Map<String, String> newParams = new HashMap<>();
+        newParams.putAll(params);
+        newParams.putAll(transmitted);
+        return newParams;
+    }
+
     @Override
     public String id() {
         return id;
     }
+
+    @Override
+    public Optional<RuleSource> ruleSource() {
+        return source.ruleSource();
+    }
+
+    @Override
+    public Optional<Score> maxScore() {
+        return ScoreCheck.sumOfMax(List.of(source.check, sink.check));
+    }
+}
+
+//kiedy DependentRule moze wystartowac sink razem ze source:
+//predictor zgaduje z parametrow requestu co zwroci transmiter (empty = nie wiadomo, nie spekulujemy),
+//minPassRate - dotychczasowy odsetek przypadkow w ktorych warunek przechodzil (0 = zawsze gdy da sie przewidziec)
+record Speculation(ExecutorService executor, Function<Map<String, String>, Optional<Map<String, String>>> predictor,
+                   double minPassRate) {
+
+    static Speculation sameParams(ExecutorService executor, double minPassRate) {
+        return new Speculation(executor, params -> Optional.of(Map.of()), minPassRate);
+    }
 }
 
 interface Query<T> {
     T execute(Map<String, String> params);
 
-    default T measureAndExecute(Map<String, String> params) {
-        Long start = System.nanoTime();
-        T execute = execute(params);
-        Long end = System.nanoTime();
-        System.out.println("Elapsed time of " + this.getClass() + ": " + Duration.ofNanos(end - start).toMillis());
-        return execute;
+    RuleSource ruleSource();
+
+    //parametry od ktorych zalezy wynik - po nich wspoldzielimy wyniki miedzy regulami
+    default Map<String, String> boundParams(Map<String, String> params) {
+        return params;
     }
 
-    RuleSource ruleSource();
+    //true - executeAsync nie trzyma watku na czas I/O (Lettuce async, ClickHouse po HTTP)
+    default boolean nonBlocking() {
+        return false;
+    }
+
+    //zapytanie blokujace idzie na `blocking`; nieblokujace nadpisuja i wynik przychodzi na watku klienta I/O
+    default CompletionStage<T> executeAsync(Map<String, String> params, Executor blocking) {
+        return interruptible(() -> execute(params), blocking);
+    }
+
+    //jak supplyAsync, ale cancel(true) na wyniku przerywa watek ktory wlasnie wykonuje `call` (np. zapytanie JDBC)
+    static <T> CompletableFuture<T> interruptible(Supplier<T> call, Executor blocking) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        FutureTask<Void> task = new FutureTask<>(() -> {
+            try {
+                result.complete(call.get());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+            return null;
+        });
+        cancelling(result, task);
+        blocking.execute(task);
+        return result;
+    }
+
+    //anulowanie `downstream` (stage zbudowany na `upstream`) anuluje tez upstream - CompletableFuture sam tego nie robi
+    static <T> CompletableFuture<T> cancelling(CompletableFuture<T> downstream, Future<?> upstream) {
+        downstream.whenComplete((value, error) -> {
+            if (downstream.isCancelled()) {
+                upstream.cancel(true);
+            }
+        });
+        return downstream;
+    }
+
+    //execute() zapytan nieblokujacych - czeka na executeAsync, wyjatek zapytania bez owijki
+    static <T> T await(CompletionStage<T> result) {
+        try {
+            return result.toCompletableFuture().join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    static Map<String, String> select(Map<String, String> params, String... names) {
+        Map<String, String> selected = new HashMap<>();
+        for (String name : names) {
+            selected.put(name, params.get(name));
+        }
+        return selected;
+    }
+}
+
+//zapytanie ktore potrafi obsluzyc wiele zestawow parametrow jednym round tripem
+interface BatchQuery<T> extends Query<T> {
+    List<T> executeAll(List<Map<String, String>> params);
+
+    static <T> List<T> executeAll(Query<T> query, List<Map<String, String>> params) {
+        if (params.isEmpty()) {
+            return List.of();
+        }
+        if (query instanceof BatchQuery<T> batchQuery) {
+            return batchQuery.executeAll(params);
+        }
+        return params.stream().map(query::execute).toList();
+    }
+}
+
+//dekorator zapytania (cache, limity...) - wyniki i parametry to nadal wyniki i parametry delegata
+interface DelegatingQuery<T> extends Query<T> {
+    Query<T> delegate();
+
+    @Override
+    default Map<String, String> boundParams(Map<String, String> params) {
+        return delegate().boundParams(params);
+    }
+
+    @Override
+    default RuleSource ruleSource() {
+        return delegate().ruleSource();
+    }
+
+    @Override
+    default boolean nonBlocking() {
+        return delegate().nonBlocking();
+    }
 }
 
 interface ScoreCheck<T> {
     Score scoreOver(T data);
+
+    //gorne ograniczenie score - po nim RuleScheduler wie kiedy reszta regul nie zmieni juz werdyktu
+    default Optional<Score> maxScore() {
+        return Optional.empty();
+    }
+
+    static <T> ScoreCheck<T> when(Predicate<T> predicate, Score score) {
+        return new ScoreCheck<>() {
+            @Override
+            public Score scoreOver(T data) {
+                return predicate.test(data) ? score : Score.zero();
+            }
+
+            @Override
+            public Optional<Score> maxScore() {
+                return Optional.of(score);
+            }
+        };
+    }
+
+    static Optional<Score> sumOfMax(List<? extends ScoreCheck<?>> checks) {
+        Score sum = Score.zero();
+        for (ScoreCheck<?> check : checks) {
+            Optional<Score> max = check.maxScore();
+            if (max.isEmpty()) {
+                return Optional.empty();
+            }
+            sum = sum.add(max.get());
+        }
+        return Optional.of(sum);
+    }
 }
 
 record Score(int score) {
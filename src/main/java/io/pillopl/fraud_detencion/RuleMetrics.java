@@ -0,0 +1,180 @@
+package io.pillopl.fraud_detencion;
+
+import io.micrometer.core.instrument.*;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+//czasy regul i zapytan, liczniki timeoutow/bledow/odrzucen i rozklad score - Micrometer (Actuator) + odczyt z kodu
+//nagrywanie bez lockow: histogramy Micrometera stoja na HdrHistogram Recorder, metery trzymamy w mapach zeby nie szukac ich w rejestrze
+class RuleMetrics {
+
+    private static final double[] PERCENTILES = {0.5, 0.95, 0.99};
+
+    private final MeterRegistry registry;
+    private final Map<String, RuleMeters> rules = new ConcurrentHashMap<>();
+    private final Map<Class<?>, Timer> queries = new ConcurrentHashMap<>();
+    private final Map<String, Timer> criticalPaths = new ConcurrentHashMap<>();
+    private final Map<List<String>, Counter> criticalChains = new ConcurrentHashMap<>();
+
+    RuleMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    //bez rejestru - testy i kod ktory nie potrzebuje metryk
+    static RuleMetrics noop() {
+        return new RuleMetrics(new CompositeMeterRegistry());
+    }
+
+    void recordRule(RuleExecution execution) {
+        RuleMeters meters = rule(execution.id());
+        meters.duration().record(execution.duration());
+        meters.score().record(execution.score().score());
+    }
+
+    void recordTimeout(String ruleId) {
+        rule(ruleId).timeouts().increment();
+    }
+
+    void recordError(String ruleId) {
+        rule(ruleId).errors().increment();
+    }
+
+    void recordRejection(String ruleId) {
+        rule(ruleId).rejections().increment();
+    }
+
+    void recordQuery(Query<?> query, long durationNanos) {
+        queries.computeIfAbsent(queryType(query), type -> timer("fraud.query.duration", Tags.of(
+                "query", type.getSimpleName(),
+                "datasource", String.valueOf(query.ruleSource() == null ? null : query.ruleSource().datasource()))))
+                .record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    //czas sciezki krytycznej grafu zaleznosci i ktory lancuch nia byl - lancuchy grafu sa stale, tag ma mala krotnosc
+    void recordCriticalPath(String ruleId, Duration duration, List<String> nodes) {
+        criticalPaths.computeIfAbsent(ruleId, id -> timer("fraud.rule.critical-path", Tags.of("rule", id)))
+                .record(duration);
+        List<String> chain = new ArrayList<>();
+        chain.add(ruleId);
+        chain.addAll(nodes);
+        criticalChains.computeIfAbsent(List.copyOf(chain), key -> Counter.builder("fraud.rule.critical-path.chain")
+                        .tags(Tags.of("rule", ruleId, "chain", String.join(">", nodes)))
+                        .register(registry))
+                .increment();
+    }
+
+    LatencySnapshot criticalPathLatency(String ruleId) {
+        Timer timer = criticalPaths.get(ruleId);
+        return timer == null ? LatencySnapshot.EMPTY : LatencySnapshot.of(timer.takeSnapshot());
+    }
+
+    //ile razy dany lancuch byl sciezka krytyczna reguly
+    long criticalChainCount(String ruleId, List<String> nodes) {
+        List<String> chain = new ArrayList<>();
+        chain.add(ruleId);
+        chain.addAll(nodes);
+        Counter counter = criticalChains.get(chain);
+        return counter == null ? 0 : (long) counter.count();
+    }
+
+    LatencySnapshot ruleLatency(String ruleId) {
+        RuleMeters meters = rules.get(ruleId);
+        return meters == null ? LatencySnapshot.EMPTY : LatencySnapshot.of(meters.duration().takeSnapshot());
+    }
+
+    LatencySnapshot queryLatency(Class<?> queryType) {
+        Timer timer = queries.get(queryType);
+        return timer == null ? LatencySnapshot.EMPTY : LatencySnapshot.of(timer.takeSnapshot());
+    }
+
+    RuleCounters ruleCounters(String ruleId) {
+        RuleMeters meters = rules.get(ruleId);
+        if (meters == null) {
+            return new RuleCounters(0, 0, 0, 0);
+        }
+        return new RuleCounters(meters.duration().count(), (long) meters.timeouts().count(),
+                (long) meters.errors().count(), meters.score().mean());
+    }
+
+    private RuleMeters rule(String ruleId) {
+        return rules.computeIfAbsent(ruleId, id -> {
+            Tags tags = Tags.of("rule", id);
+            return new RuleMeters(
+                    timer("fraud.rule.duration", tags),
+                    DistributionSummary.builder("fraud.rule.score").tags(tags).publishPercentiles(PERCENTILES).register(registry),
+                    Counter.builder("fraud.rule.timeouts").tags(tags).register(registry),
+                    Counter.builder("fraud.rule.errors").tags(tags).register(registry),
+                    Counter.builder("fraud.rule.rejections").tags(tags).register(registry));
+        });
+    }
+
+    private Timer timer(String name, Tags tags) {
+        return Timer.builder(name)
+                .tags(tags)
+                .publishPercentiles(PERCENTILES)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    private static Class<?> queryType(Query<?> query) {
+        while (query instanceof DelegatingQuery<?> decorator) {
+            query = decorator.delegate();
+        }
+        return query.getClass();
+    }
+
+    private record RuleMeters(Timer duration, DistributionSummary score, Counter timeouts, Counter errors,
+                              Counter rejections) {
+    }
+}
+
+record LatencySnapshot(long count, Duration mean, Duration p50, Duration p95, Duration p99) {
+
+    static final LatencySnapshot EMPTY = new LatencySnapshot(0, Duration.ZERO, Duration.ZERO, Duration.ZERO, Duration.ZERO);
+
+    static LatencySnapshot of(HistogramSnapshot snapshot) {
+        Duration p50 = Duration.ZERO, p95 = Duration.ZERO, p99 = Duration.ZERO;
+        for (ValueAtPercentile value : snapshot.percentileValues()) {
+            Duration at = Duration.ofNanos((long) value.value(TimeUnit.NANOSECONDS));
+            if (value.percentile() == 0.5) {
+                p50 = at;
+            } else if (value.percentile() == 0.95) {
+                p95 = at;
+            } else if (value.percentile() == 0.99) {
+                p99 = at;
+            }
+        }
+        return new LatencySnapshot(snapshot.count(), Duration.ofNanos((long) snapshot.mean(TimeUnit.NANOSECONDS)), p50, p95, p99);
+    }
+}
+
+record RuleCounters(long executions, long timeouts, long errors, double meanScore) {
+}
+
+@Configuration
+class RuleMetricsConfig {
+
+    @Bean
+    RuleMetrics ruleMetrics(MeterRegistry registry) {
+        return new RuleMetrics(registry);
+    }
+
+    @Bean
+    MeterBinder emailBlacklistMirrorMetrics(RedisSetMirror emailBlacklistMirror) {
+        return registry -> Gauge.builder("fraud.redis.mirror.memory", emailBlacklistMirror, RedisSetMirror::memoryBytes)
+                .tag("key", EmailOnBlacklist.KEY)
+                .baseUnit("bytes")
+                .register(registry);
+    }
+}
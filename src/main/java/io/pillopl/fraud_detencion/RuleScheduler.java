@@ -0,0 +1,284 @@
+package io.pillopl.fraud_detencion;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+//bierze ExecutionPlan w kolejnosci, najwyzej `parallelism` regul naraz, po deadlinie anuluje reszte
+//z DecisionThresholds konczy tez wczesniej - gdy niepoliczone reguly nie moga juz zmienic werdyktu
+//po kazdym przebiegu wysyla RulesExecuted - z niego RulesStats uczy sie czasow, kosztow i score regul
+class RuleScheduler {
+
+    private final ExecutorService executor;
+    private final int parallelism;
+    private final RuleMetrics metrics;
+    private final Consumer<RulesExecuted> listener;
+
+    RuleScheduler(ExecutorService executor, int parallelism) {
+        this(executor, parallelism, RuleMetrics.noop());
+    }
+
+    RuleScheduler(ExecutorService executor, int parallelism, RuleMetrics metrics) {
+        this(executor, parallelism, metrics, event -> {
+        });
+    }
+
+    RuleScheduler(ExecutorService executor, int parallelism, RuleMetrics metrics, Consumer<RulesExecuted> listener) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive, was " + parallelism);
+        }
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.metrics = metrics;
+        this.listener = listener;
+    }
+
+    ExecutionResult run(ExecutionPlan plan, Map<String, String> params, Duration deadline) {
+        return run(plan, params, deadline, DecisionThresholds.NONE);
+    }
+
+    //konczy wczesniej gdy werdykt jest juz pewny - pozostale reguly anuluje (skipped) zamiast czekac
+    ExecutionResult run(ExecutionPlan plan, Map<String, String> params, Duration deadline, DecisionThresholds thresholds) {
+        long deadlineAt = System.nanoTime() + deadline.toNanos();
+        BlockingQueue<Attempt> completed = new LinkedBlockingQueue<>();
+        Deque<Rule> pending = new ArrayDeque<>(plan.independentRules());
+        List<Attempt> started = new ArrayList<>();
+        Bounds bounds = new Bounds(plan.independentRules());
+        Optional<Verdict> certain = Optional.empty();
+        QueryScope scope = QueryScope.open(metrics);
+
+        try {
+            int running = 0;
+            while ((certain = thresholds.certainVerdict(bounds.score, bounds.maxRemaining())).isEmpty()) {
+                if (remaining(deadlineAt) == 0) {
+                    break;
+                }
+                if (!pending.isEmpty() && running < parallelism) {
+                    started.add(submit(pending.poll(), params, scope, completed));
+                    running++;
+                    continue;
+                }
+                if (running == 0) {
+                    break;
+                }
+                Attempt done = completed.poll(remaining(deadlineAt), TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    break; //deadline - zbieramy to co zdazylo sie policzyc
+                }
+                running--;
+                bounds.account(done);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ExecutionResult result;
+        try {
+            result = collect(started, pending, thresholds, certain);
+        } finally {
+            scope.close();
+        }
+        publish(started, result, params);
+        return result;
+    }
+
+    private Attempt submit(Rule rule, Map<String, String> params, QueryScope scope, BlockingQueue<Attempt> completed) {
+        Attempt attempt = new Attempt(rule);
+        QueryScope charged = scope.countingInto(attempt.executedQueries);
+        if (rule.nonBlocking()) {
+            return submitNonBlocking(attempt, params, charged, completed);
+        }
+        attempt.future = executor.submit(() -> {
+            try {
+                attempt.startedAt = System.nanoTime();
+                return finish(attempt, rule.calculate(params, charged));
+            } catch (RuntimeException e) {
+                attempt.rejected = BulkheadRejectedException.causedBy(e);
+                throw e;
+            } finally {
+                attempt.completed = true;
+                completed.offer(attempt);
+            }
+        });
+        return attempt;
+    }
+
+    //regula nieblokujaca nie zajmuje watku executora - konczy sie na watku klienta I/O (Lettuce, HttpClient)
+    //anulowanie po deadlinie anuluje tez stage reguly - blokujace czesci (sink na executorze) dostaja przerwanie
+    //completed/rejected ustawiamy zanim future sie zakonczy - collect() nie moze zobaczyc zakonczonej bez flag
+    private Attempt submitNonBlocking(Attempt attempt, Map<String, String> params, QueryScope charged, BlockingQueue<Attempt> completed) {
+        attempt.startedAt = System.nanoTime();
+        CompletableFuture<RuleExecution> future = new CompletableFuture<>();
+        attempt.future = future;
+        CompletableFuture<Score> calculation;
+        try {
+            calculation = attempt.rule.calculateAsync(params, charged, executor).toCompletableFuture();
+        } catch (RuntimeException e) {
+            calculation = CompletableFuture.failedFuture(e);
+        }
+        Query.cancelling(future, calculation);
+        calculation.whenComplete((score, error) -> {
+            RuleExecution execution = null;
+            Throwable failure = error;
+            if (failure == null) {
+                try {
+                    execution = finish(attempt, score);
+                } catch (RuntimeException e) {
+                    failure = e;
+                }
+            }
+            attempt.rejected = BulkheadRejectedException.causedBy(failure);
+            attempt.completed = true;
+            if (failure == null) {
+                future.complete(execution);
+            } else {
+                future.completeExceptionally(failure);
+            }
+            completed.offer(attempt);
+        });
+        return attempt;
+    }
+
+    private RuleExecution finish(Attempt attempt, Score score) {
+        RuleExecution execution = new RuleExecution(attempt.rule.id(), Duration.ofNanos(System.nanoTime() - attempt.startedAt),
+                score, attempt.executedQueries.get());
+        metrics.recordRule(execution);
+        attempt.execution = execution;
+        return execution;
+    }
+
+    //reguly przerwane deadlinem tez trafiaja do statystyk - z czasem do momentu anulowania, oznaczone jako timedOut
+    //bez nich srednie widzialyby tylko szybkie przebiegi i wolna regula wygladalaby na tania
+    //reguly ktore nie wystartowaly albo rzucily wyjatkiem nic nie mowia o czasie - pomijamy
+    private void publish(List<Attempt> attempts, ExecutionResult result, Map<String, String> params) {
+        Set<String> timedOut = new HashSet<>(result.timedOut());
+        List<RuleExecution> executions = new ArrayList<>(result.finished());
+        long now = System.nanoTime();
+        for (Attempt attempt : attempts) {
+            long startedAt = attempt.startedAt;
+            if (startedAt != 0 && timedOut.contains(attempt.rule.id())) {
+                executions.add(RuleExecution.timedOut(attempt.rule.id(), Duration.ofNanos(now - startedAt),
+                        attempt.executedQueries.get()));
+            }
+        }
+        if (executions.isEmpty()) {
+            return;
+        }
+        try {
+            listener.accept(new RulesExecuted(executions, params));
+        } catch (RuntimeException e) {
+            //statystyki nie moga zepsuc wyniku requestu
+        }
+    }
+
+    //anulowane po pewnym werdykcie to skipped, nie timeout - nie trafiaja ani do metryk timeoutow, ani do statystyk
+    //odrzucone przez bulkhead datasource to rejected - zero punktow, bez bledu i bez czasu w statystykach
+    private ExecutionResult collect(List<Attempt> started, Collection<Rule> notStarted, DecisionThresholds thresholds,
+                                    Optional<Verdict> certain) {
+        Score score = Score.zero();
+        List<RuleExecution> finished = new ArrayList<>();
+        List<String> timedOut = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+        List<String> skipped = new ArrayList<>();
+        List<String> rejected = new ArrayList<>();
+        List<String> unfinished = certain.isPresent() ? skipped : timedOut;
+        for (Attempt attempt : started) {
+            //completed ustawiamy przed zakonczeniem FutureTask - cancel() moglby jeszcze "anulowac" policzona regule
+            if (!attempt.completed && attempt.future.cancel(true)) {
+                unfinished.add(attempt.rule.id());
+                if (certain.isEmpty()) {
+                    metrics.recordTimeout(attempt.rule.id());
+                }
+                continue;
+            }
+            RuleExecution execution = awaitCompletion(attempt);
+            if (execution != null) {
+                finished.add(execution);
+                score = score.add(execution.score());
+            } else if (attempt.rejected) {
+                rejected.add(attempt.rule.id());
+                metrics.recordRejection(attempt.rule.id());
+            } else {
+                failed.add(attempt.rule.id());
+                metrics.recordError(attempt.rule.id());
+            }
+        }
+        notStarted.forEach(rule -> {
+            unfinished.add(rule.id());
+            if (certain.isEmpty()) {
+                metrics.recordTimeout(rule.id());
+            }
+        });
+        Verdict verdict = certain.isPresent() ? certain.get() : thresholds.verdictFor(score);
+        return new ExecutionResult(score, finished, timedOut, failed, skipped, rejected, verdict);
+    }
+
+    private static RuleExecution awaitCompletion(Attempt attempt) {
+        if (attempt.completed) {
+            return attempt.execution;
+        }
+        try {
+            return attempt.future.get();
+        } catch (ExecutionException | CancellationException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private static long remaining(long deadlineAt) {
+        return Math.max(0, deadlineAt - System.nanoTime());
+    }
+
+    private static final class Attempt {
+        final Rule rule;
+        final AtomicInteger executedQueries = new AtomicInteger();
+        volatile long startedAt;
+        volatile RuleExecution execution;
+        volatile boolean completed;
+        volatile boolean rejected;
+        Future<RuleExecution> future;
+
+        Attempt(Rule rule) {
+            this.rule = rule;
+        }
+    }
+
+    //dolne (score policzonych) i gorne (+ maxScore niepoliczonych) ograniczenie wyniku - tylko watek wolajacy run()
+    private static final class Bounds {
+        Score score = Score.zero();
+        long maxRemaining;
+        int unboundedRemaining;
+
+        Bounds(List<Rule> rules) {
+            rules.forEach(rule -> rule.maxScore().ifPresentOrElse(max -> maxRemaining += max.score(), () -> unboundedRemaining++));
+        }
+
+        //blad reguly = zero punktow, ale juz nic nie doda
+        void account(Attempt attempt) {
+            RuleExecution execution = attempt.execution;
+            if (execution != null) {
+                score = score.add(execution.score());
+            }
+            attempt.rule.maxScore().ifPresentOrElse(max -> maxRemaining -= max.score(), () -> unboundedRemaining--);
+        }
+
+        OptionalLong maxRemaining() {
+            return unboundedRemaining > 0 ? OptionalLong.empty() : OptionalLong.of(maxRemaining);
+        }
+    }
+}
+
+record ExecutionResult(Score score, List<RuleExecution> finished, List<String> timedOut, List<String> failed,
+                       List<String> skipped, List<String> rejected, Verdict verdict) {
+
+    boolean isComplete() {
+        return timedOut.isEmpty() && failed.isEmpty() && rejected.isEmpty();
+    }
+
+    boolean shortCircuited() {
+        return !skipped.isEmpty();
+    }
+}
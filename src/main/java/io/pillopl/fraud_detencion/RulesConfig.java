@@ -2,6 +2,14 @@ package io.pillopl.fraud_detencion;
 
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
-record RulesConfig(List<Rule> rules) {
+//version - kazdy nowo zbudowany zestaw regul dostaje nowy numer, po nim PlanCache rozpoznaje ze plan trzeba policzyc od nowa
+record RulesConfig(List<Rule> rules, long version) {
+
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    RulesConfig(List<Rule> rules) {
+        this(rules, VERSIONS.incrementAndGet());
+    }
 }
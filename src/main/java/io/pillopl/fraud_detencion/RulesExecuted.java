@@ -3,13 +3,27 @@ package io.pillopl.fraud_detencion;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
+import java.util.Map;
 
-record RulesExecuted(Instant when, List<RuleExecution> ruleExecutions) {
+//params - parametry requestu, z ktorych uczy sie MlPlanner
+record RulesExecuted(Instant when, List<RuleExecution> ruleExecutions, Map<String, String> params) {
     public RulesExecuted(List<RuleExecution> build) {
-        this(Instant.now(), build);
+        this(build, Map.of());
+    }
+
+    public RulesExecuted(List<RuleExecution> build, Map<String, String> params) {
+        this(Instant.now(), build, params);
     }
 }
 
-record RuleExecution(String id, Duration duration, Score score, int cost) {
+//timedOut - przerwana deadlinem: czas to tylko dolne ograniczenie (do anulowania), score nieznany - nie zero
+record RuleExecution(String id, Duration duration, Score score, int cost, boolean timedOut) {
+
+    RuleExecution(String id, Duration duration, Score score, int cost) {
+        this(id, duration, score, cost, false);
+    }
 
-}
\ No newline at end of file
+    static RuleExecution timedOut(String id, Duration duration, int cost) {
+        return new RuleExecution(id, duration, Score.zero(), cost, true);
+    }
+}
@@ -50,27 +50,74 @@ record RulesRequest(Set<RequestedRule<?>> requestedRules) {
         return rules;
     }
 
+    //kazde drzewo zaleznosci (isValid gwarantuje brak cykli) to jedna regula:
+    //para rodzic-dziecko -> DependentRule, dluzsze lancuchy i rozgalezienia -> DependencyGraphRule
     private List<Rule> groupDependentQueriedRules(Set<String> usedIds) {
-        //TODO: does not support chains yet
-        List<Rule> rules = new ArrayList<>();
-        Set<RequestedRule<?>> rulesWithDependency = fitlerUsedIds(usedIds)
-                .stream().filter(r -> r.dependsOn() != null && r.dependsOn().type().equals(NeedsData)).collect(toSet());
-        for (RequestedRule<?> rule : rulesWithDependency) {
-            Optional<RequestedRule<?>> poteniallyDependentOn = requestedRules.stream().filter(r -> r.id().equals(rule.dependsOn().dependentOnRule())).findFirst();
-            if (poteniallyDependentOn.isPresent()) {
-                RequestedRule<?> dependentOnRule = poteniallyDependentOn.get();
-                String dependentOnRuleId = dependentOnRule.id();
-                String ruleId = rule.id();
-                DependentRule<?, ?> dependentRule = new DependentRule<>(ruleId + dependentOnRuleId, new QueriedRule<>(dependentOnRuleId, dependentOnRule.scoreCheck(), dependentOnRule.query().get()), new QueriedRule<>(ruleId, rule.scoreCheck(), rule.query().get()), rule.dependsOn().condition(), rule.dependsOn().transmiter());
-                rules.add(dependentRule);
-                usedIds.add(ruleId);
-                usedIds.add(dependentOnRuleId);
+        Map<String, RequestedRule<?>> available = new HashMap<>();
+        fitlerUsedIds(usedIds).forEach(rule -> available.put(rule.id(), rule));
+        Map<String, List<RequestedRule<?>>> children = new HashMap<>();
+        for (RequestedRule<?> rule : available.values()) {
+            if (rule.dependsOn() != null && rule.dependsOn().type().equals(NeedsData) && available.containsKey(rule.dependsOn().dependentOnRule())) {
+                children.computeIfAbsent(rule.dependsOn().dependentOnRule(), parent -> new ArrayList<>()).add(rule);
+            }
+        }
+        children.values().forEach(siblings -> siblings.sort(Comparator.comparing(RequestedRule::id)));
 
+        List<Rule> rules = new ArrayList<>();
+        List<RequestedRule<?>> roots = children.keySet().stream()
+                .map(available::get)
+                .filter(rule -> !isChild(rule, available))
+                .sorted(Comparator.comparing(RequestedRule::id))
+                .toList();
+        for (RequestedRule<?> root : roots) {
+            List<RequestedRule<?>> tree = tree(root, children);
+            if (tree.size() == 2) {
+                RequestedRule<?> child = tree.get(1);
+                RuleDependency<Object> dependency = dependency(child);
+                rules.add(new DependentRule<>(child.id() + root.id(), queried(root), queried(child), dependency.condition(), dependency.transmiter()));
+            } else {
+                rules.add(new DependencyGraphRule(tree.stream().map(RequestedRule::id).collect(Collectors.joining()),
+                        List.of(node(root, children))));
             }
+            tree.forEach(rule -> usedIds.add(rule.id()));
         }
         return rules;
     }
 
+    private static boolean isChild(RequestedRule<?> rule, Map<String, RequestedRule<?>> available) {
+        return rule.dependsOn() != null && rule.dependsOn().type().equals(NeedsData) && available.containsKey(rule.dependsOn().dependentOnRule());
+    }
+
+    private static List<RequestedRule<?>> tree(RequestedRule<?> root, Map<String, List<RequestedRule<?>>> children) {
+        List<RequestedRule<?>> tree = new ArrayList<>();
+        Deque<RequestedRule<?>> toVisit = new ArrayDeque<>(List.of(root));
+        while (!toVisit.isEmpty()) {
+            RequestedRule<?> rule = toVisit.poll();
+            tree.add(rule);
+            toVisit.addAll(children.getOrDefault(rule.id(), List.of()));
+        }
+        return tree;
+    }
+
+    private static DependencyGraphRule.Node node(RequestedRule<?> rule, Map<String, List<RequestedRule<?>>> children) {
+        RuleDependency<Object> dependency = dependency(rule);
+        return new DependencyGraphRule.Node(queried(rule),
+                dependency == null ? null : dependency.condition(),
+                dependency == null ? null : dependency.transmiter(),
+                children.getOrDefault(rule.id(), List.of()).stream().map(child -> node(child, children)).toList());
+    }
+
+    //RequestedRule trzyma zaleznosc bez typu - condition/transmiter dostaja wynik zapytania rodzica jako Object
+    @SuppressWarnings("unchecked")
+    private static RuleDependency<Object> dependency(RequestedRule<?> rule) {
+        return rule.dependsOn();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static QueriedRule<Object> queried(RequestedRule<?> rule) {
+        return new QueriedRule<>(rule.id(), rule.scoreCheck(), rule.query().get());
+    }
+
     private List<Rule> groupBySameDataSource(Set<String> usedIds) {
         List<Rule> rules = new ArrayList<>();
         Map<String, Map<String, List<RequestedRule<?>>>> rulesGroupedByDataSourceAndView =
@@ -78,14 +125,16 @@ record RulesRequest(Set<RequestedRule<?>> requestedRules) {
                         .filter(rule -> rule.query().isPresent())
                         .collect(groupingBy(r -> r.ruleSource().datasource(),
                                 groupingBy(r -> r.ruleSource().view())));
-        for (String dataSource : rulesGroupedByDataSourceAndView.keySet()) { //TODO: if datasource supports multi-query it makes sense to group a query
+        for (String dataSource : rulesGroupedByDataSourceAndView.keySet()) {
             Map<String, List<RequestedRule<?>>> groupedByView = rulesGroupedByDataSourceAndView.get(dataSource);
 
             for (String view : groupedByView.keySet()) {
                 if (groupedByView.get(view).size() > 1) {
                     List<RequestedRule<?>> rulesWithTheSameQuery = groupedByView.get(view);
                     RequestedRule<?> rule = rulesWithTheSameQuery.getFirst();
-                    Rule objectSingleSourceQueriedRule = buildSingleSourceRule(rule.query().get(), rulesWithTheSameQuery);
+                    Rule objectSingleSourceQueriedRule = FusedQuery.fusible(rulesWithTheSameQuery.stream().map(r -> r.query().get()).toList())
+                            ? buildFusedRule(rulesWithTheSameQuery)
+                            : buildSingleSourceRule(rule.query().get(), rulesWithTheSameQuery);
                     rules.add(objectSingleSourceQueriedRule);
                     usedIds.addAll(rulesWithTheSameQuery.stream().map(RequestedRule::id).toList());
                 }
@@ -106,6 +155,19 @@ record RulesRequest(Set<RequestedRule<?>> requestedRules) {
         return new SingleSourceQueriedRule<>(id, checks, (Query<T>) query);
     }
 
+    //rozne zapytania po tym samym widoku - jeden SELECT z agregatami wszystkich, kazdy ScoreCheck dostaje swoj wynik
+    //kolejnosc po id - ten sam zestaw regul daje ten sam SQL (klucz w QueryScope i cache)
+    private static SingleSourceQueriedRule<List<Object>> buildFusedRule(List<RequestedRule<?>> rules) {
+        List<RequestedRule<?>> sorted = rules.stream().sorted(Comparator.comparing(RequestedRule::id)).toList();
+        FusedQuery query = new FusedQuery(sorted.stream().map(r -> (FusibleQuery<?>) r.query().get()).toList());
+        List<ScoreCheck<List<Object>>> checks = new ArrayList<>();
+        for (int i = 0; i < sorted.size(); i++) {
+            checks.add(FusedQuery.onPart(i, sorted.get(i).scoreCheck()));
+        }
+        String id = sorted.stream().map(RequestedRule::id).collect(Collectors.joining());
+        return new SingleSourceQueriedRule<>(id, checks, query);
+    }
+
     private Set<RequestedRule<?>> fitlerUsedIds(Set<String> usedIds) {
         return requestedRules.stream().filter(r -> !usedIds.contains(r.id())).collect(toSet());
     }
@@ -1,57 +1,294 @@
 package io.pillopl.fraud_detencion;
 
-import java.util.HashMap;
+import java.time.Clock;
+import java.time.Duration;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 
-record RulesStats(Map<String, RuleStats> stats) {
+import static java.util.stream.Collectors.toUnmodifiableMap;
+
+//aktualizowane z watkow RuleSchedulera, czytane przez planery na kazdym requescie
+//bez globalnego locka: ConcurrentHashMap regul, w RuleStats LongAddery (striped) i CAS na kubelkach okna
+record RulesStats(Map<String, RuleStats> stats, StatsWindow window) {
+
+    RulesStats {
+        stats = new ConcurrentHashMap<>(stats);
+    }
+
+    RulesStats(Map<String, RuleStats> stats) {
+        this(stats, StatsWindow.DEFAULT);
+    }
 
     static RulesStats empty() {
-        return new RulesStats(new HashMap<>());
+        return empty(StatsWindow.DEFAULT);
+    }
+
+    static RulesStats empty(StatsWindow window) {
+        return new RulesStats(Map.of(), window);
+    }
+
+    void handle(RulesExecuted event) {
+        event.ruleExecutions().forEach(this::update);
     }
 
     void update(RuleExecution ruleExecution) {
-        stats.compute(ruleExecution.id(), (id, stat) -> {
-            if (stat == null) {
-                stat = new RuleStats(ruleExecution.id());
-            }
-            return stat.update(ruleExecution);
-        });
+        stats.computeIfAbsent(ruleExecution.id(), id -> new RuleStats(id, window)).update(ruleExecution);
     }
 
     Optional<RuleStats> get(String id) {
         return Optional.ofNullable(stats.get(id));
     }
+
+    Map<String, RuleStatsSnapshot> snapshot() {
+        return stats.values().stream().collect(toUnmodifiableMap(RuleStats::id, RuleStats::snapshot));
+    }
+}
+
+//okno przesuwne: `buckets` kubelkow po `bucketWidth`, najstarszy wypada przy rotacji
+record StatsWindow(Duration bucketWidth, int buckets, Clock clock) {
+
+    static final StatsWindow DEFAULT = new StatsWindow(Duration.ofSeconds(5), 12, Clock.systemUTC());
+
+    StatsWindow {
+        if (bucketWidth.toMillis() < 1 || buckets < 1) {
+            throw new IllegalArgumentException("Window needs at least one bucket of at least 1ms, was " + buckets + " x " + bucketWidth);
+        }
+    }
+
+    long currentEpoch() {
+        return clock.millis() / bucketWidth.toMillis();
+    }
 }
 
+//srednie z okna (regula ktora zwolnila 5 minut temu nie wyglada juz na szybka), gdy okno puste - z calego zycia
+//percentyle czasu z histogramu log-liniowego (8 podkubelkow na potege dwojki, blad ~6%)
 class RuleStats {
-    String id;
-    int executions = 0;
-    long totalDurationMillis = 0;
-    int totalCost = 0;
-    int totalScore = 0;
+
+    private final String id;
+    private final StatsWindow window;
+    private final Counters lifetime = new Counters(Long.MIN_VALUE);
+    private final AtomicReferenceArray<Counters> ring;
+    private volatile CachedSnapshot cached;
 
     public RuleStats(String id) {
-        this.id  = id;
+        this(id, StatsWindow.DEFAULT);
+    }
+
+    RuleStats(String id, StatsWindow window) {
+        this.id = id;
+        this.window = window;
+        this.ring = new AtomicReferenceArray<>(window.buckets());
+    }
+
+    String id() {
+        return id;
     }
 
     RuleStats update(RuleExecution execution) {
-        executions++;
-        totalDurationMillis += execution.duration().toMillis();
-        totalCost += execution.cost();
-        totalScore += execution.score().score();
+        long micros = execution.duration().toNanos() / 1_000;
+        lifetime.add(micros, execution.cost(), execution.score().score());
+        Counters bucket = bucket(window.currentEpoch());
+        if (bucket != null) {
+            bucket.add(micros, execution.cost(), execution.score().score());
+        }
         return this;
     }
 
     double avgDurationMillis() {
-        return executions == 0 ? 0 : (double) totalDurationMillis / executions;
+        return averages().durationMicros() / 1_000d;
     }
 
     double avgCost() {
-        return executions == 0 ? 0 : (double) totalCost / executions;
+        return averages().cost();
     }
 
     double avgScore() {
-        return executions == 0 ? 0 : (double) totalScore / executions;
+        return averages().score();
+    }
+
+    //przeliczany tylko gdy przyszly nowe wykonania albo okno sie przesunelo - inaczej zwracamy poprzedni
+    RuleStatsSnapshot snapshot() {
+        SnapshotKey key = new SnapshotKey(lifetime.count.sum(), window.currentEpoch());
+        CachedSnapshot current = cached;
+        if (current != null && current.key().equals(key)) {
+            return current.snapshot();
+        }
+        Totals totals = windowTotals(key.epoch(), true);
+        Totals source = totals.count() > 0 ? totals : lifetime.totals(true);
+        Averages averages = source.averages();
+        RuleStatsSnapshot fresh = new RuleStatsSnapshot(id, key.executions(),
+                averages.durationMicros() / 1_000d, averages.cost(), averages.score(),
+                source.percentile(0.5), source.percentile(0.95), source.percentile(0.99));
+        cached = new CachedSnapshot(key, fresh);
+        return fresh;
+    }
+
+    //dowolny percentyl czasu (snapshot ma tylko p50/p95/p99) - liczony za kazdym razem, bez cache
+    Duration percentile(double percentile) {
+        Totals totals = windowTotals(window.currentEpoch(), true);
+        return (totals.count() > 0 ? totals : lifetime.totals(true)).percentile(percentile);
+    }
+
+    private Averages averages() {
+        Totals totals = windowTotals(window.currentEpoch(), false);
+        return (totals.count() > 0 ? totals : lifetime.totals(false)).averages();
+    }
+
+    private Totals windowTotals(long epoch, boolean withHistogram) {
+        Totals totals = Totals.empty(withHistogram);
+        for (int i = 0; i < ring.length(); i++) {
+            Counters bucket = ring.get(i);
+            if (bucket != null && bucket.epoch > epoch - window.buckets() && bucket.epoch <= epoch) {
+                totals = totals.plus(bucket.totals(withHistogram));
+            }
+        }
+        return totals;
+    }
+
+    //kubelek starszej epoki podmieniamy CASem, zapisy ktore trafily do niego w trakcie podmiany przepadaja z okna
+    //(zostaja w lifetime) - cena za brak locka
+    private Counters bucket(long epoch) {
+        int index = (int) Math.floorMod(epoch, (long) ring.length());
+        while (true) {
+            Counters current = ring.get(index);
+            if (current != null && current.epoch == epoch) {
+                return current;
+            }
+            if (current != null && current.epoch > epoch) {
+                return null;
+            }
+            Counters fresh = new Counters(epoch);
+            if (ring.compareAndSet(index, current, fresh)) {
+                return fresh;
+            }
+        }
+    }
+
+    private record SnapshotKey(long executions, long epoch) {
+    }
+
+    private record CachedSnapshot(SnapshotKey key, RuleStatsSnapshot snapshot) {
+    }
+
+    private static final class Counters {
+        final long epoch;
+        final LongAdder count = new LongAdder();
+        final LongAdder durationMicros = new LongAdder();
+        final LongAdder cost = new LongAdder();
+        final LongAdder score = new LongAdder();
+        final AtomicLongArray histogram = new AtomicLongArray(DurationHistogram.SIZE);
+
+        Counters(long epoch) {
+            this.epoch = epoch;
+        }
+
+        void add(long micros, int cost, int score) {
+            count.increment();
+            durationMicros.add(micros);
+            this.cost.add(cost);
+            this.score.add(score);
+            histogram.incrementAndGet(DurationHistogram.index(micros));
+        }
+
+        Totals totals(boolean withHistogram) {
+            long[] counts = null;
+            if (withHistogram) {
+                counts = new long[DurationHistogram.SIZE];
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] = histogram.get(i);
+                }
+            }
+            return new Totals(count.sum(), durationMicros.sum(), cost.sum(), score.sum(), counts);
+        }
+    }
+
+    private record Totals(long count, long durationMicros, long cost, long score, long[] histogram) {
+
+        static Totals empty(boolean withHistogram) {
+            return new Totals(0, 0, 0, 0, withHistogram ? new long[DurationHistogram.SIZE] : null);
+        }
+
+        Totals plus(Totals other) {
+            long[] merged = histogram;
+            if (merged != null) {
+                for (int i = 0; i < merged.length; i++) {
+                    merged[i] += other.histogram[i];
+                }
+            }
+            return new Totals(count + other.count, durationMicros + other.durationMicros,
+                    cost + other.cost, score + other.score, merged);
+        }
+
+        Averages averages() {
+            if (count == 0) {
+                return new Averages(0, 0, 0);
+            }
+            return new Averages((double) durationMicros / count, (double) cost / count, (double) score / count);
+        }
+
+        Duration percentile(double percentile) {
+            return count == 0 ? Duration.ZERO : Duration.ofNanos(DurationHistogram.percentileMicros(histogram, percentile) * 1_000);
+        }
+    }
+
+    private record Averages(double durationMicros, double cost, double score) {
+    }
+}
+
+//kubelki: 0..7us liniowo, dalej 8 podkubelkow na kazda potege dwojki, do 2^40us (~12 dni)
+final class DurationHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40;
+    static final int SIZE = (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private DurationHistogram() {
     }
+
+    static int index(long micros) {
+        long value = Math.min(Math.max(0, micros), (1L << MAX_EXPONENT) - 1);
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    //srodek kubelka
+    static long valueAt(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        int shift = exponent - SUB_BITS;
+        long lower = (long) (SUB_BUCKETS + sub) << shift;
+        return lower + ((1L << shift) >>> 1);
+    }
+
+    static long percentileMicros(long[] counts, double percentile) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return valueAt(i);
+            }
+        }
+        return valueAt(counts.length - 1);
+    }
+}
+
+record RuleStatsSnapshot(String id, long executions, double avgDurationMillis, double avgCost, double avgScore,
+                         Duration p50, Duration p95, Duration p99) {
 }
@@ -1,9 +1,10 @@
 package io.pillopl.fraud_detencion;
 
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.core.RowMapper;
 
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 
 class TransactionSum implements Query<Double> {
 
@@ -15,14 +16,27 @@ class TransactionSum implements Query<Double> {
 
     @Override
     public Double execute(Map<String, String> params) {
-        TransactionsView view = transactions.execute(params);
-        System.out.println("🟢 Suma transakcji: " + view.total());
-        return view.total();
+        return transactions.execute(params).total();
+    }
+
+    @Override
+    public boolean nonBlocking() {
+        return transactions.nonBlocking();
+    }
+
+    @Override
+    public CompletionStage<Double> executeAsync(Map<String, String> params, Executor blocking) {
+        return transactions.executeAsync(params, blocking).thenApply(TransactionsView::total);
+    }
+
+    @Override
+    public Map<String, String> boundParams(Map<String, String> params) {
+        return transactions.boundParams(params);
     }
 
     @Override
     public RuleSource ruleSource() {
-        return null;
+        return transactions.ruleSource();
     }
 
 
@@ -38,82 +52,116 @@ class TransactionAvg implements Query<Double> {
 
     @Override
     public Double execute(Map<String, String> params) {
-        TransactionsView view = transactions.execute(params);
-        System.out.println("🟢 Avg transakcji: " + view.average());
-        return view.average();
+        return transactions.execute(params).average();
     }
 
     @Override
-    public RuleSource ruleSource() {
-        return null;
+    public boolean nonBlocking() {
+        return transactions.nonBlocking();
     }
 
+    @Override
+    public CompletionStage<Double> executeAsync(Map<String, String> params, Executor blocking) {
+        return transactions.executeAsync(params, blocking).thenApply(TransactionsView::average);
+    }
 
-}
-
-
-abstract class CachedJdbcQuery<T> implements Query<T> {
-
-    private final JdbcTemplate jdbcTemplate;
-    private final String sql;
-    private final RowMapper<T> rowMapper;
-    private T result;
-
-    CachedJdbcQuery(JdbcTemplate jdbcTemplate, String sql, RowMapper<T> rowMapper) {
-        this.jdbcTemplate = jdbcTemplate;
-        this.sql = sql;
-        this.rowMapper = rowMapper;
+    @Override
+    public Map<String, String> boundParams(Map<String, String> params) {
+        return transactions.boundParams(params);
     }
 
     @Override
-    public T execute(Map<String, String> params) {
-        if (result != null) {
-            return result;
-        }
-        result = jdbcTemplate.queryForObject(sql, rowMapper);
-        return result;
+    public RuleSource ruleSource() {
+        return transactions.ruleSource();
     }
 
+
 }
 
-class Transactions implements Query<TransactionsView> {
+
+class Transactions implements BatchQuery<TransactionsView> {
+
+    //dzienne stany z transactions_user_daily (migracja V3) zamiast 30 dni surowych transakcji
+    private static final ClickHouseStatement SINGLE = ClickHouseStatement.of(
+            "SELECT " +
+            "  sumMerge(amount_sum) AS total, " +
+            "  avgMerge(amount_avg) AS average " +
+            "FROM transactions_user_daily " +
+            "WHERE user_id = {user_id:String} " +
+            "  AND day >= today() - INTERVAL 30 DAY;");
+
+    private static final ClickHouseStatement BATCH = ClickHouseStatement.of(
+            "SELECT " +
+            "  user_id, " +
+            "  sumMerge(amount_sum) AS total, " +
+            "  avgMerge(amount_avg) AS average " +
+            "FROM transactions_user_daily " +
+            "WHERE user_id IN {user_id:Array(String)} " +
+            "  AND day >= today() - INTERVAL 30 DAY " +
+            "GROUP BY user_id;");
 
     private final JdbcTemplate jdbcTemplate;
-    private TransactionsView cached;
+    private final ClickHouseHttp http;
 
     Transactions(JdbcTemplate jdbcTemplate) {
+        this(jdbcTemplate, null);
+    }
+
+    //z `http` pojedyncze zapytania ida nieblokujaco po HTTP, batche dalej przez JDBC
+    Transactions(JdbcTemplate jdbcTemplate, ClickHouseHttp http) {
         this.jdbcTemplate = jdbcTemplate;
+        this.http = http;
     }
 
     @Override
     public TransactionsView execute(Map<String, String> params) {
-        String sql = build(params.get("user_id"));
-        if (cached != null) {
-            return cached;
+        ClickHouseStatement.Bound bound = SINGLE.bind(params);
+        return jdbcTemplate.query(bound.sql(), bound.args(), bound.types(), rs -> rs.next()
+                ? new TransactionsView(rs.getDouble("total"), rs.getDouble("average"))
+                : TransactionsView.empty());
+    }
+
+    @Override
+    public boolean nonBlocking() {
+        return http != null;
+    }
+
+    @Override
+    public CompletionStage<TransactionsView> executeAsync(Map<String, String> params, Executor blocking) {
+        if (http == null) {
+            return BatchQuery.super.executeAsync(params, blocking);
         }
-        cached = jdbcTemplate.queryForObject(sql, (rs, rowNum) ->
-                new TransactionsView(
-                        rs.getDouble("total"),
-                        rs.getDouble("average")
-                )
-        );
-        return cached;
+        return http.query(SINGLE, params).thenApply(rows -> rows.isEmpty()
+                ? TransactionsView.empty()
+                : new TransactionsView(ClickHouseHttp.number(rows.getFirst().get("total")), ClickHouseHttp.number(rows.getFirst().get("average"))));
     }
 
     @Override
-    public RuleSource ruleSource() {
-        return null;
+    public List<TransactionsView> executeAll(List<Map<String, String>> params) {
+        List<String> userIds = params.stream().map(p -> p.get("user_id")).distinct().toList();
+        Map<String, TransactionsView> views = new HashMap<>();
+        ClickHouseStatement.Bound bound = BATCH.bind(Map.of("user_id", userIds));
+        jdbcTemplate.query(bound.sql(), bound.args(), bound.types(), rs -> {
+            views.put(rs.getString("user_id"), new TransactionsView(rs.getDouble("total"), rs.getDouble("average")));
+        });
+        return params.stream().map(p -> views.getOrDefault(p.get("user_id"), TransactionsView.empty())).toList();
+    }
+
+    @Override
+    public Map<String, String> boundParams(Map<String, String> params) {
+        return Query.select(params, "user_id");
     }
 
-    private String build(String userId) {
-        return "SELECT " +
-                "  sum(amount) AS total, " +
-                "  avg(amount) AS average " +
-                "FROM transactions " +
-                "WHERE user_id = '" + userId + "' " + // use after sql injection thread analysis
-                "  AND transaction_time >= now() - INTERVAL 30 DAY;";
+    @Override
+    public RuleSource ruleSource() {
+        return new RuleSource("clickhouse", "transactions");
     }
 
 }
 
-record TransactionsView(double total, double average) { }
\ No newline at end of file
+record TransactionsView(double total, double average) {
+
+    static TransactionsView empty() {
+        return new TransactionsView(0, 0);
+    }
+}
\ No newline at end of file
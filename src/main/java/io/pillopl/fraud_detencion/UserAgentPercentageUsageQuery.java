@@ -2,58 +2,127 @@ package io.pillopl.fraud_detencion;
 
 import org.springframework.jdbc.core.JdbcTemplate;
 
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
 
-class UserAgentPercentageUsageQuery implements Query<Double> {
+class UserAgentPercentageUsageQuery implements BatchQuery<Double>, FusibleQuery<Double> {
+
+    //czytamy dzienne liczniki z login_user_agent_daily (migracja V1) zamiast roku surowych login_events
+    //procent liczymy po stronie aplikacji - tak samo jak w batchu
+    //bez logowan w oknie: NO_HISTORY (NaN, jak dawne round(matching/total*100,2)) - `<= 0.3` dla NaN nie odpala
+    private static final ClickHouseStatement SINGLE = ClickHouseStatement.of(
+            "SELECT " +
+            "  countMergeIf(logins, user_agent = {user_agent:String}) AS matching_logins, " +
+            "  countMerge(logins) AS total_logins " +
+            "FROM login_user_agent_daily " +
+            "WHERE user_id = {user_id:String} " +
+            "  AND day >= today() - INTERVAL 1 YEAR;");
+
+    //z jednego GROUP BY mamy i total i matching dla kazdego usera
+    private static final ClickHouseStatement BATCH = ClickHouseStatement.of(
+            "SELECT " +
+            "  user_id, " +
+            "  user_agent, " +
+            "  countMerge(logins) AS logins " +
+            "FROM login_user_agent_daily " +
+            "WHERE user_id IN {user_id:Array(String)} " +
+            "  AND day >= today() - INTERVAL 1 YEAR " +
+            "GROUP BY user_id, user_agent;");
+
+    static final double NO_HISTORY = Double.NaN;
 
     private final JdbcTemplate jdbcTemplate;
+    private final ClickHouseHttp http;
 
     UserAgentPercentageUsageQuery(JdbcTemplate jdbcTemplate) {
+        this(jdbcTemplate, null);
+    }
+
+    //z `http` pojedyncze zapytania ida nieblokujaco po HTTP, batche i sklejanie dalej przez JDBC
+    UserAgentPercentageUsageQuery(JdbcTemplate jdbcTemplate, ClickHouseHttp http) {
         this.jdbcTemplate = jdbcTemplate;
+        this.http = http;
     }
 
     @Override
     public Double execute(Map<String, String> params) {
-        String sql = build(params.get("user_id"), params.get("user_agent"));
-        return jdbcTemplate.query(sql, rs -> {
+        ClickHouseStatement.Bound bound = SINGLE.bind(params);
+        return jdbcTemplate.query(bound.sql(), bound.args(), bound.types(), rs -> {
             if (rs.next()) {
-                int matching = rs.getInt("matching_logins");
-                int total = rs.getInt("total_logins");
-                double percent = rs.getDouble("percent");
-                System.out.println(String.format("🟢 %s wystąpił %.2f%% (%d z %d)",
-                        params.get("user_agent"), percent, matching, total));
-                return percent;
+                return percent(rs.getLong("matching_logins"), rs.getLong("total_logins"));
             } else {
-                return 0d;
+                return NO_HISTORY;
             }
         });
     }
 
+    @Override
+    public boolean nonBlocking() {
+        return http != null;
+    }
+
+    @Override
+    public CompletionStage<Double> executeAsync(Map<String, String> params, Executor blocking) {
+        if (http == null) {
+            return BatchQuery.super.executeAsync(params, blocking);
+        }
+        return http.query(SINGLE, params).thenApply(rows -> rows.isEmpty() ? NO_HISTORY
+                : percent(Long.parseLong(rows.getFirst().get("matching_logins")), Long.parseLong(rows.getFirst().get("total_logins"))));
+    }
+
+    @Override
+    public List<Double> executeAll(List<Map<String, String>> params) {
+        List<String> userIds = params.stream().map(p -> p.get("user_id")).distinct().toList();
+        Map<String, Map<String, Integer>> loginsByAgent = new HashMap<>();
+        ClickHouseStatement.Bound bound = BATCH.bind(Map.of("user_id", userIds));
+        jdbcTemplate.query(bound.sql(), bound.args(), bound.types(), rs -> {
+            loginsByAgent.computeIfAbsent(rs.getString("user_id"), id -> new HashMap<>())
+                    .put(rs.getString("user_agent"), rs.getInt("logins"));
+        });
+        //user bez wierszy w GROUP BY - NO_HISTORY, tak jak w execute (backfill liczy tak samo jak online)
+        return params.stream().map(p -> {
+            Map<String, Integer> byAgent = loginsByAgent.getOrDefault(p.get("user_id"), Map.of());
+            int total = byAgent.values().stream().mapToInt(Integer::intValue).sum();
+            return percent(byAgent.getOrDefault(p.get("user_agent"), 0), total);
+        }).toList();
+    }
+
+    @Override
+    public Map<String, String> boundParams(Map<String, String> params) {
+        return Query.select(params, "user_id", "user_agent");
+    }
+
     @Override
     public RuleSource ruleSource() {
-        return null;
-    }
-
-    private String build(String userId, String userAgent) {
-        return "WITH " +
-                "  total AS ( " +
-                "    SELECT count() AS total_logins " +
-                "    FROM login_events " +
-                "    WHERE event_time >= now() - INTERVAL 1 YEAR " +
-                "      AND user_id = '" + userId + "' " +
-                "  ), " +
-                "  agent_count AS ( " +
-                "    SELECT count() AS matching_logins " +
-                "    FROM login_events " +
-                "    WHERE event_time >= now() - INTERVAL 1 YEAR " +
-                "      AND user_id = '" + userId + "' " +
-                "      AND user_agent = '" + userAgent + "' " +
-                "  ) " +
-                "SELECT " +
-                "  matching_logins, " +
-                "  total_logins, " +
-                "  round(matching_logins / total_logins * 100, 2) AS percent " +
-                "FROM agent_count, total;";
+        return new RuleSource("clickhouse", "login_events");
+    }
+
+    @Override
+    public Fusion fusion() {
+        return new Fusion(jdbcTemplate, "login_user_agent_daily", "day >= today() - INTERVAL 1 YEAR");
+    }
+
+    @Override
+    public List<Aggregate> aggregates() {
+        return List.of(
+                new Aggregate("total_logins", "countMergeIf(logins, user_id = {user_id:String})"),
+                new Aggregate("matching_logins", "countMergeIf(logins, user_id = {user_id:String} AND user_agent = {user_agent:String})"));
     }
 
+    @Override
+    public String rowFilter() {
+        return "user_id = {user_id:String}";
+    }
+
+    //ta sama semantyka co execute: bez logowan w oknie NO_HISTORY, nie 0
+    @Override
+    public Double read(Function<String, Object> column) {
+        return percent(((Number) column.apply("matching_logins")).longValue(), ((Number) column.apply("total_logins")).longValue());
+    }
+
+    static double percent(long matching, long total) {
+        return total == 0 ? NO_HISTORY : Math.round(matching * 10000d / total) / 100d;
+    }
 }
@@ -0,0 +1,42 @@
+-- czas wstawienia wiersza (nie czas zdarzenia) - po nim backfill odcina to, co zbiera juz widok; V2 korzysta z tej samej kolumny
+-- MATERIALIZED: nie zmienia INSERT-ow do login_events; istniejace wiersze dostaja czas tej migracji (wczesniej niz widok)
+ALTER TABLE login_events ADD COLUMN IF NOT EXISTS inserted_at DateTime64(3) MATERIALIZED now64(3);
+
+-- mutations_sync = 2: czekamy az stare czesci dostana wartosc, inaczej liczylaby sie przy odczycie (now)
+ALTER TABLE login_events MATERIALIZE COLUMN inserted_at SETTINGS mutations_sync = 2;
+
+-- logowania per (user_id, dzien, user_agent) - z tego UserAgentPercentageUsageQuery liczy total i matching
+CREATE TABLE IF NOT EXISTS login_user_agent_daily
+(
+    user_id    String,
+    day        Date,
+    user_agent String,
+    logins     AggregateFunction(count)
+)
+ENGINE = AggregatingMergeTree
+PARTITION BY toYYYYMM(day)
+ORDER BY (user_id, day, user_agent)
+TTL day + INTERVAL 13 MONTH;
+
+CREATE MATERIALIZED VIEW IF NOT EXISTS login_user_agent_daily_mv TO login_user_agent_daily AS
+SELECT
+    user_id,
+    toDate(event_time) AS day,
+    user_agent,
+    countState() AS logins
+FROM login_events
+GROUP BY user_id, day, user_agent;
+
+-- to co wstawiono przed utworzeniem widoku (nowe wiersze zbiera juz widok), spozniona data zdarzenia nie ma znaczenia
+-- wiersze wstawione w tej samej sekundzie co widok, ale przed nim, moga sie nie policzyc - podwojnie nie liczy sie nic
+INSERT INTO login_user_agent_daily
+SELECT
+    user_id,
+    toDate(event_time) AS day,
+    user_agent,
+    countState() AS logins
+FROM login_events
+WHERE event_time >= now() - INTERVAL 13 MONTH
+  AND inserted_at < (SELECT metadata_modification_time FROM system.tables
+                     WHERE database = currentDatabase() AND name = 'login_user_agent_daily_mv')
+GROUP BY user_id, day, user_agent;
@@ -0,0 +1,31 @@
+-- rozni uzytkownicy per (device_id, dzien) - stan uniqExact, tak jak count(DISTINCT) na surowych danych
+CREATE TABLE IF NOT EXISTS login_device_daily
+(
+    device_id String,
+    day       Date,
+    users     AggregateFunction(uniqExact, String)
+)
+ENGINE = AggregatingMergeTree
+PARTITION BY toYYYYMM(day)
+ORDER BY (device_id, day)
+TTL day + INTERVAL 13 MONTH;
+
+CREATE MATERIALIZED VIEW IF NOT EXISTS login_device_daily_mv TO login_device_daily AS
+SELECT
+    device_id,
+    toDate(event_time) AS day,
+    uniqExactState(user_id) AS users
+FROM login_events
+GROUP BY device_id, day;
+
+-- jak w V1: odciecie po czasie wstawienia, nie po czasie zdarzenia
+INSERT INTO login_device_daily
+SELECT
+    device_id,
+    toDate(event_time) AS day,
+    uniqExactState(user_id) AS users
+FROM login_events
+WHERE event_time >= now() - INTERVAL 13 MONTH
+  AND inserted_at < (SELECT metadata_modification_time FROM system.tables
+                     WHERE database = currentDatabase() AND name = 'login_device_daily_mv')
+GROUP BY device_id, day;
@@ -0,0 +1,39 @@
+-- czas wstawienia wiersza - jak login_events w V1
+ALTER TABLE transactions ADD COLUMN IF NOT EXISTS inserted_at DateTime64(3) MATERIALIZED now64(3);
+
+ALTER TABLE transactions MATERIALIZE COLUMN inserted_at SETTINGS mutations_sync = 2;
+
+-- suma i srednia kwot per (user_id, dzien) - avgMerge po 30 dniach daje dokladna srednia
+CREATE TABLE IF NOT EXISTS transactions_user_daily
+(
+    user_id    String,
+    day        Date,
+    amount_sum AggregateFunction(sum, Float64),
+    amount_avg AggregateFunction(avg, Float64)
+)
+ENGINE = AggregatingMergeTree
+PARTITION BY toYYYYMM(day)
+ORDER BY (user_id, day)
+TTL day + INTERVAL 2 MONTH;
+
+CREATE MATERIALIZED VIEW IF NOT EXISTS transactions_user_daily_mv TO transactions_user_daily AS
+SELECT
+    user_id,
+    toDate(transaction_time) AS day,
+    sumState(toFloat64(amount)) AS amount_sum,
+    avgState(toFloat64(amount)) AS amount_avg
+FROM transactions
+GROUP BY user_id, day;
+
+-- jak w V1: odciecie po czasie wstawienia, nie po czasie zdarzenia
+INSERT INTO transactions_user_daily
+SELECT
+    user_id,
+    toDate(transaction_time) AS day,
+    sumState(toFloat64(amount)) AS amount_sum,
+    avgState(toFloat64(amount)) AS amount_avg
+FROM transactions
+WHERE transaction_time >= now() - INTERVAL 2 MONTH
+  AND inserted_at < (SELECT metadata_modification_time FROM system.tables
+                     WHERE database = currentDatabase() AND name = 'transactions_user_daily_mv')
+GROUP BY user_id, day;
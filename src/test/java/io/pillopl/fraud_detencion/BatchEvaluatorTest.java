@@ -0,0 +1,112 @@
+package io.pillopl.fraud_detencion;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchEvaluatorTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void eachRuleQueriesOncePerBatchAndScoresAreFannedOutInOrder() {
+        // Given
+        LoginCountQuery logins = new LoginCountQuery(Map.of("u1", 50, "u2", 5, "u3", 40));
+        QueriedRule<Integer> manyLogins = new QueriedRule<>("manyLogins", count -> count >= 30, logins, Score.of(20));
+        SingleSourceQueriedRule<Integer> loginChecks = new SingleSourceQueriedRule<>("loginChecks", List.of(
+                count -> count >= 10 ? Score.of(1) : Score.zero(),
+                count -> count >= 45 ? Score.of(2) : Score.zero()), logins);
+        NonQueriedRule emailRule = new NonQueriedRule("emailRule",
+                params -> params.get("email").endsWith("@bad.com") ? Score.of(100) : Score.zero());
+        BatchEvaluator evaluator = new BatchEvaluator(executor, 10);
+
+        // When
+        List<Score> scores = evaluator.evaluate(List.of(manyLogins, loginChecks, emailRule), List.of(
+                Map.of("user_id", "u1", "email", "a@ok.com"),
+                Map.of("user_id", "u2", "email", "b@bad.com"),
+                Map.of("user_id", "u3", "email", "c@ok.com")));
+
+        // Then
+        assertEquals(List.of(Score.of(23), Score.of(100), Score.of(21)), scores);
+        assertEquals(2, logins.batches.size());
+    }
+
+    @Test
+    void paramsAreSplitIntoBatchesOfConfiguredSize() {
+        // Given
+        LoginCountQuery logins = new LoginCountQuery(Map.of());
+        QueriedRule<Integer> rule = new QueriedRule<>("rule", count -> false, logins, Score.of(1));
+        BatchEvaluator evaluator = new BatchEvaluator(executor, 2);
+
+        // When
+        evaluator.evaluate(List.of(rule), List.of(
+                Map.of("user_id", "a"), Map.of("user_id", "b"), Map.of("user_id", "c"),
+                Map.of("user_id", "d"), Map.of("user_id", "e")));
+
+        // Then
+        assertEquals(List.of(2, 2, 1), logins.batches.stream().map(List::size).toList());
+    }
+
+    @Test
+    void dependentRuleBatchesOnlyParamsWhoseConditionPassed() {
+        // Given
+        LoginCountQuery source = new LoginCountQuery(Map.of("u1", 50, "u2", 5));
+        LoginCountQuery sink = new LoginCountQuery(Map.of("u1_device", 7));
+        DependentRule<Integer, Integer> rule = new DependentRule<>("dependent",
+                new QueriedRule<>("source", count -> count >= 30, source, Score.of(10)),
+                new QueriedRule<>("sink", count -> count > 3, sink, Score.of(5)),
+                count -> count >= 30,
+                count -> Map.of("user_id", "u1_device"));
+        BatchEvaluator evaluator = new BatchEvaluator(executor, 10);
+
+        // When
+        List<Score> scores = evaluator.evaluate(List.of(rule), List.of(Map.of("user_id", "u1"), Map.of("user_id", "u2")));
+
+        // Then
+        assertEquals(List.of(Score.of(15), Score.zero()), scores);
+        assertEquals(List.of(1), sink.batches.stream().map(List::size).toList());
+    }
+}
+
+class LoginCountQuery implements BatchQuery<Integer> {
+
+    private final Map<String, Integer> logins;
+    final List<List<Map<String, String>>> batches = new ArrayList<>();
+
+    LoginCountQuery(Map<String, Integer> logins) {
+        this.logins = logins;
+    }
+
+    @Override
+    public Integer execute(Map<String, String> params) {
+        return executeAll(List.of(params)).getFirst();
+    }
+
+    @Override
+    public synchronized List<Integer> executeAll(List<Map<String, String>> params) {
+        batches.add(params);
+        return params.stream().map(p -> logins.getOrDefault(p.get("user_id"), 0)).toList();
+    }
+
+    @Override
+    public Map<String, String> boundParams(Map<String, String> params) {
+        return Query.select(params, "user_id");
+    }
+
+    @Override
+    public RuleSource ruleSource() {
+        return new RuleSource("test", "logins");
+    }
+}
@@ -0,0 +1,46 @@
+package io.pillopl.fraud_detencion;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BloomFilterTest {
+
+    @Test
+    void everyInsertedValueIsReportedAsPossiblyPresent() {
+        // Given
+        BloomFilter filter = BloomFilter.forExpectedInsertions(10_000, 0.001);
+
+        // When
+        IntStream.range(0, 10_000).forEach(i -> filter.put("blacklisted" + i + "@mail.com"));
+
+        // Then
+        assertTrue(IntStream.range(0, 10_000).allMatch(i -> filter.mightContain("blacklisted" + i + "@mail.com")));
+    }
+
+    @Test
+    void falsePositiveRateStaysNearConfiguredValue() {
+        // Given
+        BloomFilter filter = BloomFilter.forExpectedInsertions(10_000, 0.01);
+        IntStream.range(0, 10_000).forEach(i -> filter.put("blacklisted" + i + "@mail.com"));
+
+        // When
+        long falsePositives = IntStream.range(0, 100_000)
+                .filter(i -> filter.mightContain("clean" + i + "@mail.com"))
+                .count();
+
+        // Then
+        assertTrue(falsePositives < 2_000, "false positives: " + falsePositives); // 1% expected, 2% tolerated
+    }
+
+    @Test
+    void memoryGrowsWithLowerFalsePositiveRate() {
+        // Expect
+        long loose = BloomFilter.forExpectedInsertions(1_000_000, 0.01).memoryBytes();
+        long strict = BloomFilter.forExpectedInsertions(1_000_000, 0.0001).memoryBytes();
+        assertTrue(loose < strict);
+        assertEquals(1_198_160, loose, 64); // ~9.6 bits per element
+    }
+}
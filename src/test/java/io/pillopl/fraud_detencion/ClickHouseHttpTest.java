@@ -0,0 +1,77 @@
+package io.pillopl.fraud_detencion;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClickHouseHttpTest {
+
+    private final HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+
+    ClickHouseHttpTest() throws IOException {
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    void sendsTemplateWithServerSideParameters() {
+        // Given
+        AtomicReference<String> query = new AtomicReference<>();
+        AtomicReference<String> body = new AtomicReference<>();
+        respond(200, "total\taverage\n1500.5\tnan\n", query, body);
+        ClickHouseHttp http = ClickHouseHttp.create(URI.create("http://localhost:" + server.getAddress().getPort() + "/"),
+                "default", "", Duration.ofSeconds(2));
+        Transactions transactions = new Transactions(null, http);
+
+        // When
+        TransactionsView view = transactions.executeAsync(Map.of("user_id", "o'neil\t1"), Runnable::run).toCompletableFuture().join();
+
+        // Then
+        assertEquals(1500.5, view.total());
+        assertTrue(Double.isNaN(view.average()));
+        assertTrue(query.get().contains("param_user_id=o'neil\\t1"), query.get());
+        assertTrue(body.get().contains("WHERE user_id = {user_id:String}"), body.get());
+    }
+
+    @Test
+    void failsWithServerErrorMessage() {
+        // Given
+        respond(404, "Code: 60. DB::Exception: Table default.transactions_user_daily does not exist", new AtomicReference<>(), new AtomicReference<>());
+        ClickHouseHttp http = ClickHouseHttp.create(URI.create("http://localhost:" + server.getAddress().getPort() + "/"),
+                "default", "", Duration.ofSeconds(2));
+
+        // Expect
+        IllegalStateException error = assertThrows(IllegalStateException.class,
+                () -> Query.await(new Transactions(null, http).executeAsync(Map.of("user_id", "u1"), Runnable::run)));
+        assertTrue(error.getMessage().contains("does not exist"));
+        assertEquals(List.of(Map.of("a", "x\ty", "b", "")), ClickHouseHttp.rows("a\tb\nx\\ty\t\n"));
+    }
+
+    private void respond(int status, String response, AtomicReference<String> query, AtomicReference<String> body) {
+        server.createContext("/", exchange -> {
+            query.set(exchange.getRequestURI().getQuery());
+            body.set(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+        server.start();
+    }
+}
@@ -0,0 +1,172 @@
+package io.pillopl.fraud_detencion;
+
+import io.pillopl.fraud_detencion.ClickHouseMigrations.Migration;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClickHouseMigrationsTest {
+
+    @Test
+    void splitsScriptIntoStatementsWithoutComments() {
+        // Given
+        String script = """
+                -- tabela
+                CREATE TABLE t
+                (
+                    id String -- klucz
+                ) ENGINE = Memory;
+
+                INSERT INTO t SELECT 'a';
+                """;
+
+        // Expect
+        assertEquals(List.of("CREATE TABLE t\n(\n    id String\n) ENGINE = Memory", "INSERT INTO t SELECT 'a'"),
+                ClickHouseMigrations.statements(script));
+    }
+
+    @Test
+    void shipsRollupTablesForLoginAndTransactionQueries() {
+        // When
+        List<Migration> migrations = ClickHouseMigrations.fromClasspath(new RecordingJdbc(List.of()), ClickHouseMigrations.DEFAULT_LOCATION)
+                .pending(List.of());
+
+        // Then
+        assertEquals(List.of(1, 2, 3), migrations.stream().map(Migration::version).toList());
+        assertTrue(migrations.stream().allMatch(migration -> migration.statements().getLast().startsWith("INSERT INTO")));
+        assertTrue(migrations.stream().allMatch(migration -> migration.statements().getLast().contains("AND inserted_at <")));
+        assertTrue(migrations.getFirst().statements().get(2).contains("ENGINE = AggregatingMergeTree"));
+    }
+
+    @Test
+    void appliesOnlyMigrationsNotRecordedYet() {
+        // Given
+        RecordingJdbc jdbc = new RecordingJdbc(List.of(1));
+        ClickHouseMigrations migrations = new ClickHouseMigrations(jdbc, List.of(
+                new Migration(2, "second", List.of("CREATE TABLE b")),
+                new Migration(1, "first", List.of("CREATE TABLE a")),
+                new Migration(3, "third", List.of("CREATE TABLE c"))));
+
+        // When
+        List<Integer> applied = migrations.migrate();
+
+        // Then
+        assertEquals(List.of(2, 3), applied);
+        assertEquals(List.of("CREATE TABLE b", "CREATE TABLE c"), jdbc.statements());
+        assertEquals(List.of(List.of(2L, 0L, "done"), List.of(2L, "second"), List.of(3L, 0L, "done"), List.of(3L, "third")), jdbc.recorded);
+        assertEquals("DROP TABLE IF EXISTS schema_migrations_lock", jdbc.executed.getLast());
+    }
+
+    @Test
+    void backfillGoesThroughStagingTableAndResumesWithoutInsertingTwice() {
+        // Given
+        RecordingJdbc jdbc = new RecordingJdbc(List.of());
+        jdbc.partitions = List.of("202501", "202502");
+        ClickHouseMigrations migrations = new ClickHouseMigrations(jdbc, List.of(
+                new Migration(1, "rollup", List.of("CREATE TABLE IF NOT EXISTS c", "INSERT INTO c\nSELECT 1"))));
+
+        // When
+        migrations.migrate();
+
+        // Then
+        assertEquals(List.of(
+                "CREATE TABLE IF NOT EXISTS c",
+                "CREATE TABLE IF NOT EXISTS c_backfill AS c",
+                "TRUNCATE TABLE c_backfill",
+                "INSERT INTO c_backfill\nSELECT 1",
+                "ALTER TABLE c_backfill MOVE PARTITION ID '202501' TO TABLE c",
+                "ALTER TABLE c_backfill MOVE PARTITION ID '202502' TO TABLE c",
+                "DROP TABLE c_backfill"), jdbc.statements());
+
+        // Given - crashed after staging, one partition already moved
+        RecordingJdbc resumed = new RecordingJdbc(List.of());
+        resumed.steps = List.of("0:done", "1:staged");
+        resumed.partitions = List.of("202502");
+
+        // When
+        new ClickHouseMigrations(resumed, migrations.pending(List.of())).migrate();
+
+        // Then
+        assertEquals(List.of(
+                "ALTER TABLE c_backfill MOVE PARTITION ID '202502' TO TABLE c",
+                "DROP TABLE c_backfill"), resumed.statements());
+    }
+
+    @Test
+    void takesOverLockLeftByCrashedInstance() {
+        // Given
+        RecordingJdbc jdbc = new RecordingJdbc(List.of());
+        jdbc.lockHeld = true;
+        jdbc.lockAgeSeconds = ClickHouseMigrations.LOCK_STALE.toSeconds() + 1;
+
+        // When
+        migrationsOf(jdbc).migrate();
+
+        // Then
+        assertTrue(jdbc.executed.contains("DROP TABLE IF EXISTS schema_migrations_lock"));
+        assertEquals(List.of("CREATE TABLE a"), jdbc.statements());
+    }
+
+    private static ClickHouseMigrations migrationsOf(RecordingJdbc jdbc) {
+        return new ClickHouseMigrations(jdbc, List.of(new Migration(1, "first", List.of("CREATE TABLE a"))));
+    }
+
+    private static class RecordingJdbc extends JdbcTemplate {
+        private final List<Integer> applied;
+        private final List<String> executed = new ArrayList<>();
+        private final List<List<Object>> recorded = new ArrayList<>();
+        private List<String> steps = List.of();
+        private List<String> partitions = List.of();
+        private boolean lockHeld;
+        private long lockAgeSeconds;
+
+        RecordingJdbc(List<Integer> applied) {
+            this.applied = applied;
+        }
+
+        // statements of migrations, without bookkeeping tables and the lock
+        List<String> statements() {
+            return executed.stream().filter(sql -> !sql.contains("schema_migration")).toList();
+        }
+
+        @Override
+        public void execute(String sql) {
+            if (sql.startsWith("CREATE TABLE schema_migrations_lock") && lockHeld) {
+                throw new DataIntegrityViolationException("Table schema_migrations_lock already exists");
+            }
+            if (sql.startsWith("DROP TABLE IF EXISTS schema_migrations_lock")) {
+                lockHeld = false;
+            }
+            executed.add(sql);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> List<T> queryForList(String sql, Class<T> elementType) {
+            return (List<T>) applied;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> List<T> queryForList(String sql, Object[] args, int[] argTypes, Class<T> elementType) {
+            if (sql.contains("system.parts")) {
+                return (List<T>) partitions;
+            }
+            if (sql.contains("system.tables")) {
+                return (List<T>) List.of(lockAgeSeconds);
+            }
+            return (List<T>) steps;
+        }
+
+        @Override
+        public int update(String sql, Object[] args, int[] argTypes) {
+            recorded.add(List.of(args));
+            return 1;
+        }
+    }
+}
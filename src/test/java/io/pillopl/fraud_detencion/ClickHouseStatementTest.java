@@ -0,0 +1,59 @@
+package io.pillopl.fraud_detencion;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Types;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClickHouseStatementTest {
+
+    @Test
+    void bindsRequestValuesAsParametersNeverAsSql() {
+        // Given
+        ClickHouseStatement statement = ClickHouseStatement.of(
+                "SELECT count() FROM login_events WHERE user_id = {user_id:String} AND user_agent = {user_agent:String}");
+
+        // When
+        ClickHouseStatement.Bound bound = statement.bind(Map.of("user_id", "u1' OR 1=1 --", "user_agent", "Firefox"));
+
+        // Then
+        assertEquals("SELECT count() FROM login_events WHERE user_id = ? AND user_agent = ?", bound.sql());
+        assertArrayEquals(new Object[]{"u1' OR 1=1 --", "Firefox"}, bound.args());
+        assertArrayEquals(new int[]{Types.VARCHAR, Types.VARCHAR}, bound.types());
+    }
+
+    @Test
+    void convertsValuesToDeclaredTypes() {
+        // Given
+        ClickHouseStatement statement = ClickHouseStatement.of(
+                "SELECT 1 WHERE amount > {amount:Float64} AND age < {age:UInt32} AND note = {note:Nullable(String)}");
+
+        // When
+        ClickHouseStatement.Bound bound = statement.bind(Map.of("amount", "10.5", "age", "30"));
+
+        // Then
+        assertArrayEquals(new Object[]{10.5d, 30L, null}, bound.args());
+        assertArrayEquals(new int[]{Types.DOUBLE, Types.BIGINT, Types.VARCHAR}, bound.types());
+        assertThrows(IllegalArgumentException.class, () -> ClickHouseStatement.of("SELECT {at:DateTime64(3)}"));
+    }
+
+    @Test
+    void expandsArraysToPowerOfTwoBucketsCompiledOnce() {
+        // Given
+        ClickHouseStatement statement = ClickHouseStatement.of("SELECT user_id FROM t WHERE user_id IN {user_id:Array(String)}");
+
+        // When
+        ClickHouseStatement.Bound three = statement.bind(Map.of("user_id", List.of("a", "b", "c")));
+        ClickHouseStatement.Bound four = statement.bind(Map.of("user_id", List.of("a", "b", "c", "d")));
+        statement.bind(Map.of("user_id", List.of("a")));
+
+        // Then
+        assertEquals("SELECT user_id FROM t WHERE user_id IN (?, ?, ?, ?)", three.sql());
+        assertArrayEquals(new Object[]{"a", "b", "c", "c"}, three.args());
+        assertSame(three.sql(), four.sql());
+        assertEquals(2, statement.compiledStatements());
+    }
+}
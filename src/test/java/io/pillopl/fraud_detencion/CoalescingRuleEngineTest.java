@@ -0,0 +1,157 @@
+package io.pillopl.fraud_detencion;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CoalescingRuleEngineTest {
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @AfterEach
+    void tearDown() {
+        timer.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    @Test
+    void concurrentRequestsAreCoalescedIntoBatchQueries() {
+        // Given
+        LoginCountQuery logins = new LoginCountQuery(Map.of("u1", 50, "u2", 5));
+        QueriedRule<Integer> rule = new QueriedRule<>("manyLogins", count -> count >= 30, logins, Score.of(20));
+        CoalescingRuleEngine engine = new CoalescingRuleEngine(List.of(rule),
+                new CoalescingPolicy(Duration.ofMillis(50), 100), timer, executor);
+
+        // When
+        List<CompletableFuture<Score>> scores = IntStream.range(0, 20)
+                .mapToObj(i -> engine.evaluate(Map.of("user_id", i % 2 == 0 ? "u1" : "u2")))
+                .toList();
+
+        // Then
+        for (int i = 0; i < scores.size(); i++) {
+            assertEquals(i % 2 == 0 ? Score.of(20) : Score.zero(), scores.get(i).join());
+        }
+        assertEquals(1, logins.batches.size());
+    }
+
+    @Test
+    void fullBatchIsDispatchedWithoutWaiting() throws Exception {
+        // Given
+        LoginCountQuery logins = new LoginCountQuery(Map.of("u1", 50));
+        QueriedRule<Integer> rule = new QueriedRule<>("manyLogins", count -> count >= 30, logins, Score.of(20));
+        CoalescingRuleEngine engine = new CoalescingRuleEngine(List.of(rule),
+                new CoalescingPolicy(Duration.ofMinutes(1), 2), timer, executor);
+
+        // When
+        CompletableFuture<Score> first = engine.evaluate(Map.of("user_id", "u1"));
+        CompletableFuture<Score> second = engine.evaluate(Map.of("user_id", "u1"));
+
+        // Then
+        assertEquals(Score.of(20), first.get(1, TimeUnit.SECONDS));
+        assertEquals(Score.of(20), second.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void eachDatasourceIsBatchedSeparatelyAndScoresAreSummed() throws Exception {
+        // Given
+        LoginCountQuery clickhouse = new LoginCountQuery(Map.of("u1", 50));
+        Query<Boolean> redis = new Query<>() {
+            @Override
+            public Boolean execute(Map<String, String> params) {
+                return "bad@mail.com".equals(params.get("email"));
+            }
+
+            @Override
+            public RuleSource ruleSource() {
+                return new RuleSource("redis", "emails");
+            }
+        };
+        List<Rule> rules = List.of(
+                new QueriedRule<>("manyLogins", count -> count >= 30, clickhouse, Score.of(20)),
+                new QueriedRule<>("emailOnBlacklist", onList -> onList, redis, Score.of(100)),
+                new NonQueriedRule("always", params -> Score.of(1)));
+        CoalescingPolicy policy = new CoalescingPolicy(Duration.ofMinutes(1),
+                Map.of("test", Duration.ofMillis(20), "redis", Duration.ofMillis(1)), 100);
+        CoalescingRuleEngine engine = new CoalescingRuleEngine(rules, policy, timer, executor);
+
+        // When
+        Score score = engine.evaluate(Map.of("user_id", "u1", "email", "bad@mail.com")).get(1, TimeUnit.SECONDS);
+
+        // Then
+        assertEquals(Score.of(121), score);
+    }
+
+    @Test
+    void viewsOfOneDatasourceAreBatchedSeparately() throws Exception {
+        // Given
+        LoginCountQuery logins = new LoginCountQuery(Map.of("u1", 50));
+        LoginCountQuery devices = new LoginCountQuery(Map.of("u1", 40)) {
+            @Override
+            public RuleSource ruleSource() {
+                return new RuleSource("test", "devices");
+            }
+        };
+        CoalescingRuleEngine engine = new CoalescingRuleEngine(List.of(
+                new QueriedRule<>("manyLogins", count -> count >= 30, logins, Score.of(20)),
+                new QueriedRule<>("manyDevices", count -> count >= 30, devices, Score.of(10))),
+                new CoalescingPolicy(Duration.ofMillis(20), 100), timer, executor);
+
+        // When
+        Score score = engine.evaluate(Map.of("user_id", "u1")).get(1, TimeUnit.SECONDS);
+
+        // Then
+        assertEquals(Score.of(30), score);
+        assertEquals(1, logins.batches.size());
+        assertEquals(1, devices.batches.size());
+    }
+
+    @Test
+    void rulesOfOneBatchRunInParallel() throws Exception {
+        // Given - each rule waits for the other one, so running them one after another never finishes
+        CountDownLatch bothStarted = new CountDownLatch(2);
+        LoginCountQuery logins = new LoginCountQuery(Map.of("u1", 50));
+        Rule first = new QueriedRule<>("manyLogins", count -> awaitOther(bothStarted) && count >= 30, logins, Score.of(20));
+        Rule second = new QueriedRule<>("someLogins", count -> awaitOther(bothStarted) && count >= 10, logins, Score.of(5));
+        CoalescingRuleEngine engine = new CoalescingRuleEngine(List.of(first, second),
+                new CoalescingPolicy(Duration.ofMillis(1), 100), timer, executor);
+
+        // When
+        Score score = engine.evaluate(Map.of("user_id", "u1")).get(1, TimeUnit.SECONDS);
+
+        // Then
+        assertEquals(Score.of(25), score);
+    }
+
+    @Test
+    void rulesWithoutSourceDoNotRunOnCallerThread() throws Exception {
+        // Given
+        Thread caller = Thread.currentThread();
+        CoalescingRuleEngine engine = new CoalescingRuleEngine(
+                List.of(new NonQueriedRule("offCaller", params -> Thread.currentThread() == caller ? Score.zero() : Score.of(1))),
+                new CoalescingPolicy(Duration.ofMillis(1), 100), timer, executor);
+
+        // When
+        Score score = engine.evaluate(Map.of()).get(1, TimeUnit.SECONDS);
+
+        // Then
+        assertEquals(Score.of(1), score);
+    }
+
+    private static boolean awaitOther(CountDownLatch bothStarted) {
+        bothStarted.countDown();
+        try {
+            return bothStarted.await(500, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
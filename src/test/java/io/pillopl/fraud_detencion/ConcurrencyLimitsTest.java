@@ -0,0 +1,226 @@
+package io.pillopl.fraud_detencion;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConcurrencyLimitsTest {
+
+    private final ConcurrencyLimits limits = new ConcurrencyLimits(Map.of("clickhouse", 4));
+
+    @Test
+    void virtualThreadsNeverExceedDatasourceLimit() throws Exception {
+        // Given
+        BlockingQuery clickHouse = new BlockingQuery("clickhouse", Duration.ofMillis(20));
+        Query<Integer> limited = limits.limited(clickHouse);
+
+        // When
+        List<Future<Integer>> results = new ArrayList<>();
+        try (ExecutorService executor = ExecutorMode.Virtual.executor(0)) {
+            for (int i = 0; i < 100; i++) {
+                results.add(executor.submit(() -> limited.execute(Map.of())));
+            }
+            for (Future<Integer> result : results) {
+                result.get();
+            }
+        }
+
+        // Then
+        assertEquals(4, clickHouse.maxInFlight.get());
+        assertEquals(4, limits.available("clickhouse"));
+    }
+
+    @Test
+    void datasourceWithoutLimitIsNotWrapped() {
+        // Given
+        BlockingQuery redis = new BlockingQuery("redis", Duration.ZERO);
+
+        // Expect
+        assertSame(redis, limits.limited(redis));
+        assertEquals(Integer.MAX_VALUE, limits.available("redis"));
+    }
+
+    @Test
+    void interruptedWaiterGivesUpWithoutTakingPermit() throws Exception {
+        // Given
+        ConcurrencyLimits single = new ConcurrencyLimits(Map.of("clickhouse", 1));
+        Query<Integer> limited = single.limited(new BlockingQuery("clickhouse", Duration.ofSeconds(5)));
+        Thread holder = Thread.ofVirtual().start(() -> limited.execute(Map.of()));
+        while (single.available("clickhouse") > 0) {
+            Thread.onSpinWait();
+        }
+
+        // When
+        AtomicInteger cancelled = new AtomicInteger();
+        Thread waiter = Thread.ofVirtual().start(() -> {
+            try {
+                limited.execute(Map.of());
+            } catch (java.util.concurrent.CancellationException e) {
+                cancelled.incrementAndGet();
+            }
+        });
+        waiter.interrupt();
+        waiter.join();
+        holder.interrupt();
+        holder.join();
+
+        // Then
+        assertEquals(1, cancelled.get());
+        assertEquals(1, single.available("clickhouse"));
+    }
+
+    @Test
+    void cancellingOuterStageCancelsDelegateAndReleasesPermit() throws Exception {
+        // Given
+        ConcurrencyLimits single = new ConcurrencyLimits(Map.of("clickhouse", 1));
+        QueryResultCache cache = new QueryResultCache(List.of(new CachePolicy("clickhouse", "view", Duration.ofMinutes(1), 100L, null)));
+        PendingQuery pending = new PendingQuery();
+        Query<Integer> limited = single.limited(cache.cached(pending));
+        ExecutorService executor = ExecutorMode.Virtual.executor(0);
+        CompletableFuture<Integer> running = limited.executeAsync(Map.of(), executor).toCompletableFuture();
+        CompletableFuture<Integer> queued = limited.executeAsync(Map.of(), executor).toCompletableFuture();
+
+        // When
+        queued.cancel(true);
+        running.cancel(true);
+
+        // Then
+        assertTrue(pending.calls.getFirst().isCancelled());
+        assertEquals(1, pending.calls.size()); // queued call never reached the delegate
+        long deadline = System.nanoTime() + Duration.ofSeconds(1).toNanos();
+        while (single.available("clickhouse") == 0 && System.nanoTime() < deadline) {
+            Thread.onSpinWait();
+        }
+        assertEquals(1, single.available("clickhouse"));
+        executor.shutdownNow();
+    }
+
+    @Test
+    void limitGrowsWhileFastAndBacksOffWhenLatencyRises() {
+        // Given
+        AdaptiveLimit limit = new AdaptiveLimit(new BulkheadSettings("clickhouse", 2, 10, 20, Duration.ofMillis(10)));
+        saturate(limit);
+
+        // When
+        calls(limit, 200, Duration.ofMillis(1));
+        int afterFast = limit.limit();
+        calls(limit, 200, Duration.ofMillis(10));
+
+        // Then
+        assertEquals(20, afterFast);
+        assertTrue(limit.limit() < 5, "limit after slow calls: " + limit.limit());
+    }
+
+    @Test
+    void rejectedRuleScoresZeroWithMarker() {
+        // Given
+        ConcurrencyLimits bulkheads = new ConcurrencyLimits(List.of(new BulkheadSettings("clickhouse", 1, 1, 1, Duration.ofMillis(10))));
+        ExecutorService executor = ExecutorMode.Virtual.executor(0);
+        RuleScheduler scheduler = new RuleScheduler(executor, 2);
+        ExecutionPlan plan = new ExecutionPlan(List.of(
+                new QueriedRule<>("first", (Integer value) -> true, bulkheads.limited(new BlockingQuery("clickhouse", "a", Duration.ofMillis(100))), Score.of(5)),
+                new QueriedRule<>("second", (Integer value) -> true, bulkheads.limited(new BlockingQuery("clickhouse", "b", Duration.ofMillis(100))), Score.of(5))));
+
+        // When
+        ExecutionResult result = scheduler.run(plan, Map.of(), Duration.ofSeconds(1));
+        executor.shutdownNow();
+
+        // Then
+        assertEquals(Score.of(5), result.score());
+        assertEquals(1, result.rejected().size()); // whichever rule lost the only permit
+        assertTrue(result.failed().isEmpty());
+        assertFalse(result.isComplete());
+    }
+
+    private static void saturate(AdaptiveLimit limit) {
+        while (limit.tryAcquire()) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private static void calls(AdaptiveLimit limit, int count, Duration latency) {
+        for (int i = 0; i < count; i++) {
+            limit.release(latency.toNanos(), false);
+            saturate(limit);
+        }
+    }
+
+    private static class PendingQuery implements Query<Integer> {
+        private final List<CompletableFuture<Integer>> calls = new CopyOnWriteArrayList<>();
+
+        @Override
+        public Integer execute(Map<String, String> params) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletionStage<Integer> executeAsync(Map<String, String> params, Executor blocking) {
+            CompletableFuture<Integer> call = new CompletableFuture<>();
+            calls.add(call);
+            return call;
+        }
+
+        @Override
+        public Map<String, String> boundParams(Map<String, String> params) {
+            return Map.of("view", "view");
+        }
+
+        @Override
+        public RuleSource ruleSource() {
+            return new RuleSource("clickhouse", "view");
+        }
+    }
+
+    private static class BlockingQuery implements Query<Integer> {
+        private final String datasource;
+        private final String view;
+        private final Duration latency;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger maxInFlight = new AtomicInteger();
+
+        BlockingQuery(String datasource, Duration latency) {
+            this(datasource, "view", latency);
+        }
+
+        BlockingQuery(String datasource, String view, Duration latency) {
+            this.datasource = datasource;
+            this.view = view;
+            this.latency = latency;
+        }
+
+        @Override
+        public Integer execute(Map<String, String> params) {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            return 1;
+        }
+
+        @Override
+        public Map<String, String> boundParams(Map<String, String> params) {
+            return Map.of("view", view);
+        }
+
+        @Override
+        public RuleSource ruleSource() {
+            return new RuleSource(datasource, view);
+        }
+    }
+}
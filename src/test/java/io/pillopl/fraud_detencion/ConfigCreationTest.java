@@ -74,6 +74,38 @@ class ConfigCreationTest {
         assertTrue(config.rules().iterator().next() instanceof DependentRule<?, ?>);
     }
 
+    @Test
+    void testDependencyChainBecomesSingleGraphRule() {
+        // Given
+        RequestedRule<String> a = RequestedRuleBuilder.<String>create()
+                .id("A")
+                .query(() -> "data", "redis", "users")
+                .scoreCheck(data -> new Score(1))
+                .build();
+        RequestedRule<String> b = RequestedRuleBuilder.<String>create()
+                .id("B")
+                .query(() -> "data", "clickhouse", "logins")
+                .scoreCheck(data -> new Score(2))
+                .dependsOn("A", NeedsData)
+                .build();
+        RequestedRule<String> c = RequestedRuleBuilder.<String>create()
+                .id("C")
+                .query(() -> "data", "clickhouse", "transactions")
+                .scoreCheck(data -> new Score(4))
+                .dependsOn("B", NeedsData)
+                .build();
+        RulesRequest request = new RulesRequest(Set.of(a, b, c));
+
+        // When
+        RulesConfig config = request.createConfig();
+
+        // Then
+        assertEquals(1, config.rules().size());
+        DependencyGraphRule graph = assertInstanceOf(DependencyGraphRule.class, config.rules().getFirst());
+        assertEquals(List.of("A", "B", "C"), graph.nodeIds());
+        assertEquals(new Score(7), graph.calculate(Map.of()));
+    }
+
     @Test
     void testRemainingRulesAreQueriedRules() {
         // Given
@@ -0,0 +1,140 @@
+package io.pillopl.fraud_detencion;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static io.pillopl.fraud_detencion.RuleDependency.Type.NeedsData;
+import static org.junit.jupiter.api.Assertions.*;
+
+class DependencyGraphRuleTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void independentBranchesRunConcurrently() {
+        // Given
+        // ROOT -> {LEFT, RIGHT}, each 150ms
+        RulesRequest request = new RulesRequest(Set.of(
+                rule("ROOT", 150, 1, null),
+                rule("LEFT", 150, 2, "ROOT"),
+                rule("RIGHT", 150, 4, "ROOT")));
+        DependencyGraphRule graph = (DependencyGraphRule) request.createConfig().rules().getFirst();
+
+        // When
+        DependencyGraphRule.GraphExecution execution = graph.execute(Map.of(), QueryScope.open(), executor).join();
+
+        // Then
+        assertEquals(Score.of(7), execution.score());
+        assertTrue(execution.criticalPath().toMillis() >= 300);
+        assertTrue(execution.criticalPath().toMillis() < 420, "branches should overlap, took " + execution.criticalPath());
+    }
+
+    @Test
+    void reportsLongestChainAsCriticalPath() {
+        // Given
+        // ROOT -> FAST, ROOT -> SLOW -> LAST
+        RulesRequest request = new RulesRequest(Set.of(
+                rule("ROOT", 10, 0, null),
+                rule("FAST", 10, 0, "ROOT"),
+                rule("SLOW", 100, 0, "ROOT"),
+                rule("LAST", 10, 0, "SLOW")));
+        DependencyGraphRule graph = (DependencyGraphRule) request.createConfig().rules().getFirst();
+
+        // When
+        DependencyGraphRule.GraphExecution execution = graph.execute(Map.of(), QueryScope.open(), executor).join();
+
+        // Then
+        assertEquals(List.of("ROOT", "SLOW", "LAST"), execution.criticalNodes());
+    }
+
+    @Test
+    void schedulerRunsBranchesOnItsOwnExecutor() {
+        // Given
+        RulesRequest request = new RulesRequest(Set.of(
+                rule("ROOT", 150, 1, null),
+                rule("LEFT", 150, 2, "ROOT"),
+                rule("RIGHT", 150, 4, "ROOT")));
+        DependencyGraphRule graph = (DependencyGraphRule) request.createConfig().rules().getFirst();
+        RuleScheduler scheduler = new RuleScheduler(executor, 1);
+
+        // When
+        long start = System.nanoTime();
+        ExecutionResult result = scheduler.run(new ExecutionPlan(List.of(graph)), Map.of(), Duration.ofSeconds(1));
+
+        // Then
+        assertEquals(Score.of(7), result.score());
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() < 420, "branches should overlap");
+    }
+
+    @Test
+    void publishesCriticalPathToRuleMetrics() {
+        // Given
+        RuleMetrics metrics = new RuleMetrics(new SimpleMeterRegistry());
+        RulesRequest request = new RulesRequest(Set.of(
+                rule("ROOT", 10, 0, null),
+                rule("FAST", 10, 0, "ROOT"),
+                rule("SLOW", 100, 0, "ROOT"),
+                rule("LAST", 10, 0, "SLOW")));
+        DependencyGraphRule graph = (DependencyGraphRule) request.createConfig().rules().getFirst();
+
+        // When
+        graph.calculateAsync(Map.of(), QueryScope.open(metrics), executor).toCompletableFuture().join();
+
+        // Then
+        assertEquals(1, metrics.criticalPathLatency(graph.id()).count());
+        assertEquals(1, metrics.criticalChainCount(graph.id(), List.of("ROOT", "SLOW", "LAST")));
+    }
+
+    @Test
+    void childrenOfFailedConditionAreNotEvaluated() {
+        // Given
+        RequestedRule<Integer> root = rule("ROOT", 0, 1, null);
+        RequestedRule<Integer> gated = new RequestedRule<>("GATED", rule("GATED", 0, 2, null).query(), value -> Score.of(2),
+                new RuleDependency<Integer>("ROOT", NeedsData, value -> false, value -> Map.of()), new RuleSource("test", "GATED"));
+        RequestedRule<Integer> open = rule("OPEN", 0, 4, "ROOT");
+        DependencyGraphRule graph = (DependencyGraphRule) new RulesRequest(Set.of(root, gated, open)).createConfig().rules().getFirst();
+
+        // When
+        Score score = graph.calculate(Map.of());
+
+        // Then
+        assertEquals(Score.of(5), score);
+    }
+
+    private static RequestedRule<Integer> rule(String id, long latencyMillis, int score, String parent) {
+        Query<Integer> query = new Query<>() {
+            @Override
+            public Integer execute(Map<String, String> params) {
+                try {
+                    Thread.sleep(latencyMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return score;
+            }
+
+            @Override
+            public RuleSource ruleSource() {
+                return new RuleSource("test", id);
+            }
+        };
+        RuleDependency<Integer> dependency = parent == null ? null
+                : new RuleDependency<>(parent, NeedsData, value -> true, value -> Map.of());
+        return new RequestedRule<>(id, Optional.of(query), ScoreCheck.when(value -> true, Score.of(score)),
+                dependency, new RuleSource("test", id));
+    }
+}
@@ -0,0 +1,147 @@
+package io.pillopl.fraud_detencion;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DependentRuleTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void speculativeSinkOverlapsWithSource() {
+        // Given
+        DependentRule<Integer, Integer> rule = dependentRule(new SlowQuery(150, 40), new SlowQuery(150, 50))
+                .speculating(Speculation.sameParams(executor, 0));
+
+        // When
+        long start = System.nanoTime();
+        Score score = rule.calculate(Map.of("user_id", "user_1"), QueryScope.open());
+
+        // Then
+        assertEquals(Score.of(30), score); // source 10 + sink 20
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 280, "source and sink should overlap");
+    }
+
+    @Test
+    void speculativeSinkIsCancelledWhenConditionFails() throws InterruptedException {
+        // Given
+        SlowQuery sink = new SlowQuery(5_000, 50);
+        DependentRule<Integer, Integer> rule = dependentRule(new SlowQuery(100, 0), sink)
+                .speculating(Speculation.sameParams(executor, 0));
+
+        // When
+        Score score = rule.calculate(Map.of("user_id", "user_1"), QueryScope.open());
+
+        // Then
+        assertEquals(Score.zero(), score);
+        assertTrue(sink.interrupted.await(1, TimeUnit.SECONDS), "speculative sink should be interrupted");
+    }
+
+    @Test
+    void asyncSpeculativeSinkIsCancelledWhenConditionFails() throws InterruptedException {
+        // Given
+        SlowQuery sink = new SlowQuery(5_000, 50);
+        DependentRule<Integer, Integer> rule = dependentRule(new SlowQuery(100, 0), sink)
+                .speculating(Speculation.sameParams(executor, 0));
+
+        // When
+        Score score = rule.calculateAsync(Map.of("user_id", "user_1"), QueryScope.open(), executor).toCompletableFuture().join();
+
+        // Then
+        assertEquals(Score.zero(), score);
+        assertTrue(sink.interrupted.await(1, TimeUnit.SECONDS), "speculative sink should be interrupted");
+    }
+
+    @Test
+    void doesNotSpeculateUntilConditionPassesOftenEnough() {
+        // Given
+        SlowQuery sink = new SlowQuery(0, 50);
+        DependentRule<Integer, Integer> rule = dependentRule(new SlowQuery(0, 0), sink)
+                .speculating(Speculation.sameParams(executor, 0.5));
+
+        // When
+        rule.calculate(Map.of("user_id", "user_1"), QueryScope.open());
+        rule.calculate(Map.of("user_id", "user_1"), QueryScope.open());
+
+        // Then
+        assertEquals(0, rule.passRate());
+        assertEquals(0, sink.executions.get());
+    }
+
+    @Test
+    void mispredictedParamsFallBackToSequentialSink() {
+        // Given
+        SlowQuery sink = new SlowQuery(0, 50);
+        DependentRule<Integer, Integer> rule = dependentRule(new SlowQuery(100, 40), sink)
+                .speculating(new Speculation(executor, params -> Optional.of(Map.of("user_id", "someone_else")), 0));
+
+        // When
+        Score score = rule.calculate(Map.of("user_id", "user_1"), QueryScope.open());
+
+        // Then
+        assertEquals(Score.of(30), score);
+        assertEquals(2, sink.executions.get()); // speculative for someone_else, then the real one
+    }
+
+    private static DependentRule<Integer, Integer> dependentRule(SlowQuery source, SlowQuery sink) {
+        return new DependentRule<>("SOURCE_SINK",
+                new QueriedRule<>("SOURCE", value -> value >= 30, source, Score.of(10)),
+                new QueriedRule<>("SINK", value -> value >= 30, sink, Score.of(20)),
+                value -> value >= 30,
+                value -> Map.of()); // same user
+    }
+
+    static class SlowQuery implements Query<Integer> {
+
+        final AtomicInteger executions = new AtomicInteger();
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        private final long latencyMillis;
+        private final int value;
+
+        SlowQuery(long latencyMillis, int value) {
+            this.latencyMillis = latencyMillis;
+            this.value = value;
+        }
+
+        @Override
+        public Integer execute(Map<String, String> params) {
+            executions.incrementAndGet();
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                Thread.currentThread().interrupt();
+                return 0;
+            }
+            return value;
+        }
+
+        // source and sink share the class - keep them apart in QueryScope
+        @Override
+        public Map<String, String> boundParams(Map<String, String> params) {
+            Map<String, String> bound = Query.select(params, "user_id");
+            bound.put("query", String.valueOf(System.identityHashCode(this)));
+            return bound;
+        }
+
+        @Override
+        public RuleSource ruleSource() {
+            return new RuleSource("test", "slow");
+        }
+    }
+}
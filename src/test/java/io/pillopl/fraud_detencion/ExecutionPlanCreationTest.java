@@ -7,6 +7,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import static io.pillopl.fraud_detencion.ExecutionConfig.SortingAlgorithm.Knapsack;
 import static io.pillopl.fraud_detencion.RuleExecutionBuilder.executionOf;
 import static io.pillopl.fraud_detencion.RulesStats.empty;
 import static java.time.Duration.ofMillis;
@@ -112,6 +113,76 @@ class ExecutionPlanCreationTest {
         List<String> actualOrder = sorted.stream().map(Rule::id).toList();
         assertEquals(expectedOrder, actualOrder);
     }
+
+    @Test
+    void testKnapsackPrefersManyCheapRulesOverOneSlowValuableRule() {
+        // Given
+        Rule slow = new TestRule("SLOW");
+        Rule b = new TestRule("B");
+        Rule c = new TestRule("C");
+        ExecutionConfig config = new ExecutionConfig(new ExecutionStrategy(0, 0, 1), new RulesConfig(List.of(slow, b, c)), empty(),
+                Knapsack, new ExecutionBudget(ofMillis(100), 1));
+
+        // And
+        config.handle(new RulesExecuted(List.of(
+                executionOf("SLOW").took(ofMillis(100)).scored(new Score(50)).build(),
+                executionOf("B").took(ofMillis(50)).scored(new Score(30)).build(),
+                executionOf("C").took(ofMillis(50)).scored(new Score(30)).build()
+        )));
+
+        // When
+        List<Rule> planned = config.calculatePlan().independentRules();
+
+        // Then
+        assertEquals(Set.of(b, c), Set.copyOf(planned));
+    }
+
+    @Test
+    void testKnapsackHonoursCostLimit() {
+        // Given
+        Rule cheap = new TestRule("CHEAP");
+        Rule b = new TestRule("B");
+        Rule c = new TestRule("C");
+        ExecutionConfig config = new ExecutionConfig(new ExecutionStrategy(0, 0, 1), new RulesConfig(List.of(cheap, b, c)), empty(),
+                Knapsack, new ExecutionBudget(ofMillis(100), 1, 10));
+
+        // And
+        config.handle(new RulesExecuted(List.of(
+                executionOf("CHEAP").took(ofMillis(100)).scored(new Score(50)).costed(5).build(),
+                executionOf("B").took(ofMillis(50)).scored(new Score(30)).costed(8).build(),
+                executionOf("C").took(ofMillis(50)).scored(new Score(30)).costed(8).build()
+        )));
+
+        // When
+        List<Rule> planned = config.calculatePlan().independentRules();
+
+        // Then
+        assertEquals(List.of(cheap), planned);
+    }
+
+    @Test
+    void testKnapsackOrdersByScorePerMillisecondAndKeepsRulesWithoutStats() {
+        // Given
+        Rule dense = new TestRule("DENSE");
+        Rule sparse = new TestRule("SPARSE");
+        Rule unknown = new TestRule("UNKNOWN");
+        Rule tooSlow = new TestRule("TOO_SLOW");
+        ExecutionConfig config = new ExecutionConfig(new ExecutionStrategy(0, 0, 1), new RulesConfig(List.of(sparse, tooSlow, dense, unknown)), empty(),
+                Knapsack, new ExecutionBudget(ofMillis(200), 2));
+
+        // And
+        config.handle(new RulesExecuted(List.of(
+                executionOf("SPARSE").took(ofMillis(150)).scored(new Score(15)).build(),
+                executionOf("DENSE").took(ofMillis(20)).scored(new Score(10)).build(),
+                executionOf("TOO_SLOW").took(ofMillis(250)).scored(new Score(100)).build()
+        )));
+
+        // When
+        List<Rule> planned = config.calculatePlan().independentRules();
+
+        // Then
+        assertEquals(List.of(unknown, dense, sparse), planned);
+    }
 }
 
 record TestRule(String id) implements Rule {
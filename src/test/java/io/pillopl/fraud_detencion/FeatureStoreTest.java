@@ -0,0 +1,121 @@
+package io.pillopl.fraud_detencion;
+
+import io.pillopl.fraud_detencion.RuleStatsTest.MutableClock;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FeatureStoreTest {
+
+    private final MutableClock clock = new MutableClock(); // 2025-01-01
+    private final FeatureStore store = new FeatureStore(FeatureStore.Settings.forKeys(100), clock);
+
+    @Test
+    void replaysEventsFromFileIntoRollingFeatures(@TempDir Path dir) throws IOException {
+        // Given
+        Path events = dir.resolve("events.tsv");
+        Files.write(events, List.of(
+                line("login", daysAgo(1), "u1", "d1", "Firefox"),
+                line("login", daysAgo(2), "u1", "d1", "Firefox"),
+                line("login", daysAgo(3), "u1", "d2", "Chrome"),
+                line("login", daysAgo(4), "u1", "d1", "Chrome"),
+                line("login", daysAgo(5), "u2", "d1", "Safari"),
+                line("transaction", daysAgo(1), "u1", "100.0"),
+                line("transaction", daysAgo(10), "u1", "300.0")));
+
+        // When
+        long replayed = FeatureEventReplay.replay(events, store::accept, 64); // chunks split lines
+        store.markReady();
+
+        // Then
+        assertEquals(7, replayed);
+        assertEquals(Optional.of(50d), store.userAgentPercentage("u1", "Firefox"));
+        assertEquals(Optional.of(2), store.deviceUsers("d1"));
+        assertEquals(Optional.of(new TransactionsView(400, 200)), store.transactions("u1"));
+    }
+
+    @Test
+    void dropsEventsOlderThanWindow() {
+        // Given
+        FeatureStore store = new FeatureStore(FeatureStore.Settings.forKeys(100), Duration.ofDays(2), clock);
+        store.accept(new TransactionEvent(daysAgo(31), "u1", 1000));
+        store.accept(new TransactionEvent(daysAgo(30), "u1", 10));
+        store.accept(new LoginEvent(daysAgo(400), "u1", "d1", "Firefox"));
+        store.accept(new LoginEvent(daysAgo(1), "u2", "d1", "Firefox"));
+        store.markReady();
+
+        // When
+        clock.advance(Duration.ofDays(1));
+
+        // Then
+        assertEquals(Optional.of(new TransactionsView(0, 0)), store.transactions("u1"));
+        assertEquals(Optional.of(1), store.deviceUsers("d1"));
+        assertEquals(Optional.empty(), store.userAgentPercentage("unknown", "Firefox")); // unknown key - ask ClickHouse
+    }
+
+    @Test
+    void stopsAnsweringOnceStaleAndAnswersAgainAfterReload() {
+        // Given
+        store.accept(new LoginEvent(daysAgo(1), "u1", "d1", "Firefox"));
+        store.markReady();
+
+        // Expect
+        assertEquals(Optional.of(1), store.deviceUsers("d1"));
+        assertEquals(Optional.empty(), store.deviceUsers("d_new")); // first seen after bootstrap
+
+        clock.advance(FeatureStore.DEFAULT_MAX_STALENESS.plusSeconds(1));
+        assertEquals(Optional.empty(), store.deviceUsers("d1"));
+
+        store.reset();
+        store.accept(new LoginEvent(daysAgo(1), "u1", "d1", "Firefox"));
+        store.accept(new LoginEvent(daysAgo(1), "u2", "d1", "Firefox"));
+        assertEquals(Optional.empty(), store.deviceUsers("d1")); // not ready until reload completes
+        store.markReady();
+        assertEquals(Optional.of(2), store.deviceUsers("d1"));
+    }
+
+    @Test
+    void fallsBackToQueryWhenStoreCannotAnswer() {
+        // Given
+        FeatureStore tiny = new FeatureStore(FeatureStore.Settings.forKeys(1), clock);
+        Query<Integer> clickHouse = new Query<>() {
+            @Override
+            public Integer execute(Map<String, String> params) {
+                return 42;
+            }
+
+            @Override
+            public RuleSource ruleSource() {
+                return new RuleSource("clickhouse", "login_events");
+            }
+        };
+        StoredDeviceUsers query = new StoredDeviceUsers(tiny, clickHouse);
+        tiny.accept(new LoginEvent(daysAgo(1), "u1", "d1", "Firefox"));
+        tiny.accept(new LoginEvent(daysAgo(1), "u2", "d2", "Firefox")); // no slot left for d2
+
+        // Expect
+        assertEquals(42, query.execute(Map.of("device_id", "d1"))); // not bootstrapped yet
+        tiny.markReady();
+        assertEquals(1, query.execute(Map.of("device_id", "d1")));
+        assertEquals(42, query.execute(Map.of("device_id", "d2")));
+        assertEquals(new RuleSource("feature-store", "login_events"), query.ruleSource());
+    }
+
+    private Instant daysAgo(int days) {
+        return clock.instant().minus(Duration.ofDays(days)).plusSeconds(60);
+    }
+
+    private static String line(String type, Instant at, String... fields) {
+        return type + "\t" + at.toEpochMilli() + "\t" + String.join("\t", fields);
+    }
+}
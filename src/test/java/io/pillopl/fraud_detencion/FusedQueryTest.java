@@ -0,0 +1,153 @@
+package io.pillopl.fraud_detencion;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FusedQueryTest {
+
+    private final Map<String, String> params = Map.of("user_id", "u1", "user_agent", "Firefox", "device_id", "d1");
+    private final RecordingJdbc jdbc = new RecordingJdbc(Map.of("q0_logins", 4L, "q1_users", 35L));
+    private final LoginAggregate userLogins = new LoginAggregate(jdbc, "logins", "countIf(user_id = {user_id:String})",
+            "user_id = {user_id:String}", "user_id");
+    private final LoginAggregate deviceUsers = new LoginAggregate(jdbc, "users", "uniqExactIf(user_id, device_id = {device_id:String})",
+            "device_id = {device_id:String}", "device_id");
+
+    @Test
+    void buildsOneSelectWithAggregatesOfEveryQuery() {
+        // Given
+        FusedQuery fused = new FusedQuery(List.of(userLogins, deviceUsers));
+
+        // When
+        List<Object> results = fused.execute(params);
+
+        // Then
+        assertEquals("SELECT countIf(user_id = ?) AS q0_logins, uniqExactIf(user_id, device_id = ?) AS q1_users FROM login_events "
+                + "WHERE event_time >= now() - INTERVAL 1 YEAR   AND ((user_id = ?) OR (device_id = ?));", jdbc.statements.getFirst());
+        assertEquals(List.of("u1", "d1", "u1", "d1"), jdbc.args.getFirst());
+        assertEquals(List.of(4L, 35L), results);
+    }
+
+    @Test
+    void rulesReadingPartsOfFusedQueryShareOneScan() {
+        // Given
+        FusedQuery fused = new FusedQuery(List.of(userLogins, deviceUsers));
+        QueriedRule<Long> anomaly = new QueriedRule<>("anomaly", logins -> logins < 5, FusedQuery.part(fused, 0), Score.of(40));
+        QueriedRule<Long> device = new QueriedRule<>("device", users -> users >= 30, FusedQuery.part(fused, 1), Score.of(20));
+
+        // When
+        Score score;
+        try (QueryScope scope = QueryScope.open()) {
+            score = anomaly.calculate(params, scope).add(device.calculate(params, scope));
+        }
+
+        // Then
+        assertEquals(Score.of(60), score);
+        assertEquals(1, jdbc.statements.size());
+    }
+
+    @Test
+    void requestGroupsFusibleRulesOfOneViewIntoSingleQuery() {
+        // Given
+        RequestedRule<Long> anomaly = RequestedRuleBuilder.<Long>create()
+                .id("A")
+                .query(userLogins)
+                .scoreCheck(logins -> logins < 5 ? Score.of(40) : Score.zero())
+                .build();
+        RequestedRule<Long> device = RequestedRuleBuilder.<Long>create()
+                .id("B")
+                .query(deviceUsers)
+                .scoreCheck(users -> users >= 30 ? Score.of(20) : Score.zero())
+                .build();
+
+        // When
+        RulesConfig config = new RulesRequest(Set.of(anomaly, device)).createConfig();
+
+        // Then
+        assertEquals(1, config.rules().size());
+        assertEquals(Score.of(60), config.rules().getFirst().calculate(params));
+        assertEquals(1, jdbc.statements.size());
+    }
+
+    @Test
+    void refusesToFuseQueriesOfDifferentTables() {
+        // Given
+        FusibleQuery<Double> agents = new UserAgentPercentageUsageQuery(jdbc); // login_user_agent_daily
+        FusibleQuery<Integer> devices = new DeviceUsedByUsers(jdbc); // login_device_daily
+
+        // Expect
+        assertFalse(FusedQuery.fusible(List.of(agents, devices)));
+        assertThrows(IllegalArgumentException.class, () -> new FusedQuery(List.of(agents, devices)));
+    }
+
+    @Test
+    void fusedUserAgentPercentageKeepsNoHistoryForUserWithoutLogins() {
+        // Given
+        RecordingJdbc empty = new RecordingJdbc(Map.of("q0_total_logins", 0L, "q0_matching_logins", 0L));
+        FusedQuery fused = new FusedQuery(List.of(new UserAgentPercentageUsageQuery(empty)));
+
+        // When
+        List<Object> results = fused.execute(params);
+
+        // Then
+        assertTrue(Double.isNaN((Double) results.getFirst())); // same as the single-row path, so no +40 from userAgentAnomaly
+    }
+
+    private record LoginAggregate(JdbcTemplate jdbc, String alias, String expression, String rowFilter, String param)
+            implements FusibleQuery<Long> {
+
+        @Override
+        public Fusion fusion() {
+            return new Fusion(jdbc, "login_events", "event_time >= now() - INTERVAL 1 YEAR");
+        }
+
+        @Override
+        public List<Aggregate> aggregates() {
+            return List.of(new Aggregate(alias, expression));
+        }
+
+        @Override
+        public Long read(Function<String, Object> column) {
+            return ((Number) column.apply(alias)).longValue();
+        }
+
+        @Override
+        public Long execute(Map<String, String> params) {
+            throw new UnsupportedOperationException("only fused");
+        }
+
+        @Override
+        public Map<String, String> boundParams(Map<String, String> params) {
+            return Query.select(params, param);
+        }
+
+        @Override
+        public RuleSource ruleSource() {
+            return new RuleSource("clickhouse", "login_events");
+        }
+    }
+
+    private static class RecordingJdbc extends JdbcTemplate {
+        private final Map<String, Object> row;
+        private final List<String> statements = new ArrayList<>();
+        private final List<List<Object>> args = new ArrayList<>();
+
+        RecordingJdbc(Map<String, Object> row) {
+            this.row = row;
+        }
+
+        @Override
+        public Map<String, Object> queryForMap(String sql, Object[] args, int[] argTypes) {
+            statements.add(sql);
+            this.args.add(List.of(args));
+            return row;
+        }
+    }
+}
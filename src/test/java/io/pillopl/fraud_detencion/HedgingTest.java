@@ -0,0 +1,206 @@
+package io.pillopl.fraud_detencion;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HedgingTest {
+
+    private final Hedging hedging = new Hedging(List.of(
+            new HedgingPolicy("clickhouse", "login_events", 0.95, Duration.ofMillis(5), 0.5)));
+
+    @AfterEach
+    void tearDown() {
+        hedging.close();
+    }
+
+    @Test
+    void slowReplicaIsOvertakenByHedgeAndCancelled() throws InterruptedException {
+        // Given
+        Replica slow = new Replica("a", 1);
+        Replica fast = new Replica("b", 1);
+        HedgedQuery<String> query = (HedgedQuery<String>) hedging.hedged(List.of(slow, fast));
+        for (int i = 0; i < HedgedQuery.MIN_SAMPLES; i++) {
+            query.execute(Map.of());
+        }
+        slow.latencyMillis.set(2_000);
+
+        // When
+        long start = System.nanoTime();
+        String result = query.execute(Map.of());
+
+        // Then
+        assertEquals("b", result);
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() < 1_000);
+        assertEquals(1, query.hedges());
+        assertTrue(slow.interrupted.await(1, TimeUnit.SECONDS), "losing call should be cancelled");
+    }
+
+    @Test
+    void cancelledLoserIsRecordedCensoredAtCancelTime() throws InterruptedException {
+        // Given
+        Replica slow = new Replica("a", 1);
+        Replica fast = new Replica("b", 1);
+        HedgedQuery<String> query = (HedgedQuery<String>) hedging.hedged(List.of(slow, fast));
+        for (int i = 0; i < HedgedQuery.MIN_SAMPLES; i++) {
+            query.execute(Map.of());
+        }
+        slow.latencyMillis.set(2_000);
+
+        // When
+        query.execute(Map.of());
+
+        // Then - both the winner and the cancelled slow call count, the slow one at least for the hedge delay
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (query.latencies().executions() < HedgedQuery.MIN_SAMPLES + 2 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        RuleStatsSnapshot latencies = query.latencies();
+        assertEquals(HedgedQuery.MIN_SAMPLES + 2, latencies.executions());
+        assertTrue(latencies.p99().toMillis() >= 4);
+    }
+
+    @Test
+    void firstCallAlwaysGoesToPrimary() {
+        // Given
+        HedgedQuery<String> query = (HedgedQuery<String>) hedging.hedged(List.of(
+                new Replica("a", 1), new Replica("b", 1), new Replica("c", 1)));
+
+        // When
+        List<String> answeredBy = IntStream.range(0, HedgedQuery.MIN_SAMPLES)
+                .mapToObj(i -> query.execute(Map.of()))
+                .toList();
+
+        // Then
+        assertTrue(answeredBy.stream().allMatch("a"::equals));
+    }
+
+    @Test
+    void noHedgeWithoutBudgetOrPolicy() {
+        // Given
+        Replica slow = new Replica("a", 1);
+        Hedging noBudget = new Hedging(List.of(new HedgingPolicy("clickhouse", "login_events", 0.95, Duration.ofMillis(5), 0.0)));
+        HedgedQuery<String> query = (HedgedQuery<String>) noBudget.hedged(List.of(slow, slow));
+        for (int i = 0; i < HedgedQuery.MIN_SAMPLES; i++) {
+            query.execute(Map.of());
+        }
+        slow.latencyMillis.set(50);
+
+        // When
+        String result = query.execute(Map.of());
+        noBudget.close();
+
+        // Then
+        assertEquals("a", result);
+        assertEquals(0, query.hedges());
+        assertSame(slow, Hedging.none().hedged(List.of(slow, new Replica("b", 1))));
+    }
+
+    @Test
+    void httpHedgeGoesToAnotherReplicaEndpoint() throws IOException {
+        // Given
+        Endpoint primary = new Endpoint("1");
+        Endpoint secondary = new Endpoint("2");
+        ClickHouseReplicas replicas = new ClickHouseReplicas(List.of(new JdbcTemplate(), new JdbcTemplate()),
+                List.of(primary.http(), secondary.http()), List.of());
+        Hedging transactionsHedging = new Hedging(List.of(
+                new HedgingPolicy("clickhouse", "transactions", 0.95, Duration.ofMillis(5), 0.5)));
+        HedgedQuery<TransactionsView> query = (HedgedQuery<TransactionsView>) transactionsHedging.hedged(replicas.each(Transactions::new));
+        for (int i = 0; i < HedgedQuery.MIN_SAMPLES; i++) {
+            query.execute(Map.of("user_id", "u1"));
+        }
+        primary.latencyMillis.set(2_000);
+
+        // When
+        TransactionsView result = query.execute(Map.of("user_id", "u1"));
+        transactionsHedging.close();
+        primary.stop();
+        secondary.stop();
+
+        // Then
+        assertEquals(2.0, result.total());
+        assertEquals(1, query.hedges());
+        assertEquals(HedgedQuery.MIN_SAMPLES + 1, primary.requests.get());
+        assertEquals(1, secondary.requests.get());
+    }
+
+    private static class Endpoint {
+        private final HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        private final AtomicLong latencyMillis = new AtomicLong(1);
+        private final AtomicInteger requests = new AtomicInteger();
+
+        Endpoint(String total) throws IOException {
+            server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+            server.createContext("/", exchange -> {
+                requests.incrementAndGet();
+                exchange.getRequestBody().readAllBytes();
+                try {
+                    Thread.sleep(latencyMillis.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                byte[] bytes = ("total\taverage\n" + total + "\t0\n").getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, bytes.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(bytes);
+                }
+            });
+            server.start();
+        }
+
+        ClickHouseHttp http() {
+            return ClickHouseHttp.create(URI.create("http://localhost:" + server.getAddress().getPort() + "/"),
+                    "default", "", Duration.ofSeconds(5));
+        }
+
+        void stop() {
+            server.stop(0);
+        }
+    }
+
+    private static class Replica implements Query<String> {
+        private final String name;
+        private final AtomicLong latencyMillis;
+        private final CountDownLatch interrupted = new CountDownLatch(1);
+
+        Replica(String name, long latencyMillis) {
+            this.name = name;
+            this.latencyMillis = new AtomicLong(latencyMillis);
+        }
+
+        @Override
+        public String execute(Map<String, String> params) {
+            try {
+                Thread.sleep(latencyMillis.get());
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("cancelled");
+            }
+            return name;
+        }
+
+        @Override
+        public RuleSource ruleSource() {
+            return new RuleSource("clickhouse", "login_events");
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package io.pillopl.fraud_detencion;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KnapsackPlannerTest {
+
+    @Test
+    void plansMoreCheapRulesThanThereAreTimeBuckets() {
+        // Given - 1000 rules of 1ms each, 4000ms of budget
+        List<Rule> rules = cheapRules(1000);
+        RulesStats stats = statsOf(rules, Duration.ofMillis(1), 0);
+
+        // When
+        List<Rule> plan = new KnapsackPlanner().plan(rules, stats, new ExecutionBudget(Duration.ofMillis(500), 8));
+
+        // Then
+        assertEquals(1000, plan.size());
+    }
+
+    @Test
+    void unlimitedBudgetTakesEveryRule() {
+        // Given
+        List<Rule> rules = cheapRules(1000);
+        RulesStats stats = statsOf(rules, Duration.ofMillis(1), 0);
+
+        // When
+        List<Rule> plan = new KnapsackPlanner().plan(rules, stats, ExecutionBudget.unlimited());
+
+        // Then
+        assertEquals(1000, plan.size());
+    }
+
+    @Test
+    void cheapRulesStillRespectTheBudget() {
+        // Given - 300 rules of 3ms each, 400ms of budget and 250 queries of cost limit
+        List<Rule> rules = cheapRules(300);
+        RulesStats stats = statsOf(rules, Duration.ofMillis(3), 1);
+
+        // When
+        List<Rule> byTime = new KnapsackPlanner().plan(rules, stats, new ExecutionBudget(Duration.ofMillis(100), 4));
+        List<Rule> byCost = new KnapsackPlanner().plan(rules, stats, new ExecutionBudget(Duration.ofMillis(1000), 4, 250));
+
+        // Then
+        assertEquals(133, byTime.size());
+        assertEquals(250, byCost.size());
+    }
+
+    private static List<Rule> cheapRules(int count) {
+        return IntStream.range(0, count)
+                .<Rule>mapToObj(i -> new NonQueriedRule("rule-" + i, ScoreCheck.when(params -> true, Score.of(1))))
+                .toList();
+    }
+
+    private static RulesStats statsOf(List<Rule> rules, Duration duration, int cost) {
+        Map<String, RuleStats> byRule = new HashMap<>();
+        for (Rule rule : rules) {
+            byRule.put(rule.id(), new RuleStats(rule.id()).update(new RuleExecution(rule.id(), duration, Score.of(1), cost)));
+        }
+        return new RulesStats(byRule);
+    }
+}
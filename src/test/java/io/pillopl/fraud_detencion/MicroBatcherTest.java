@@ -0,0 +1,51 @@
+package io.pillopl.fraud_detencion;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MicroBatcherTest {
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+    @AfterEach
+    void tearDown() {
+        timer.shutdownNow();
+    }
+
+    @Test
+    void flushReturningTooFewResultsFailsEveryFuture() {
+        // Given
+        MicroBatcher<String, String> batcher = new MicroBatcher<String, String>(Duration.ofMinutes(1), 2,
+                items -> CompletableFuture.completedFuture(List.of("only one")), timer);
+
+        // When
+        CompletableFuture<String> first = batcher.submit("a");
+        CompletableFuture<String> second = batcher.submit("b");
+
+        // Then
+        assertThrows(ExecutionException.class, () -> first.get(1, TimeUnit.SECONDS));
+        assertThrows(ExecutionException.class, () -> second.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void flushThrowingErrorFailsEveryFuture() {
+        // Given
+        MicroBatcher<String, String> batcher = new MicroBatcher<String, String>(Duration.ofMinutes(1), 1,
+                items -> {
+                    throw new StackOverflowError();
+                }, timer);
+
+        // When
+        CompletableFuture<String> result = batcher.submit("a");
+
+        // Then
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> result.get(1, TimeUnit.SECONDS));
+        assertInstanceOf(StackOverflowError.class, failure.getCause());
+    }
+}
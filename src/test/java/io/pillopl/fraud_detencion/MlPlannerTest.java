@@ -0,0 +1,112 @@
+package io.pillopl.fraud_detencion;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static io.pillopl.fraud_detencion.ExecutionConfig.SortingAlgorithm.ML;
+import static org.junit.jupiter.api.Assertions.*;
+
+class MlPlannerTest {
+
+    private final MlPlanner planner = new MlPlanner(new MlPlanner.Settings(0.1, 50, 0.05, 0, 20));
+    private final Map<String, String> mobile = Map.of("user_agent", "Mobile");
+    private final Map<String, String> desktop = Map.of("user_agent", "Desktop");
+
+    @Test
+    void skipsSlowRuleThatNeverFiresForThisSegmentButKeepsCheapOnes() {
+        // Given
+        Rule anomaly = new TestRule("ANOMALY");
+        Rule blacklist = new TestRule("BLACKLIST");
+        List<RulesExecuted> history = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            history.add(new RulesExecuted(List.of(execution("ANOMALY", 50, 0), execution("BLACKLIST", 5, 100)), mobile));
+            history.add(new RulesExecuted(List.of(execution("ANOMALY", 50, 40), execution("BLACKLIST", 5, 0)), desktop));
+        }
+
+        // When
+        planner.train(history);
+
+        // Then
+        assertEquals(List.of(blacklist), planner.plan(List.of(anomaly, blacklist), mobile, RulesStats.empty()));
+        assertEquals(List.of(anomaly, blacklist), planner.plan(List.of(anomaly, blacklist), desktop, RulesStats.empty())); // 5ms - not worth skipping
+    }
+
+    @Test
+    void neverSkipsRuleThatAloneChangesVerdict() {
+        // Given
+        MlPlanner withThresholds = new MlPlanner(new MlPlanner.Settings(0.1, 50, 0.05, 0, 20), new DecisionThresholds(30, 100));
+        Rule blacklist = new NonQueriedRule("BLACKLIST", ScoreCheck.when(params -> true, Score.of(100)));
+        Rule minor = new NonQueriedRule("MINOR", ScoreCheck.when(params -> true, Score.of(20)));
+        List<RulesExecuted> history = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            history.add(new RulesExecuted(List.of(execution("BLACKLIST", 50, 0), execution("MINOR", 50, 0)), mobile));
+        }
+
+        // When
+        withThresholds.train(history);
+
+        // Then
+        assertEquals(List.of(blacklist), withThresholds.plan(List.of(blacklist, minor), mobile, RulesStats.empty()));
+    }
+
+    @Test
+    void ordersByExpectedScorePerMillisecond() {
+        // Given
+        Rule slow = new TestRule("SLOW");
+        Rule fast = new TestRule("FAST");
+        List<RulesExecuted> history = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            history.add(new RulesExecuted(List.of(execution("SLOW", 200, 20), execution("FAST", 10, 20)), mobile));
+        }
+
+        // When
+        planner.train(history);
+
+        // Then
+        assertEquals(List.of(fast, slow), planner.plan(List.of(slow, fast), mobile, RulesStats.empty()));
+    }
+
+    @Test
+    void timedOutRunsTeachLatencyButNotThatRuleNeverFires() {
+        // Given
+        Rule anomaly = new TestRule("ANOMALY");
+        List<RulesExecuted> history = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            history.add(new RulesExecuted(List.of(execution("ANOMALY", 50, 40)), mobile));
+            for (int j = 0; j < 9; j++) {
+                history.add(new RulesExecuted(List.of(RuleExecution.timedOut("ANOMALY", Duration.ofMillis(200), 0)), mobile));
+            }
+        }
+
+        // When
+        planner.train(history);
+
+        // Then
+        assertEquals(List.of(anomaly), planner.plan(List.of(anomaly), mobile, RulesStats.empty()));
+    }
+
+    @Test
+    void untrainedPlannerKeepsEveryRuleOrderedByStats() {
+        // Given
+        Rule slow = new TestRule("SLOW");
+        Rule fast = new TestRule("FAST");
+        RulesStats stats = RulesStats.empty();
+        stats.update(execution("SLOW", 300, 10));
+        stats.update(execution("FAST", 10, 10));
+
+        // When
+        ExecutionPlan plan = new ExecutionConfig(new ExecutionStrategy(1, 1, 1), new RulesConfig(List.of(slow, fast)), stats,
+                ML, ExecutionBudget.unlimited(), planner).calculatePlan(mobile);
+
+        // Then
+        assertEquals(List.of(fast, slow), plan.independentRules());
+    }
+
+    private static RuleExecution execution(String id, long millis, int score) {
+        return new RuleExecution(id, Duration.ofMillis(millis), Score.of(score), 0);
+    }
+}
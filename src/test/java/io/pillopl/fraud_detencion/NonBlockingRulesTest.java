@@ -0,0 +1,167 @@
+package io.pillopl.fraud_detencion;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NonBlockingRulesTest {
+
+    private final ExecutorService singleThread = Executors.newSingleThreadExecutor();
+
+    @AfterEach
+    void tearDown() {
+        singleThread.shutdownNow();
+    }
+
+    @Test
+    void singleThreadCarriesThousandConcurrentRules() {
+        // Given
+        RuleScheduler scheduler = new RuleScheduler(singleThread, 1000);
+        ExecutionPlan plan = new ExecutionPlan(IntStream.range(0, 1000)
+                .<Rule>mapToObj(i -> new QueriedRule<>("rule-" + i, (Integer value) -> value > 0,
+                        new DelayedQuery("view-" + i, Duration.ofMillis(100)), Score.of(1)))
+                .toList());
+
+        // When
+        long start = System.nanoTime();
+        ExecutionResult result = scheduler.run(plan, Map.of(), Duration.ofSeconds(5));
+
+        // Then
+        assertTrue(result.isComplete());
+        assertEquals(Score.of(1000), result.score());
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).compareTo(Duration.ofSeconds(2)) < 0,
+                "1000 x 100ms should overlap, not queue on one thread");
+    }
+
+    @Test
+    void nonBlockingSourceFeedsBlockingSinkOnExecutor() {
+        // Given
+        AtomicInteger sinkThreads = new AtomicInteger();
+        Query<Integer> blockingSink = new Query<>() {
+            @Override
+            public Integer execute(Map<String, String> params) {
+                sinkThreads.incrementAndGet();
+                return Integer.parseInt(params.get("device_id"));
+            }
+
+            @Override
+            public RuleSource ruleSource() {
+                return new RuleSource("clickhouse", "login_events");
+            }
+        };
+        DependentRule<Integer, Integer> rule = new DependentRule<>("dependent",
+                new QueriedRule<>("source", (Integer value) -> value > 0, new DelayedQuery("source", Duration.ofMillis(10)), Score.of(5)),
+                new QueriedRule<>("sink", (Integer value) -> value == 7, blockingSink, Score.of(10)),
+                value -> true,
+                value -> Map.of("device_id", "7"));
+
+        // When
+        Score score = rule.calculateAsync(Map.of(), QueryScope.open(), singleThread).toCompletableFuture().join();
+
+        // Then
+        assertTrue(rule.nonBlocking());
+        assertEquals(Score.of(15), score);
+        assertEquals(1, sinkThreads.get());
+    }
+
+    @Test
+    void blockingSinkIsInterruptedWhenSchedulerCancelsAtDeadline() throws InterruptedException {
+        // Given
+        CountDownLatch interrupted = new CountDownLatch(1);
+        Query<Integer> slowSink = new Query<>() {
+            @Override
+            public Integer execute(Map<String, String> params) {
+                try {
+                    Thread.sleep(5_000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    Thread.currentThread().interrupt();
+                }
+                return 1;
+            }
+
+            @Override
+            public RuleSource ruleSource() {
+                return new RuleSource("clickhouse", "login_events");
+            }
+        };
+        DependentRule<Integer, Integer> rule = new DependentRule<>("dependent",
+                new QueriedRule<>("source", (Integer value) -> value > 0, new DelayedQuery("source", Duration.ofMillis(10)), Score.of(5)),
+                new QueriedRule<>("sink", (Integer value) -> value > 0, slowSink, Score.of(10)),
+                value -> true,
+                value -> Map.of("device_id", "7"));
+        RuleScheduler scheduler = new RuleScheduler(singleThread, 1);
+
+        // When
+        ExecutionResult result = scheduler.run(new ExecutionPlan(List.of(rule)), Map.of(), Duration.ofMillis(200));
+
+        // Then
+        assertEquals(List.of("dependent"), result.timedOut());
+        assertTrue(interrupted.await(1, TimeUnit.SECONDS), "blocking sink should be interrupted, not left running");
+    }
+
+    @Test
+    void blockingAndNonBlockingRulesShareOneExecution() {
+        // Given
+        DelayedQuery query = new DelayedQuery("shared", Duration.ofMillis(20));
+        QueryScope scope = QueryScope.open();
+
+        // When
+        CompletionStage<Integer> async = scope.executeAsync(query, Map.of(), singleThread);
+        Integer blocking = scope.execute(query, Map.of());
+
+        // Then
+        assertEquals(1, blocking);
+        assertEquals(1, async.toCompletableFuture().join());
+        assertEquals(1, query.executions.get());
+    }
+
+    // completes from a timer thread, like a client event loop - executeAsync holds no thread
+    private record DelayedQuery(String view, Duration latency, AtomicInteger executions) implements Query<Integer> {
+
+        DelayedQuery(String view, Duration latency) {
+            this(view, latency, new AtomicInteger());
+        }
+
+        @Override
+        public Integer execute(Map<String, String> params) {
+            return Query.await(executeAsync(params, Runnable::run));
+        }
+
+        @Override
+        public boolean nonBlocking() {
+            return true;
+        }
+
+        @Override
+        public CompletionStage<Integer> executeAsync(Map<String, String> params, Executor blocking) {
+            executions.incrementAndGet();
+            Executor later = CompletableFuture.delayedExecutor(latency.toMillis(), TimeUnit.MILLISECONDS);
+            return CompletableFuture.supplyAsync(() -> 1, later);
+        }
+
+        @Override
+        public Map<String, String> boundParams(Map<String, String> params) {
+            return Map.of("view", view);
+        }
+
+        @Override
+        public RuleSource ruleSource() {
+            return new RuleSource("redis", view);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package io.pillopl.fraud_detencion;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+
+import static io.pillopl.fraud_detencion.ExecutionConfig.SortingAlgorithm.Greedy;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PlanCacheTest {
+
+    private final ExecutionStrategy byTime = new ExecutionStrategy(0, 1, 0);
+    private final RulesStats stats = RulesStats.empty();
+    private final PlanCache cache = new PlanCache(stats, Greedy, ExecutionBudget.unlimited(), 0.2);
+    private final Rule a = new TestRule("A");
+    private final Rule b = new TestRule("B");
+
+    @AfterEach
+    void tearDown() {
+        cache.close();
+    }
+
+    @Test
+    void returnsSamePlanForSameRulesAndStrategy() {
+        // Given
+        RulesConfig config = new RulesConfig(List.of(a, b));
+
+        // Expect
+        assertSame(cache.plan(config, byTime), cache.plan(config, byTime));
+        assertNotSame(cache.plan(config, byTime), cache.plan(config, new ExecutionStrategy(0, 0, 1)));
+        assertNotSame(cache.plan(config, byTime), cache.plan(new RulesConfig(List.of(a, b)), byTime));
+    }
+
+    @Test
+    void replansWhenStatsDriftBeyondThreshold() {
+        // Given
+        RulesConfig config = new RulesConfig(List.of(a, b));
+        stats.update(execution("A", 100));
+        stats.update(execution("B", 200));
+        assertEquals(List.of(a, b), cache.plan(config, byTime).independentRules());
+
+        // When
+        stats.update(execution("A", 900)); // avg 100ms -> 500ms
+
+        // Then
+        assertEquals(List.of(a, b), cache.plan(config, byTime).independentRules()); // still the cached plan
+        cache.refresh();
+        assertEquals(List.of(b, a), cache.plan(config, byTime).independentRules());
+    }
+
+    @Test
+    void keepsPlanWhenDriftIsBelowThreshold() {
+        // Given
+        RulesConfig config = new RulesConfig(List.of(a, b));
+        stats.update(execution("A", 100));
+        stats.update(execution("B", 200));
+        ExecutionPlan plan = cache.plan(config, byTime);
+
+        // When
+        stats.update(execution("A", 120)); // avg 100ms -> 110ms
+        cache.refresh();
+
+        // Then
+        assertSame(plan, cache.plan(config, byTime));
+    }
+
+    @Test
+    void driftIsLargestRelativeChangeOfAnyMetric() {
+        // Given
+        RuleStatsSnapshot before = new RuleStatsSnapshot("A", 10, 100, 2, 10, Duration.ZERO, Duration.ZERO, Duration.ZERO);
+        RuleStatsSnapshot after = new RuleStatsSnapshot("A", 20, 110, 2, 15, Duration.ZERO, Duration.ZERO, Duration.ZERO);
+
+        // Expect
+        assertEquals(0.5, PlanCache.drift(before, after), 1e-9);
+        assertEquals(Double.POSITIVE_INFINITY, PlanCache.drift(null, after));
+        assertEquals(0, PlanCache.drift(before, null));
+    }
+
+    private static RuleExecution execution(String id, long millis) {
+        return new RuleExecution(id, Duration.ofMillis(millis), Score.zero(), 0);
+    }
+}
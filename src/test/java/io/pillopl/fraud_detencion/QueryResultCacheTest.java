@@ -0,0 +1,84 @@
+package io.pillopl.fraud_detencion;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.context.properties.source.MapConfigurationPropertySource;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueryResultCacheTest {
+
+    private static final RuleSource USERS = new RuleSource("test", "users");
+
+    @Test
+    void secondRequestForTheSameUserIsServedFromCache() {
+        // Given
+        CountingUserQuery query = new CountingUserQuery(0);
+        QueryResultCache cache = new QueryResultCache(List.of(new CachePolicy("test", "users", Duration.ofMinutes(1), 100L, null)));
+        Query<String> cached = cache.cached(query);
+
+        // When
+        cached.execute(Map.of("user_id", "u1", "email", "first@mail.com"));
+        String second = cached.execute(Map.of("user_id", "u1", "email", "second@mail.com"));
+        cached.execute(Map.of("user_id", "u2"));
+
+        // Then
+        assertEquals("result of u1", second);
+        assertEquals(2, query.executions.get());
+        assertEquals(1, cache.stats(USERS).orElseThrow().hitCount());
+        assertEquals(2, cache.stats(USERS).orElseThrow().missCount());
+    }
+
+    @Test
+    void entriesExpireAfterTtl() throws InterruptedException {
+        // Given
+        CountingUserQuery query = new CountingUserQuery(0);
+        QueryResultCache cache = new QueryResultCache(List.of(new CachePolicy("test", "users", Duration.ofMillis(50), null, DataSize.ofKilobytes(64))));
+        Query<String> cached = cache.cached(query);
+
+        // When
+        cached.execute(Map.of("user_id", "u1"));
+        Thread.sleep(100);
+        cached.execute(Map.of("user_id", "u1"));
+
+        // Then
+        assertEquals(2, query.executions.get());
+    }
+
+    @Test
+    void queriesWithoutPolicyAreNotWrapped() {
+        // Given
+        CountingUserQuery query = new CountingUserQuery(0);
+        QueryResultCache cache = new QueryResultCache(List.of(new CachePolicy("clickhouse", "transactions", Duration.ofSeconds(10), 10L, null)));
+
+        // Expect
+        assertSame(query, cache.cached(query));
+        assertTrue(cache.stats(USERS).isEmpty());
+    }
+
+    @Test
+    void policiesBindFromProperties() {
+        // Given
+        Map<String, String> properties = Map.of(
+                "fraud.query-cache.policies[0].datasource", "clickhouse",
+                "fraud.query-cache.policies[0].view", "login_events",
+                "fraud.query-cache.policies[0].ttl", "30s",
+                "fraud.query-cache.policies[0].max-bytes", "16MB");
+
+        // When
+        QueryCacheProperties bound = new Binder(new MapConfigurationPropertySource(properties))
+                .bind("fraud.query-cache", QueryCacheProperties.class)
+                .get();
+
+        // Then
+        CachePolicy policy = bound.policies().getFirst();
+        assertEquals(new RuleSource("clickhouse", "login_events"), policy.ruleSource());
+        assertEquals(Duration.ofSeconds(30), policy.ttl());
+        assertEquals(DataSize.ofMegabytes(16), policy.maxBytes());
+    }
+}
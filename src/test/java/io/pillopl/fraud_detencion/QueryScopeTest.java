@@ -0,0 +1,129 @@
+package io.pillopl.fraud_detencion;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueryScopeTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void rulesSharingAViewExecuteOneQueryPerRequest() {
+        // Given
+        CountingUserQuery query = new CountingUserQuery(50);
+        QueriedRule<String> first = new QueriedRule<>("first", data -> true, query, Score.of(1));
+        QueriedRule<String> second = new QueriedRule<>("second", data -> true, query, Score.of(2));
+        SingleSourceQueriedRule<String> grouped = new SingleSourceQueriedRule<>("grouped", List.of(data -> Score.of(4)), query);
+        RuleScheduler scheduler = new RuleScheduler(executor, 4);
+
+        // When
+        ExecutionResult result = scheduler.run(new ExecutionPlan(List.of(first, second, grouped)),
+                Map.of("user_id", "u1", "email", "a@b.c"), Duration.ofSeconds(2));
+
+        // Then
+        assertEquals(Score.of(7), result.score());
+        assertEquals(1, query.executions.get());
+    }
+
+    @Test
+    void differentBoundParamsAreNotShared() {
+        // Given
+        CountingUserQuery query = new CountingUserQuery(0);
+
+        // When
+        try (QueryScope scope = QueryScope.open()) {
+            scope.execute(query, Map.of("user_id", "u1", "email", "x"));
+            scope.execute(query, Map.of("user_id", "u1", "email", "y"));
+            scope.execute(query, Map.of("user_id", "u2", "email", "x"));
+        }
+
+        // Then
+        assertEquals(2, query.executions.get());
+    }
+
+    @Test
+    void resultsDoNotLeakIntoTheNextRequest() {
+        // Given
+        CountingUserQuery query = new CountingUserQuery(0);
+        QueriedRule<String> rule = new QueriedRule<>("rule", data -> data.equals("result of u2"), query, Score.of(10));
+        RuleScheduler scheduler = new RuleScheduler(executor, 1);
+        ExecutionPlan plan = new ExecutionPlan(List.of(rule));
+
+        // When
+        scheduler.run(plan, Map.of("user_id", "u1"), Duration.ofSeconds(1));
+        ExecutionResult second = scheduler.run(plan, Map.of("user_id", "u2"), Duration.ofSeconds(1));
+
+        // Then
+        assertEquals(Score.of(10), second.score());
+        assertEquals(2, query.executions.get());
+    }
+
+    @Test
+    void failedQueryIsNotMemoized() {
+        // Given
+        AtomicInteger attempts = new AtomicInteger();
+        Query<String> flaky = new CountingUserQuery(0) {
+            @Override
+            public String execute(Map<String, String> params) {
+                if (attempts.incrementAndGet() == 1) {
+                    throw new IllegalStateException("connection reset");
+                }
+                return "ok";
+            }
+        };
+
+        // When
+        try (QueryScope scope = QueryScope.open()) {
+            assertThrows(IllegalStateException.class, () -> scope.execute(flaky, Map.of("user_id", "u1")));
+            assertEquals("ok", scope.execute(flaky, Map.of("user_id", "u1")));
+        }
+
+        // Then
+        assertEquals(2, attempts.get());
+    }
+}
+
+class CountingUserQuery implements Query<String> {
+
+    final AtomicInteger executions = new AtomicInteger();
+    private final long latencyMillis;
+
+    CountingUserQuery(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    @Override
+    public String execute(Map<String, String> params) {
+        executions.incrementAndGet();
+        try {
+            Thread.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return "result of " + params.get("user_id");
+    }
+
+    @Override
+    public Map<String, String> boundParams(Map<String, String> params) {
+        return Query.select(params, "user_id");
+    }
+
+    @Override
+    public RuleSource ruleSource() {
+        return new RuleSource("test", "users");
+    }
+}
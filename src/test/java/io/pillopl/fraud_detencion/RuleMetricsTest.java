@@ -0,0 +1,73 @@
+package io.pillopl.fraud_detencion;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RuleMetricsTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final RuleMetrics metrics = new RuleMetrics(registry);
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void schedulerRecordsExecutionsTimeoutsAndErrorsPerRule() {
+        // Given
+        RuleScheduler scheduler = new RuleScheduler(executor, 4, metrics);
+        Rule failing = new NonQueriedRule("BROKEN", params -> {
+            throw new IllegalStateException("boom");
+        });
+        ExecutionPlan plan = new ExecutionPlan(List.of(
+                new SleepingRule("FAST", 10, 5),
+                new SleepingRule("SLOW", 5_000, 100),
+                failing));
+
+        // When
+        scheduler.run(plan, Map.of(), Duration.ofMillis(200));
+
+        // Then
+        assertEquals(new RuleCounters(1, 0, 0, 5), metrics.ruleCounters("FAST"));
+        assertEquals(1, metrics.ruleCounters("SLOW").timeouts());
+        assertEquals(1, metrics.ruleCounters("BROKEN").errors());
+        assertEquals(1, registry.get("fraud.rule.duration").tag("rule", "FAST").timer().count());
+    }
+
+    @Test
+    void queryLatencyIsReadableProgrammatically() {
+        // Given
+        CountingUserQuery query = new CountingUserQuery(20);
+
+        // When
+        try (QueryScope scope = QueryScope.open(metrics)) {
+            scope.execute(query, Map.of("user_id", "u1"));
+            scope.execute(query, Map.of("user_id", "u2"));
+        }
+
+        // Then
+        LatencySnapshot latency = metrics.queryLatency(CountingUserQuery.class);
+        assertEquals(2, latency.count());
+        assertTrue(latency.mean().toMillis() >= 20);
+        assertTrue(latency.p99().compareTo(latency.p50()) >= 0);
+        assertEquals(2, registry.get("fraud.query.duration").tag("query", "CountingUserQuery").timer().count());
+    }
+
+    @Test
+    void unknownRuleHasEmptyStatistics() {
+        // Expect
+        assertEquals(LatencySnapshot.EMPTY, metrics.ruleLatency("nope"));
+        assertEquals(new RuleCounters(0, 0, 0, 0), metrics.ruleCounters("nope"));
+    }
+}
@@ -0,0 +1,239 @@
+package io.pillopl.fraud_detencion;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RuleSchedulerTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void sumsScoresOfAllRulesFinishedBeforeDeadline() {
+        // Given
+        RuleScheduler scheduler = new RuleScheduler(executor, 4);
+        ExecutionPlan plan = new ExecutionPlan(List.of(
+                new SleepingRule("A", 10, 5),
+                new SleepingRule("B", 10, 7),
+                new SleepingRule("C", 10, 11)));
+
+        // When
+        ExecutionResult result = scheduler.run(plan, Map.of(), Duration.ofSeconds(2));
+
+        // Then
+        assertEquals(Score.of(23), result.score());
+        assertTrue(result.isComplete());
+        assertEquals(3, result.finished().size());
+    }
+
+    @Test
+    void returnsPartialScoreAndCancelsSlowRulesAtDeadline() throws InterruptedException {
+        // Given
+        RuleScheduler scheduler = new RuleScheduler(executor, 4);
+        SleepingRule slow = new SleepingRule("SLOW", 5_000, 100);
+        ExecutionPlan plan = new ExecutionPlan(List.of(new SleepingRule("FAST", 10, 5), slow));
+
+        // When
+        ExecutionResult result = scheduler.run(plan, Map.of(), Duration.ofMillis(300));
+
+        // Then
+        assertEquals(Score.of(5), result.score());
+        assertEquals(List.of("SLOW"), result.timedOut());
+        assertTrue(slow.interrupted.await(1, TimeUnit.SECONDS), "slow rule should be interrupted");
+    }
+
+    @Test
+    void consumesPlanInOrderWithLimitedParallelism() {
+        // Given
+        RuleScheduler scheduler = new RuleScheduler(executor, 1);
+        ExecutionPlan plan = new ExecutionPlan(List.of(
+                new SleepingRule("X", 150, 1),
+                new SleepingRule("Y", 150, 2),
+                new SleepingRule("Z", 150, 4)));
+
+        // When
+        ExecutionResult result = scheduler.run(plan, Map.of(), Duration.ofMillis(400));
+
+        // Then
+        // X: 0-150, Y: 150-300, Z: 300-450 (too late)
+        assertEquals(Score.of(3), result.score());
+        assertEquals(List.of("Z"), result.timedOut());
+    }
+
+    @Test
+    void failingRuleDoesNotDiscardOtherScores() {
+        // Given
+        RuleScheduler scheduler = new RuleScheduler(executor, 2);
+        Rule failing = new Rule() {
+            @Override
+            public Score calculate(Map<String, String> params) {
+                throw new IllegalStateException("boom");
+            }
+
+            @Override
+            public String id() {
+                return "BROKEN";
+            }
+        };
+        ExecutionPlan plan = new ExecutionPlan(List.of(failing, new SleepingRule("OK", 10, 9)));
+
+        // When
+        ExecutionResult result = scheduler.run(plan, Map.of(), Duration.ofSeconds(1));
+
+        // Then
+        assertEquals(Score.of(9), result.score());
+        assertEquals(List.of("BROKEN"), result.failed());
+    }
+
+    @Test
+    void blocksAndCancelsRemainingRulesOnceBlockThresholdIsCrossed() throws InterruptedException {
+        // Given
+        RuleScheduler scheduler = new RuleScheduler(executor, 4);
+        SleepingRule slow = new SleepingRule("SLOW", 5_000, 40);
+        // waits until SLOW is running, so it is interrupted mid-call and not cancelled before it starts
+        Rule blacklist = new NonQueriedRule("BLACKLIST", ScoreCheck.when(params -> awaitStart(slow), Score.of(100)));
+        ExecutionPlan plan = new ExecutionPlan(List.of(slow, blacklist));
+
+        // When
+        long start = System.nanoTime();
+        ExecutionResult result = scheduler.run(plan, Map.of(), Duration.ofSeconds(10), new DecisionThresholds(30, 100));
+
+        // Then
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() < 1_000);
+        assertEquals(Verdict.BLOCK, result.verdict());
+        assertEquals(List.of("SLOW"), result.skipped());
+        assertTrue(result.timedOut().isEmpty());
+        assertTrue(slow.interrupted.await(1, TimeUnit.SECONDS), "slow rule should be interrupted");
+    }
+
+    @Test
+    void allowsOnceRemainingRulesCannotReachReviewBand() {
+        // Given
+        RuleScheduler scheduler = new RuleScheduler(executor, 4);
+        Rule slow = new SleepingRule("SLOW", 5_000, 10) {
+            @Override
+            public Optional<Score> maxScore() {
+                return Optional.of(Score.of(10));
+            }
+        };
+        Rule quiet = new NonQueriedRule("QUIET", ScoreCheck.when(params -> false, Score.of(25)));
+        ExecutionPlan plan = new ExecutionPlan(List.of(slow, quiet));
+
+        // When
+        ExecutionResult result = scheduler.run(plan, Map.of(), Duration.ofSeconds(10), new DecisionThresholds(30, 100));
+
+        // Then
+        // 0 after QUIET, at most 10 more from SLOW - never reaches 30
+        assertEquals(Verdict.ALLOW, result.verdict());
+        assertEquals(List.of("SLOW"), result.skipped());
+    }
+
+    @Test
+    void waitsForAllRulesWhenAnyRemainingRuleHasUnknownMaximum() {
+        // Given
+        RuleScheduler scheduler = new RuleScheduler(executor, 4);
+        Rule quiet = new NonQueriedRule("QUIET", ScoreCheck.when(params -> false, Score.of(25)));
+        ExecutionPlan plan = new ExecutionPlan(List.of(new SleepingRule("UNBOUNDED", 50, 40), quiet));
+
+        // When
+        ExecutionResult result = scheduler.run(plan, Map.of(), Duration.ofSeconds(10), new DecisionThresholds(30, 100));
+
+        // Then
+        assertEquals(Verdict.REVIEW, result.verdict());
+        assertFalse(result.shortCircuited());
+        assertEquals(Score.of(40), result.score());
+    }
+
+    @Test
+    void feedsFinishedAndTimedOutRulesIntoStats() {
+        // Given
+        RulesStats stats = RulesStats.empty();
+        RuleScheduler scheduler = new RuleScheduler(executor, 4, RuleMetrics.noop(), stats::handle);
+        ExecutionPlan plan = new ExecutionPlan(List.of(new SleepingRule("FAST", 10, 5), new SleepingRule("SLOW", 5_000, 100)));
+
+        // When
+        scheduler.run(plan, Map.of(), Duration.ofMillis(200));
+        scheduler.run(plan, Map.of(), Duration.ofMillis(200));
+
+        // Then
+        assertEquals(5, stats.get("FAST").orElseThrow().avgScore());
+        RuleStats slow = stats.get("SLOW").orElseThrow();
+        assertEquals(0, slow.avgScore());
+        assertTrue(slow.avgDurationMillis() >= 150, "censored at deadline, was " + slow.avgDurationMillis());
+    }
+
+    @Test
+    void chargesRuleOnlyForQueriesItActuallyExecuted() {
+        // Given
+        RulesStats stats = RulesStats.empty();
+        RuleScheduler scheduler = new RuleScheduler(executor, 1, RuleMetrics.noop(), stats::handle);
+        CountingUserQuery userQuery = new CountingUserQuery(0);
+        ExecutionPlan plan = new ExecutionPlan(List.of(
+                new QueriedRule<>("FIRST", result -> true, userQuery, Score.of(1)),
+                new QueriedRule<>("SECOND", result -> true, userQuery, Score.of(1))));
+
+        // When
+        scheduler.run(plan, Map.of("user_id", "user_1"), Duration.ofSeconds(1));
+
+        // Then
+        assertEquals(1, stats.get("FIRST").orElseThrow().avgCost());
+        assertEquals(0, stats.get("SECOND").orElseThrow().avgCost()); // shared result from QueryScope
+    }
+
+    private static boolean awaitStart(SleepingRule rule) {
+        try {
+            return rule.started.await(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
+
+class SleepingRule implements Rule {
+
+    private final String id;
+    private final long millis;
+    private final int score;
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch interrupted = new CountDownLatch(1);
+
+    SleepingRule(String id, long millis, int score) {
+        this.id = id;
+        this.millis = millis;
+        this.score = score;
+    }
+
+    @Override
+    public Score calculate(Map<String, String> params) {
+        started.countDown();
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            interrupted.countDown();
+            Thread.currentThread().interrupt();
+            return Score.zero();
+        }
+        return Score.of(score);
+    }
+
+    @Override
+    public String id() {
+        return id;
+    }
+}
@@ -0,0 +1,124 @@
+package io.pillopl.fraud_detencion;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RuleStatsTest {
+
+    private final MutableClock clock = new MutableClock();
+    private final StatsWindow window = new StatsWindow(Duration.ofSeconds(1), 10, clock);
+
+    @Test
+    void averagesFollowRecentExecutionsOnly() {
+        // Given
+        RuleStats stats = new RuleStats("R", window);
+        IntStream.range(0, 100).forEach(i -> stats.update(execution(10, 5)));
+
+        // When
+        clock.advance(Duration.ofSeconds(30));
+        stats.update(execution(400, 1));
+
+        // Then
+        assertEquals(400, stats.avgDurationMillis());
+        assertEquals(1, stats.avgScore());
+    }
+
+    @Test
+    void fallsBackToLifetimeAveragesWhenWindowIsEmpty() {
+        // Given
+        RuleStats stats = new RuleStats("R", window);
+        stats.update(execution(100, 10));
+        stats.update(execution(300, 20));
+
+        // When
+        clock.advance(Duration.ofMinutes(5));
+
+        // Then
+        assertEquals(200, stats.avgDurationMillis());
+        assertEquals(15, stats.avgScore());
+    }
+
+    @Test
+    void reportsDurationPercentiles() {
+        // Given
+        RuleStats stats = new RuleStats("R", window);
+        IntStream.rangeClosed(1, 100).forEach(ms -> stats.update(execution(ms, 0)));
+
+        // When
+        RuleStatsSnapshot snapshot = stats.snapshot();
+
+        // Then
+        assertEquals(50, snapshot.p50().toMillis(), 50 * 0.07);
+        assertEquals(95, snapshot.p95().toMillis(), 95 * 0.07);
+        assertEquals(99, snapshot.p99().toMillis(), 99 * 0.07);
+    }
+
+    @Test
+    void reusesSnapshotUntilSomethingChanges() {
+        // Given
+        RuleStats stats = new RuleStats("R", window);
+        stats.update(execution(10, 1));
+
+        // Expect
+        RuleStatsSnapshot first = stats.snapshot();
+        assertSame(first, stats.snapshot());
+        stats.update(execution(30, 1));
+        assertEquals(20, stats.snapshot().avgDurationMillis());
+    }
+
+    @Test
+    void concurrentUpdatesAreNotLost() throws InterruptedException {
+        // Given
+        RulesStats stats = RulesStats.empty(window);
+        ExecutorService writers = Executors.newFixedThreadPool(8);
+
+        // When
+        IntStream.range(0, 80_000).forEach(i -> writers.execute(() ->
+                stats.update(new RuleExecution("R" + i % 4, Duration.ofMillis(10), Score.of(2), 1))));
+        writers.shutdown();
+        assertTrue(writers.awaitTermination(10, TimeUnit.SECONDS));
+
+        // Then
+        assertEquals(20_000, stats.snapshot().get("R0").executions());
+        assertEquals(2, stats.get("R3").orElseThrow().avgScore());
+    }
+
+    private static RuleExecution execution(long millis, int score) {
+        return new RuleExecution("R", Duration.ofMillis(millis), Score.of(score), 0);
+    }
+
+    static class MutableClock extends Clock {
+
+        private volatile Instant now = Instant.parse("2025-01-01T00:00:00Z");
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
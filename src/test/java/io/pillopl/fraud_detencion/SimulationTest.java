@@ -6,6 +6,7 @@ import java.time.Duration;
 import java.util.List;
 import java.util.Map;
 
+import static io.pillopl.fraud_detencion.ExecutionConfig.SortingAlgorithm.Knapsack;
 import static org.junit.jupiter.api.Assertions.*;
 
 class SimulationTest {
@@ -113,6 +114,42 @@ class SimulationTest {
         assertEquals(0, total);
     }
 
+    @Test
+    void knapsackBeatsGreedyWhenSlowValuableRuleCompetesWithCheapOnes() {
+        // Given
+        Rule slow = new TestRule("SLOW");
+        Rule a = new TestRule("A");
+        Rule b = new TestRule("B");
+        Rule c = new TestRule("C");
+        Rule d = new TestRule("D");
+
+        RulesStats stats = new RulesStats(Map.of(
+                slow.id(), stats(200, 40, slow),
+                a.id(), stats(100, 25, a),
+                b.id(), stats(100, 25, b),
+                c.id(), stats(100, 25, c),
+                d.id(), stats(100, 25, d)
+        ));
+
+        // When
+        int greedy = Simulation.of(List.of(slow, a, b, c, d))
+                .and(new ExecutionStrategy(0, 0, 1)) // sort by score
+                .after(Duration.ofMillis(200))
+                .andParallelizationOf(2)
+                .runWith(stats).totalScore();
+
+        int knapsack = Simulation.of(List.of(slow, a, b, c, d))
+                .and(new ExecutionStrategy(0, 0, 1))
+                .after(Duration.ofMillis(200))
+                .andParallelizationOf(2)
+                .using(Knapsack)
+                .runWith(stats).totalScore();
+
+        // Then
+        assertEquals(90, greedy); // SLOW on one thread, A then B on the other
+        assertEquals(100, knapsack); // A, B, C, D - two per thread
+    }
+
     RuleStats stats(long duration, int score, Rule rule) {
         return stats(duration, score, 0, rule);
     }
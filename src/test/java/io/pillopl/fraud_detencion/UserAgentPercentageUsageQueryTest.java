@@ -0,0 +1,116 @@
+package io.pillopl.fraud_detencion;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetMetaDataImpl;
+import javax.sql.rowset.RowSetProvider;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UserAgentPercentageUsageQueryTest {
+
+    private final LoginRollup jdbc = new LoginRollup(List.of(
+            new Logins("u1", "Firefox", 1),
+            new Logins("u1", "Chrome", 3)));
+    private final UserAgentPercentageUsageQuery query = new UserAgentPercentageUsageQuery(jdbc);
+
+    @Test
+    void userWithoutLoginsHasNoHistoryAndDoesNotLookAnomalous() {
+        // When
+        double percentage = query.execute(Map.of("user_id", "new_user", "user_agent", "Firefox"));
+
+        // Then
+        assertTrue(Double.isNaN(percentage));
+        assertFalse(percentage <= 0.3d); // userAgentAnomaly check
+        assertEquals(25d, query.execute(Map.of("user_id", "u1", "user_agent", "Firefox")));
+    }
+
+    @Test
+    void batchGivesSameResultsAsSingleRowPathIncludingUsersWithoutLogins() {
+        // Given
+        List<Map<String, String>> params = List.of(
+                Map.of("user_id", "new_user", "user_agent", "Firefox"),
+                Map.of("user_id", "u1", "user_agent", "Firefox"),
+                Map.of("user_id", "u1", "user_agent", "Safari"));
+
+        // When
+        List<Double> batch = query.executeAll(params);
+
+        // Then
+        assertEquals(params.stream().map(query::execute).toList(), batch);
+        assertTrue(Double.isNaN(batch.getFirst()));
+    }
+
+    private record Logins(String userId, String userAgent, long count) {
+    }
+
+    // in-memory login_user_agent_daily: single query gets one aggregate row, batch gets the GROUP BY rows
+    private static class LoginRollup extends JdbcTemplate {
+        private final List<Logins> rows;
+
+        LoginRollup(List<Logins> rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public <T> T query(String sql, Object[] args, int[] argTypes, ResultSetExtractor<T> extractor) {
+            String userAgent = (String) args[0];
+            String userId = (String) args[1];
+            long matching = rows.stream().filter(row -> row.userId().equals(userId) && row.userAgent().equals(userAgent))
+                    .mapToLong(Logins::count).sum();
+            long total = rows.stream().filter(row -> row.userId().equals(userId)).mapToLong(Logins::count).sum();
+            try {
+                CachedRowSet result = rowSet(List.of("matching_logins", "total_logins"), List.of(List.of(matching, total)));
+                return extractor.extractData(result);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void query(String sql, Object[] args, int[] argTypes, RowCallbackHandler handler) {
+            List<Object> userIds = List.of(args);
+            try {
+                ResultSet result = rowSet(List.of("user_id", "user_agent", "logins"), rows.stream()
+                        .filter(row -> userIds.contains(row.userId()))
+                        .<List<Object>>map(row -> List.of(row.userId(), row.userAgent(), row.count()))
+                        .toList());
+                while (result.next()) {
+                    handler.processRow(result);
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static CachedRowSet rowSet(List<String> columns, List<List<Object>> values) throws SQLException {
+            CachedRowSet rowSet = RowSetProvider.newFactory().createCachedRowSet();
+            RowSetMetaDataImpl metaData = new RowSetMetaDataImpl();
+            metaData.setColumnCount(columns.size());
+            for (int i = 0; i < columns.size(); i++) {
+                metaData.setColumnName(i + 1, columns.get(i));
+                metaData.setColumnType(i + 1, columns.get(i).endsWith("logins") ? Types.BIGINT : Types.VARCHAR);
+            }
+            rowSet.setMetaData(metaData);
+            for (List<Object> row : values) {
+                rowSet.moveToInsertRow();
+                for (int i = 0; i < row.size(); i++) {
+                    rowSet.updateObject(i + 1, row.get(i));
+                }
+                rowSet.insertRow();
+                rowSet.moveToCurrentRow();
+            }
+            rowSet.beforeFirst();
+            return rowSet;
+        }
+    }
+}